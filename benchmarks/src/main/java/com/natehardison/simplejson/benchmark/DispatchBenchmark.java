@@ -0,0 +1,68 @@
+package com.natehardison.simplejson.benchmark;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.natehardison.simplejson.domain.Owner;
+import com.natehardison.simplejson.domain.Person;
+import com.natehardison.simplejson.util.ModelRegistry;
+import com.natehardison.simplejson.util.ModelRegistry.Model;
+
+/**
+ * The per-request work of turning the {class}/{id} path segments into a
+ * model class and an identifier: through the ModelRegistry, and the way it
+ * used to be done (Class.forName plus the Person/Vehicle ID branch) as a
+ * baseline.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dsimplejson.hibernate_config=hibernate-benchmark.cfg.xml")
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+
+    private static final String MODEL_PACKAGE_PREFIX = "com.natehardison.simplejson.domain.";
+
+    @Param({"car", "owner"})
+    String className;
+
+    String id;
+
+    @Setup
+    public void setUp() {
+        id = className.equals("owner") ? "42" : "1234567890";
+        // build the SessionFactory and registry outside of the measurement
+        ModelRegistry.getRegistry();
+    }
+
+    @Benchmark
+    public Serializable registry() {
+        Model model = ModelRegistry.getRegistry().getModel(className);
+        return model.parseId(id);
+    }
+
+    @Benchmark
+    public Serializable classForName() throws ClassNotFoundException {
+        String name = className.substring(0, 1).toUpperCase() + className.substring(1).toLowerCase();
+        Class<?> klass = Class.forName(MODEL_PACKAGE_PREFIX + name);
+        if (klass == Owner.class || klass == Person.class) {
+            return Long.decode(id);
+        }
+        return id;
+    }
+
+}
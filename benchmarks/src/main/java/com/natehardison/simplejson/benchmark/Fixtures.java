@@ -0,0 +1,57 @@
+package com.natehardison.simplejson.benchmark;
+
+import com.natehardison.simplejson.domain.Car;
+import com.natehardison.simplejson.domain.Owner;
+import com.natehardison.simplejson.domain.Person;
+import com.natehardison.simplejson.domain.Truck;
+
+/**
+ * Builds the model objects the benchmarks work on.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+final class Fixtures {
+
+    private Fixtures() {}
+
+    static Car newCar(String vin) {
+        Car car = new Car();
+        car.setVin(vin);
+        car.setDoors(4);
+        car.setFuelConsumption(25);
+        car.setHorsepower(120);
+        car.setSpeed(180);
+        return car;
+    }
+
+    static Truck newTruck(String vin) {
+        Truck truck = new Truck();
+        truck.setVin(vin);
+        truck.setAxles(3);
+        truck.setFuelConsumption(12);
+        truck.setHorsepower(400);
+        truck.setSpeed(120);
+        return truck;
+    }
+
+    static Person newPerson() {
+        Person person = new Person();
+        person.setName("Nate");
+        person.setAge(26);
+        return person;
+    }
+
+    /**
+     * @param vehicles How many cars the owner should have.
+     * @return A new (transient) owner with that many new cars.
+     */
+    static Owner newOwner(int vehicles) {
+        Owner owner = new Owner();
+        owner.setName("Nate");
+        owner.setAge(26);
+        for (int i = 0; i < vehicles; i++) {
+            owner.getVehicles().add(newCar("OWNED" + i));
+        }
+        return owner;
+    }
+
+}
@@ -0,0 +1,136 @@
+package com.natehardison.simplejson.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.map.ObjectWriter;
+import org.codehaus.jackson.type.TypeReference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.natehardison.simplejson.domain.Car;
+import com.natehardison.simplejson.util.JsonCodec;
+
+/**
+ * The cost of each wire format a collection GET can be served in: JSON or
+ * Smile, each with or without gzip. Collections of cars are written (as the
+ * service does) and read back (as a client would). See PayloadSizes for the
+ * number of bytes each format puts on the wire.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmark {
+
+    private static final TypeReference<List<Car>> CARS = new TypeReference<List<Car>>() {};
+
+    @State(Scope.Benchmark)
+    public static class FormatState {
+        @Param({"json", "smile"})
+        String format;
+
+        @Param({"false", "true"})
+        boolean gzip;
+
+        @Param({"100", "10000"})
+        int cars;
+
+        Format wire;
+        List<Car> collection;
+        byte[] payload;
+
+        @Setup
+        public void setUp() throws IOException {
+            wire = new Format(format, gzip);
+            collection = newCars(cars);
+            payload = wire.write(collection);
+        }
+    }
+
+    @Benchmark
+    public byte[] write(FormatState state) throws IOException {
+        return state.wire.write(state.collection);
+    }
+
+    @Benchmark
+    public Object read(FormatState state) throws IOException {
+        return state.wire.read(state.payload);
+    }
+
+    static List<Car> newCars(int count) {
+        List<Car> cars = new ArrayList<Car>(count);
+        for (int i = 0; i < count; i++) {
+            cars.add(Fixtures.newCar("VIN" + i));
+        }
+        return cars;
+    }
+
+    /**
+     * One wire format: a JsonCodec, optionally gzipped.
+     */
+    static class Format {
+
+        private final boolean gzip;
+        private final ObjectWriter writer;
+        private final ObjectReader reader;
+
+        /**
+         * @param name "json" or "smile".
+         * @param gzip Whether to gzip the encoded collection.
+         */
+        Format(String name, boolean gzip) {
+            JsonCodec codec;
+            if (name.equals("json")) {
+                codec = JsonCodec.getCodec();
+            } else if (name.equals("smile")) {
+                codec = JsonCodec.getSmileCodec();
+            } else {
+                throw new IllegalArgumentException("Unknown format " + name);
+            }
+            this.gzip = gzip;
+            this.writer = codec.getMapper().writerWithType(CARS);
+            this.reader = codec.getMapper().reader(CARS);
+        }
+
+        byte[] write(List<Car> cars) throws IOException {
+            if (!gzip) {
+                return writer.writeValueAsBytes(cars);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            OutputStream out = new GZIPOutputStream(bytes);
+            writer.writeValue(out, cars);
+            return bytes.toByteArray();
+        }
+
+        List<Car> read(byte[] payload) throws IOException {
+            InputStream in = new ByteArrayInputStream(payload);
+            if (gzip) {
+                in = new GZIPInputStream(in);
+            }
+            return reader.readValue(in);
+        }
+
+    }
+
+}
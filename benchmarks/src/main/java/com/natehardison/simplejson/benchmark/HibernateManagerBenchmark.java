@@ -0,0 +1,169 @@
+package com.natehardison.simplejson.benchmark;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.natehardison.simplejson.domain.Car;
+import com.natehardison.simplejson.util.HibernateManager;
+import com.natehardison.simplejson.util.ResourceQuery;
+import com.natehardison.simplejson.util.ResourceStatistics;
+
+/**
+ * Each of the HibernateManager CRUD methods, against an in-memory H2
+ * database (see hibernate-benchmark.cfg.xml) seeded with SEED_SIZE cars.
+ * This measures Hibernate's overhead (sessions, flushing, caching,
+ * batching) rather than MySQL's.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dsimplejson.hibernate_config=hibernate-benchmark.cfg.xml")
+@State(Scope.Benchmark)
+public class HibernateManagerBenchmark {
+
+    private static final int SEED_SIZE = 1000;
+    private static final int PAGE_SIZE = 100;
+    private static final int BATCH_SIZE = 100;
+
+    HibernateManager manager;
+
+    // cycles through the seeded cars
+    int next;
+    // numbers the cars created during the run, so VINs never collide
+    long created;
+
+    @Setup
+    public void setUp() {
+        manager = HibernateManager.getManager();
+        List<Car> cars = new ArrayList<Car>(SEED_SIZE);
+        for (int i = 0; i < SEED_SIZE; i++) {
+            cars.add(Fixtures.newCar(seedVin(i)));
+        }
+        manager.createResources(cars);
+    }
+
+    private static String seedVin(int i) {
+        return String.format("SEED%06d", i);
+    }
+
+    private String nextSeedVin() {
+        next = (next + 1) % SEED_SIZE;
+        return seedVin(next);
+    }
+
+    @Benchmark
+    public Object getResource() {
+        return manager.getResource(Car.class, nextSeedVin());
+    }
+
+    @Benchmark
+    public List<Car> getResourcesPage() {
+        return manager.getResources(Car.class, null, PAGE_SIZE, Collections.<String>emptySet());
+    }
+
+    @Benchmark
+    public List<Car> getResourcesById() {
+        List<String> vins = new ArrayList<String>(PAGE_SIZE);
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            vins.add(nextSeedVin());
+        }
+        return manager.getResources(Car.class, vins, Collections.<String>emptySet());
+    }
+
+    @Benchmark
+    public List<Car> getFilteredResourcesPage() {
+        ResourceQuery query = new ResourceQuery();
+        query.addCondition("speed", ResourceQuery.Operator.GT, 100);
+        query.addSort("speed", false);
+        return manager.getResources(Car.class, query, null, PAGE_SIZE, Collections.<String>emptySet());
+    }
+
+    @Benchmark
+    public void scrollResources(final Blackhole blackhole) throws IOException {
+        manager.scrollResources(Car.class, Collections.<String>emptySet(), new HibernateManager.ResourceHandler() {
+            public void handle(Object resource) {
+                blackhole.consume(resource);
+            }
+        });
+    }
+
+    @Benchmark
+    public ResourceStatistics getStatistics() {
+        // in the database, as against scrollResources reading every car
+        return manager.getStatistics(Car.class, new ResourceQuery(),
+                Arrays.asList("fuelConsumption", "horsepower", "speed", "doors"), null);
+    }
+
+    @Benchmark
+    public Serializable createResource() {
+        return manager.createResource(Fixtures.newCar("NEW" + created++));
+    }
+
+    @Benchmark
+    public List<Serializable> createResources() {
+        List<Car> cars = new ArrayList<Car>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            cars.add(Fixtures.newCar("NEW" + created++));
+        }
+        return manager.createResources(cars);
+    }
+
+    @Benchmark
+    public void updateResource() {
+        String vin = nextSeedVin();
+        Car car = Fixtures.newCar(vin);
+        // make sure every update actually changes the row
+        car.setSpeed(1 + (int) (created++ % 200));
+        manager.updateResource(car, Car.class, vin);
+    }
+
+    @Benchmark
+    public void updateResources() {
+        // one write of the WriteBehindBuffer, with BATCH_SIZE cars waiting
+        List<Car> cars = new ArrayList<Car>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            Car car = Fixtures.newCar(nextSeedVin());
+            car.setSpeed(1 + (int) (created++ % 200));
+            cars.add(car);
+        }
+        manager.updateResources(cars);
+    }
+
+    @Benchmark
+    public Object patchResource() throws IOException {
+        final int speed = 1 + (int) (created++ % 200);
+        return manager.patchResource(Car.class, nextSeedVin(), new HibernateManager.ResourcePatch() {
+            public void apply(Object resource) {
+                ((Car) resource).setSpeed(speed);
+            }
+        }, null);
+    }
+
+    @Benchmark
+    public boolean createOrUpdateResource() {
+        String vin = nextSeedVin();
+        Car car = Fixtures.newCar(vin);
+        car.setSpeed(1 + (int) (created++ % 200));
+        return manager.createOrUpdateResource(car, Car.class, vin);
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.natehardison.simplejson.benchmark;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.mapping.SimpleValue;
+import org.hibernate.service.ServiceRegistryBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.natehardison.simplejson.domain.Person;
+import com.natehardison.simplejson.util.ReplicaRoutingConnectionProvider;
+
+/**
+ * Concurrent inserts of people (what POST /person does: one transaction per
+ * resource, as in HibernateManager#createResource) with each of the ID
+ * generators Person has had: the pooled sequence it's mapped with now, which
+ * reserves a block of IDs per round trip to the sequence, and the in-memory
+ * "increment" counter it had before, which is only safe with a single
+ * SessionFactory writing to the database. Each gets a SessionFactory of its
+ * own, on an in-memory H2 database of its own (see
+ * hibernate-benchmark.cfg.xml), and THREADS threads inserting at once.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(IdGeneratorBenchmark.THREADS)
+@State(Scope.Benchmark)
+public class IdGeneratorBenchmark {
+
+    static final int THREADS = 8;
+
+    @Param({"pooled", "increment"})
+    String generator;
+
+    SessionFactory sessionFactory;
+
+    @Setup
+    public void setUp() {
+        Configuration configuration = new Configuration().configure("hibernate-benchmark.cfg.xml");
+        configuration.setProperty(Environment.URL, "jdbc:h2:mem:" + generator + ";DB_CLOSE_DELAY=-1");
+        configuration.setProperty(ReplicaRoutingConnectionProvider.REPLICA_URLS, "");
+        configuration.buildMappings();
+        if (generator.equals("increment")) {
+            SimpleValue id = (SimpleValue) configuration.getClassMapping(Person.class.getName()).getIdentifier();
+            // the sequence's parameters are left for it to ignore
+            id.setIdentifierGeneratorStrategy("increment");
+        }
+        ServiceRegistryBuilder serviceRegistryBuilder = new ServiceRegistryBuilder();
+        serviceRegistryBuilder.applySettings(configuration.getProperties());
+        sessionFactory = configuration.buildSessionFactory(serviceRegistryBuilder.buildServiceRegistry());
+    }
+
+    @TearDown
+    public void tearDown() {
+        sessionFactory.close();
+    }
+
+    @Benchmark
+    public Serializable createPerson() {
+        Session session = sessionFactory.openSession();
+        Transaction tx = null;
+        try {
+            tx = session.beginTransaction();
+            Serializable id = session.save(Fixtures.newPerson());
+            tx.commit();
+            return id;
+        } catch (HibernateException e) {
+            if (tx != null) {
+                tx.rollback();
+            }
+            throw e;
+        } finally {
+            session.close();
+        }
+    }
+
+}
@@ -0,0 +1,131 @@
+package com.natehardison.simplejson.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.map.ObjectWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.natehardison.simplejson.domain.Car;
+import com.natehardison.simplejson.domain.Owner;
+import com.natehardison.simplejson.domain.Truck;
+import com.natehardison.simplejson.util.JsonCodec;
+
+/**
+ * Jackson serialization through the service's JsonCodec. Cars and Trucks are
+ * round-tripped (written, then read back); Owners are only written, since
+ * they're never read with their vehicles (vehicles are added through
+ * /owner/{id}/vehicles instead).
+ *
+ * The parseRequest pair compares how a POST body is parsed now (the model's
+ * cached ObjectReader, straight from the entity stream) with how it was
+ * before JsonCodec (the entity read into a String, then a new ObjectMapper
+ * per request). Run them with -prof gc for the bytes allocated per request
+ * (gc.alloc.rate.norm) as well as the time:
+ *
+ *   java -jar target/benchmarks.jar JsonCodecBenchmark.parseRequest -prof gc
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonCodecBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class VehicleState {
+        Car car;
+        Truck truck;
+        ObjectWriter carWriter;
+        ObjectReader carReader;
+        ObjectWriter truckWriter;
+        ObjectReader truckReader;
+
+        @Setup
+        public void setUp() {
+            car = Fixtures.newCar("1234567890");
+            truck = Fixtures.newTruck("0987654321");
+            carWriter = JsonCodec.getCodec().getWriter(Car.class);
+            carReader = JsonCodec.getCodec().getReader(Car.class);
+            truckWriter = JsonCodec.getCodec().getWriter(Truck.class);
+            truckReader = JsonCodec.getCodec().getReader(Truck.class);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class OwnerState {
+        @Param({"1", "100", "10000"})
+        int vehicles;
+
+        Owner owner;
+        ObjectWriter writer;
+
+        @Setup
+        public void setUp() {
+            owner = Fixtures.newOwner(vehicles);
+            writer = JsonCodec.getCodec().getWriter(Owner.class);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class RequestState {
+        // the entity of a POST /car
+        byte[] body;
+        ObjectReader reader;
+
+        @Setup
+        public void setUp() throws IOException {
+            body = JsonCodec.getCodec().getWriter(Car.class).writeValueAsBytes(Fixtures.newCar("1234567890"));
+            reader = JsonCodec.getCodec().getReader(Car.class);
+        }
+    }
+
+    @Benchmark
+    public Object parseRequest(RequestState state) throws IOException {
+        return state.reader.readValue(new ByteArrayInputStream(state.body));
+    }
+
+    @Benchmark
+    public Object parseRequestBaseline(RequestState state) throws IOException {
+        // as Jersey reads a String entity
+        Reader reader = new InputStreamReader(new ByteArrayInputStream(state.body), "UTF-8");
+        StringBuilder entity = new StringBuilder();
+        char[] buffer = new char[8192];
+        for (int read; (read = reader.read(buffer)) != -1; ) {
+            entity.append(buffer, 0, read);
+        }
+        return new ObjectMapper().readValue(entity.toString(), Car.class);
+    }
+
+    @Benchmark
+    public Object carRoundTrip(VehicleState state) throws IOException {
+        return state.carReader.readValue(state.carWriter.writeValueAsBytes(state.car));
+    }
+
+    @Benchmark
+    public Object truckRoundTrip(VehicleState state) throws IOException {
+        return state.truckReader.readValue(state.truckWriter.writeValueAsBytes(state.truck));
+    }
+
+    @Benchmark
+    public byte[] ownerWrite(OwnerState state) throws IOException {
+        return state.writer.writeValueAsBytes(state.owner);
+    }
+
+}
@@ -0,0 +1,57 @@
+package com.natehardison.simplejson.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.natehardison.simplejson.benchmark.FormatBenchmark.Format;
+import com.natehardison.simplejson.domain.Car;
+import com.natehardison.simplejson.util.JsonCodec;
+
+/**
+ * Prints the number of bytes each of FormatBenchmark's wire formats takes to
+ * send the same collections of cars, and writes them as JSON to
+ * target/payload-sizes.json (or the file given as the first argument).
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class PayloadSizes {
+
+    private static final String DEFAULT_RESULT_FILE = "target/payload-sizes.json";
+    private static final String[] FORMATS = {"json", "smile"};
+    private static final int[] COLLECTION_SIZES = {1, 100, 10000};
+
+    public static void main(String[] args) throws IOException {
+        Map<String, Map<String, Integer>> sizes = new LinkedHashMap<String, Map<String, Integer>>();
+        System.out.printf("%-12s %8s %12s%n", "format", "cars", "bytes");
+        for (String name : FORMATS) {
+            for (boolean gzip : new boolean[] {false, true}) {
+                String format = gzip ? name + "+gzip" : name;
+                Format wire = new Format(name, gzip);
+                Map<String, Integer> formatSizes = new LinkedHashMap<String, Integer>();
+                for (int count : COLLECTION_SIZES) {
+                    List<Car> cars = FormatBenchmark.newCars(count);
+                    int size = wire.write(cars).length;
+                    formatSizes.put(String.valueOf(count), size);
+                    System.out.printf("%-12s %8d %12d%n", format, count, size);
+                }
+                sizes.put(format, formatSizes);
+            }
+        }
+
+        File result = new File(args.length > 0 ? args[0] : DEFAULT_RESULT_FILE);
+        if (result.getAbsoluteFile().getParentFile() != null) {
+            result.getAbsoluteFile().getParentFile().mkdirs();
+        }
+        FileOutputStream out = new FileOutputStream(result);
+        try {
+            JsonCodec.getCodec().getMapper().writerWithDefaultPrettyPrinter().writeValue(out, sizes);
+        } finally {
+            out.close();
+        }
+        System.out.println("Wrote " + result);
+    }
+
+}
@@ -0,0 +1,55 @@
+package com.natehardison.simplejson.benchmark.load;
+
+import java.io.File;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.webapp.WebAppContext;
+
+/**
+ * Runs the service in-process in Jetty, configured from its own web.xml
+ * exactly as it would be deployed (Jersey ServletContainer, HibernateListener
+ * and all). Which database it talks to is up to the Hibernate configuration
+ * resource selected with -Dsimplejson.hibernate_config.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class EmbeddedServer {
+
+    private final Server server;
+    private final SelectChannelConnector connector;
+
+    /**
+     * @param webapp The service's webapp directory (containing WEB-INF/web.xml).
+     * @param port The port to listen on, or 0 for any free port.
+     */
+    public EmbeddedServer(File webapp, int port) {
+        this.server = new Server();
+        this.connector = new SelectChannelConnector();
+        connector.setPort(port);
+        server.addConnector(connector);
+
+        WebAppContext context = new WebAppContext();
+        context.setContextPath("/");
+        context.setResourceBase(webapp.getPath());
+        context.setDescriptor(new File(webapp, "WEB-INF/web.xml").getPath());
+        // the service's classes and libraries are already on our classpath
+        context.setParentLoaderPriority(true);
+        server.setHandler(context);
+    }
+
+    public void start() throws Exception {
+        server.start();
+    }
+
+    public void stop() throws Exception {
+        server.stop();
+    }
+
+    /**
+     * @return The port the server is actually listening on.
+     */
+    public int getPort() {
+        return connector.getLocalPort();
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.natehardison.simplejson.benchmark.load;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * A minimal HTTP client for the load test, on top of HttpURLConnection
+ * (which keeps connections alive between requests as long as each response
+ * body is read to the end).
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class LoadClient {
+
+    private static final String JSON = "application/json";
+
+    private final String baseUrl;
+
+    /**
+     * @param baseUrl The service's root, e.g. http://localhost:8080
+     */
+    public LoadClient(String baseUrl) {
+        this.baseUrl = baseUrl;
+    }
+
+    /**
+     * A response, with its body fully read.
+     */
+    public static class Result {
+        public final int status;
+        public final byte[] body;
+        public final String etag;
+        public final String location;
+
+        Result(int status, byte[] body, String etag, String location) {
+            this.status = status;
+            this.body = body;
+            this.etag = etag;
+            this.location = location;
+        }
+    }
+
+    public Result get(String path) throws IOException {
+        return send("GET", path, null, null);
+    }
+
+    /**
+     * A conditional GET, which should come back 304 if etag is current.
+     */
+    public Result get(String path, String etag) throws IOException {
+        return send("GET", path, null, etag);
+    }
+
+    public Result post(String path, byte[] json) throws IOException {
+        return send("POST", path, json, null);
+    }
+
+    public Result put(String path, byte[] json) throws IOException {
+        return send("PUT", path, json, null);
+    }
+
+    private Result send(String method, String path, byte[] json, String ifNoneMatch) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setRequestProperty("Accept", JSON);
+        if (ifNoneMatch != null) {
+            connection.setRequestProperty("If-None-Match", ifNoneMatch);
+        }
+        if (json != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", JSON);
+            connection.setFixedLengthStreamingMode(json.length);
+            OutputStream output = connection.getOutputStream();
+            output.write(json);
+            output.close();
+        }
+        int status = connection.getResponseCode();
+        InputStream input = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (input != null) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                body.write(buffer, 0, n);
+            }
+            input.close();
+        }
+        return new Result(status, body.toByteArray(), connection.getHeaderField("ETag"),
+                connection.getHeaderField("Location"));
+    }
+
+}
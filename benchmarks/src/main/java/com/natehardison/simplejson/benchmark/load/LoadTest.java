@@ -0,0 +1,182 @@
+package com.natehardison.simplejson.benchmark.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+import com.natehardison.simplejson.util.HibernateManager;
+
+/**
+ * End-to-end load test. Boots the service in-process (see EmbeddedServer)
+ * against an in-memory database, seeds it, then has a pool of client threads
+ * send the Workload's request mix as fast as they can. After a warmup, it
+ * reports the throughput and p50/p99/p999 latency of each route, both on
+ * stdout and as JSON.
+ *
+ * Configured with system properties:
+ * - simplejson.loadtest.url: test this running service instead of booting one
+ * - simplejson.loadtest.webapp: the webapp directory (../src/main/webapp)
+ * - simplejson.loadtest.threads: concurrent clients (16)
+ * - simplejson.loadtest.warmup: warmup, in seconds (10)
+ * - simplejson.loadtest.duration: measurement, in seconds (30)
+ * - simplejson.loadtest.seed: resources of each type to seed (1000)
+ * - simplejson.loadtest.result: the JSON report (target/loadtest-result.json)
+ * - simplejson.hibernate_config: the Hibernate configuration of the booted
+ *   service (hibernate-benchmark.cfg.xml, i.e. H2)
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class LoadTest {
+
+    private static final String PREFIX = "simplejson.loadtest.";
+
+    private final Workload workload;
+    private final LoadClient client;
+    private final int threads;
+    // swapped for a fresh set when measurement starts, so that nothing the
+    // warmup recorded is reported
+    private volatile Map<String, RouteStats> stats;
+    private volatile boolean running;
+
+    public LoadTest(Workload workload, LoadClient client, int threads) {
+        this.workload = workload;
+        this.client = client;
+        this.threads = threads;
+        this.stats = newStats();
+    }
+
+    private Map<String, RouteStats> newStats() {
+        Map<String, RouteStats> stats = new LinkedHashMap<String, RouteStats>();
+        for (Workload.Operation operation : workload.getOperations()) {
+            stats.put(operation.getRoute(), new RouteStats(operation.getRoute()));
+        }
+        return stats;
+    }
+
+    /**
+     * Sends requests from all threads for warmup seconds, then for duration
+     * seconds more while recording them.
+     * @return The stats of the measured requests, by route.
+     * @throws InterruptedException
+     */
+    public Map<String, RouteStats> run(long warmup, long duration) throws InterruptedException {
+        running = true;
+        List<Thread> workers = new ArrayList<Thread>(threads);
+        for (int i = 0; i < threads; i++) {
+            final Random random = new Random(i);
+            Thread worker = new Thread("load-" + i) {
+                public void run() {
+                    while (running) {
+                        Workload.Operation operation = workload.next(random);
+                        RouteStats routeStats = stats.get(operation.getRoute());
+                        long start = System.nanoTime();
+                        try {
+                            LoadClient.Result result = operation.execute(client, random);
+                            routeStats.record(result.status, System.nanoTime() - start);
+                        } catch (IOException e) {
+                            routeStats.recordFailure();
+                        }
+                    }
+                }
+            };
+            worker.start();
+            workers.add(worker);
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+        Map<String, RouteStats> measured = newStats();
+        stats = measured;
+        Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+        running = false;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return measured;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = System.getProperty(PREFIX + "url");
+        File webapp = new File(System.getProperty(PREFIX + "webapp", "../src/main/webapp"));
+        int threads = Integer.getInteger(PREFIX + "threads", 16);
+        long warmup = Long.getLong(PREFIX + "warmup", 10);
+        long duration = Long.getLong(PREFIX + "duration", 30);
+        int seed = Integer.getInteger(PREFIX + "seed", 1000);
+        File resultFile = new File(System.getProperty(PREFIX + "result", "target/loadtest-result.json"));
+
+        // as many keep-alive connections as there are clients
+        System.setProperty("http.maxConnections", Integer.toString(threads));
+
+        EmbeddedServer server = null;
+        if (url == null) {
+            if (System.getProperty(HibernateManager.CONFIG_RESOURCE) == null) {
+                System.setProperty(HibernateManager.CONFIG_RESOURCE, "hibernate-benchmark.cfg.xml");
+            }
+            server = new EmbeddedServer(webapp, 0);
+            server.start();
+            url = "http://localhost:" + server.getPort();
+        }
+
+        try {
+            Workload workload = new Workload();
+            LoadClient client = new LoadClient(url);
+            System.out.println("Seeding " + seed + " resources of each type into " + url);
+            workload.seed(client, seed);
+            System.out.println("Running " + threads + " clients: " + warmup + "s warmup, " + duration + "s measurement");
+            Map<String, RouteStats> stats = new LoadTest(workload, client, threads).run(warmup, duration);
+            report(stats, duration, resultFile);
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+
+    /**
+     * Prints a table of the stats and writes them out as JSON.
+     */
+    private static void report(Map<String, RouteStats> stats, long duration, File resultFile) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        ArrayNode routes = mapper.createArrayNode();
+        long total = 0;
+        System.out.println(String.format("%-45s %8s %9s %9s %9s %9s %7s %7s %7s",
+                "route", "count", "req/s", "p50 ms", "p99 ms", "p999 ms", "4xx", "5xx", "failed"));
+        for (RouteStats route : stats.values()) {
+            double throughput = (double) route.getCount() / duration;
+            System.out.println(String.format("%-45s %8d %9.1f %9.2f %9.2f %9.2f %7d %7d %7d",
+                    route.getRoute(), route.getCount(), throughput, route.getLatencyMillis(50),
+                    route.getLatencyMillis(99), route.getLatencyMillis(99.9), route.getStatusCount(4),
+                    route.getStatusCount(5), route.getFailures()));
+            ObjectNode node = routes.addObject();
+            node.put("route", route.getRoute());
+            node.put("count", route.getCount());
+            node.put("throughput", throughput);
+            node.put("p50", route.getLatencyMillis(50));
+            node.put("p99", route.getLatencyMillis(99));
+            node.put("p999", route.getLatencyMillis(99.9));
+            ObjectNode statuses = node.putObject("statuses");
+            for (int statusClass = 1; statusClass <= 5; statusClass++) {
+                statuses.put(statusClass + "xx", route.getStatusCount(statusClass));
+            }
+            node.put("failures", route.getFailures());
+            total += route.getCount();
+        }
+        System.out.println(String.format("%-45s %8d %9.1f", "total", total, (double) total / duration));
+
+        ObjectNode result = mapper.createObjectNode();
+        result.put("duration", duration);
+        result.put("count", total);
+        result.put("throughput", (double) total / duration);
+        result.put("routes", routes);
+        resultFile.getAbsoluteFile().getParentFile().mkdirs();
+        mapper.defaultPrettyPrintingWriter().writeValue(resultFile, result);
+        System.out.println("Load test result is saved to " + resultFile);
+    }
+
+}
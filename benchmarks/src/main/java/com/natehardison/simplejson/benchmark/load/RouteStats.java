@@ -0,0 +1,82 @@
+package com.natehardison.simplejson.benchmark.load;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Latencies and response statuses recorded for one route (e.g.,
+ * "GET /car/{vin}") during a load test. Safe to record into from many
+ * threads at once.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class RouteStats {
+
+    // latencies are recorded in microseconds, up to a minute
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    private final String route;
+    private final Histogram latencies;
+    private final AtomicLong[] statuses;
+    private final AtomicLong failures;
+
+    public RouteStats(String route) {
+        this.route = route;
+        this.latencies = new ConcurrentHistogram(MAX_LATENCY_MICROS, 3);
+        // 1xx..5xx
+        this.statuses = new AtomicLong[6];
+        for (int i = 0; i < statuses.length; i++) {
+            statuses[i] = new AtomicLong();
+        }
+        this.failures = new AtomicLong();
+    }
+
+    /**
+     * Records a request that got a response.
+     * @param status The HTTP status of the response.
+     * @param nanos How long the request took, including reading the body.
+     */
+    public void record(int status, long nanos) {
+        latencies.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(nanos), MAX_LATENCY_MICROS));
+        statuses[Math.min(Math.max(status / 100, 0), 5)].incrementAndGet();
+    }
+
+    /**
+     * Records a request that didn't get a response at all (e.g., the
+     * connection was refused or reset).
+     */
+    public void recordFailure() {
+        failures.incrementAndGet();
+    }
+
+    public String getRoute() {
+        return this.route;
+    }
+
+    public long getCount() {
+        return latencies.getTotalCount();
+    }
+
+    /**
+     * @param statusClass 2 for 2xx, 3 for 3xx, etc.
+     * @return The number of responses with a status in statusClass.
+     */
+    public long getStatusCount(int statusClass) {
+        return statuses[statusClass].get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @param percentile e.g. 99.9
+     * @return The latency at that percentile, in milliseconds.
+     */
+    public double getLatencyMillis(double percentile) {
+        return latencies.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+}
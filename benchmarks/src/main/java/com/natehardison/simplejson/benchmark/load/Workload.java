@@ -0,0 +1,260 @@
+package com.natehardison.simplejson.benchmark.load;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * The mix of requests the load test sends: every route in the README,
+ * weighted so that reads dominate, as they do in production. The data the
+ * requests refer to is created up front by seed.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class Workload {
+
+    private static final int PAGE_SIZE = 100;
+    private static final int BULK_SIZE = 50;
+    private static final int VEHICLES_PER_OWNER = 5;
+
+    /**
+     * One kind of request, reported under its route.
+     */
+    public abstract static class Operation {
+        private final String route;
+        private final int weight;
+
+        Operation(String route, int weight) {
+            this.route = route;
+            this.weight = weight;
+        }
+
+        public String getRoute() {
+            return this.route;
+        }
+
+        public int getWeight() {
+            return this.weight;
+        }
+
+        /**
+         * Sends one request.
+         * @return The response.
+         */
+        public abstract LoadClient.Result execute(LoadClient client, Random random) throws IOException;
+    }
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final List<Operation> operations = new ArrayList<Operation>();
+    private int totalWeight;
+
+    // IDs of the seeded resources, by class; only ever read once seeded
+    private final Map<String, List<String>> ids = new ConcurrentHashMap<String, List<String>>();
+    // the last ETag seen for each car, for conditional GETs
+    private final Map<String, String> etags = new ConcurrentHashMap<String, String>();
+    // numbers new vehicles so that VINs never collide
+    private final AtomicLong nextVin = new AtomicLong();
+    // the last car change seen, as a dashboard following the feed would
+    private final AtomicLong carChanges = new AtomicLong();
+
+    public Workload() {
+        for (final String className : new String[] {"car", "truck", "person", "owner"}) {
+            final String idName = isVehicle(className) ? "{vin}" : "{id}";
+            add(new Operation("GET /" + className, 1) {
+                public LoadClient.Result execute(LoadClient client, Random random) throws IOException {
+                    return client.get("/" + className);
+                }
+            });
+            add(new Operation("GET /" + className + "?after={id}&limit={n}", 4) {
+                public LoadClient.Result execute(LoadClient client, Random random) throws IOException {
+                    return client.get("/" + className + "?after=" + pick(className, random) + "&limit=" + PAGE_SIZE);
+                }
+            });
+            add(new Operation("GET /" + className + "/" + idName, 12) {
+                public LoadClient.Result execute(LoadClient client, Random random) throws IOException {
+                    String id = pick(className, random);
+                    LoadClient.Result result = client.get("/" + className + "/" + id);
+                    if (result.etag != null) {
+                        etags.put(className + "/" + id, result.etag);
+                    }
+                    return result;
+                }
+            });
+            add(new Operation("POST /" + className, 2) {
+                public LoadClient.Result execute(LoadClient client, Random random) throws IOException {
+                    return client.post("/" + className, json(newResource(className, random)));
+                }
+            });
+            add(new Operation("POST /" + className + "/" + idName, 2) {
+                public LoadClient.Result execute(LoadClient client, Random random) throws IOException {
+                    String id = pick(className, random);
+                    return client.post("/" + className + "/" + id, json(newResource(className, random)));
+                }
+            });
+            add(new Operation("PUT /" + className + "/" + idName, 2) {
+                public LoadClient.Result execute(LoadClient client, Random random) throws IOException {
+                    String id = pick(className, random);
+                    return client.put("/" + className + "/" + id, json(newResource(className, random)));
+                }
+            });
+        }
+        add(new Operation("GET /car/{vin} (If-None-Match)", 8) {
+            public LoadClient.Result execute(LoadClient client, Random random) throws IOException {
+                String id = pick("car", random);
+                return client.get("/car/" + id, etags.get("car/" + id));
+            }
+        });
+        add(new Operation("GET /owner?expand=vehicles", 2) {
+            public LoadClient.Result execute(LoadClient client, Random random) throws IOException {
+                return client.get("/owner?after=" + pick("owner", random) + "&limit=" + PAGE_SIZE + "&expand=vehicles");
+            }
+        });
+        add(new Operation("GET /owner/{id}?expand=vehicles", 4) {
+            public LoadClient.Result execute(LoadClient client, Random random) throws IOException {
+                return client.get("/owner/" + pick("owner", random) + "?expand=vehicles");
+            }
+        });
+        add(new Operation("GET /owner/{id}/vehicles", 6) {
+            public LoadClient.Result execute(LoadClient client, Random random) throws IOException {
+                return client.get("/owner/" + pick("owner", random) + "/vehicles");
+            }
+        });
+        add(new Operation("GET /owner/{id}/vehicles?limit={n}", 2) {
+            public LoadClient.Result execute(LoadClient client, Random random) throws IOException {
+                return client.get("/owner/" + pick("owner", random) + "/vehicles?limit=" + PAGE_SIZE);
+            }
+        });
+        add(new Operation("POST /owner/{id}/vehicles", 2) {
+            public LoadClient.Result execute(LoadClient client, Random random) throws IOException {
+                return client.post("/owner/" + pick("owner", random) + "/vehicles?type=car",
+                        json(newResource("car", random)));
+            }
+        });
+        add(new Operation("GET /car/_changes?since={seq}", 4) {
+            public LoadClient.Result execute(LoadClient client, Random random) throws IOException {
+                long since = carChanges.get();
+                LoadClient.Result result = client.get("/car/_changes?since=" + since + "&limit=" + PAGE_SIZE);
+                if (result.status == 410) {
+                    // fell behind (e.g., the seeding): start over from now
+                    result = client.get("/car/_changes");
+                }
+                if (result.status == 200) {
+                    long last = mapper.readTree(result.body).get("last").getLongValue();
+                    carChanges.compareAndSet(since, last);
+                }
+                return result;
+            }
+        });
+        add(new Operation("POST /car/_bulk", 1) {
+            public LoadClient.Result execute(LoadClient client, Random random) throws IOException {
+                ArrayNode cars = mapper.createArrayNode();
+                for (int i = 0; i < BULK_SIZE; i++) {
+                    cars.add(newResource("car", random));
+                }
+                return client.post("/car/_bulk", json(cars));
+            }
+        });
+    }
+
+    private void add(Operation operation) {
+        operations.add(operation);
+        totalWeight += operation.getWeight();
+    }
+
+    public List<Operation> getOperations() {
+        return Collections.unmodifiableList(operations);
+    }
+
+    /**
+     * @return A random operation, with probability proportional to its weight.
+     */
+    public Operation next(Random random) {
+        int n = random.nextInt(totalWeight);
+        for (Operation operation : operations) {
+            n -= operation.getWeight();
+            if (n < 0) {
+                return operation;
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Creates size resources of each class through the API, and gives each
+     * owner a few cars, for the operations to work on.
+     */
+    public void seed(LoadClient client, int size) throws IOException {
+        Random random = new Random(0);
+        for (String className : new String[] {"car", "truck", "person", "owner"}) {
+            List<String> created = new ArrayList<String>(size);
+            for (int offset = 0; offset < size; offset += BULK_SIZE) {
+                ArrayNode resources = mapper.createArrayNode();
+                for (int i = offset; i < Math.min(offset + BULK_SIZE, size); i++) {
+                    resources.add(newResource(className, random));
+                }
+                LoadClient.Result result = client.post("/" + className + "/_bulk", json(resources));
+                check(result, "POST /" + className + "/_bulk");
+                for (JsonNode item : mapper.readTree(result.body)) {
+                    if (item.has("id")) {
+                        created.add(item.get("id").asText());
+                    }
+                }
+            }
+            ids.put(className, created);
+        }
+        for (String owner : ids.get("owner")) {
+            for (int i = 0; i < VEHICLES_PER_OWNER; i++) {
+                check(client.post("/owner/" + owner + "/vehicles?type=car", json(newResource("car", random))),
+                        "POST /owner/{id}/vehicles");
+            }
+        }
+    }
+
+    private static void check(LoadClient.Result result, String route) throws IOException {
+        if (result.status >= 300) {
+            throw new IOException("Seeding failed: " + route + " returned " + result.status);
+        }
+    }
+
+    private static boolean isVehicle(String className) {
+        return className.equals("car") || className.equals("truck");
+    }
+
+    private String pick(String className, Random random) {
+        List<String> seeded = ids.get(className);
+        return seeded.get(random.nextInt(seeded.size()));
+    }
+
+    /**
+     * @return A new resource of the given class, with a fresh VIN if it's a
+     *         vehicle. Persons get their IDs from the service.
+     */
+    private ObjectNode newResource(String className, Random random) {
+        ObjectNode resource = mapper.createObjectNode();
+        if (isVehicle(className)) {
+            resource.put("vin", "LOAD" + nextVin.incrementAndGet());
+            resource.put("fuelConsumption", 10 + random.nextInt(30));
+            resource.put("horsepower", 60 + random.nextInt(400));
+            resource.put("speed", 80 + random.nextInt(120));
+            resource.put(className.equals("car") ? "doors" : "axles", 2 + random.nextInt(3));
+        } else {
+            resource.put("name", "Load Tester");
+            resource.put("age", 18 + random.nextInt(60));
+        }
+        return resource;
+    }
+
+    private byte[] json(JsonNode node) throws IOException {
+        return mapper.writeValueAsBytes(node);
+    }
+
+}
@@ -14,6 +14,10 @@ public class Person {
     protected String name;
     protected int age;
 
+    // bumped by Hibernate on every update; used for optimistic locking and
+    // handed to clients as the resource's ETag
+    protected long version;
+
     // empty constructor needed for Hibernate
     public Person() {}
 
@@ -26,4 +30,7 @@ public class Person {
     public int getAge() { return this.age; }
     public void setAge(int age) { this.age = age; }
 
+    public long getVersion() { return this.version; }
+    public void setVersion(long version) { this.version = version; }
+
 }
@@ -2,6 +2,8 @@ package com.natehardison.simplejson.domain;
 
 import javax.xml.bind.annotation.XmlRootElement;
 
+import org.codehaus.jackson.annotate.JsonIgnore;
+
 /**
  * Model class for a simple Vehicle entity.
  * @author Nate Hardison <natehardison@gmail.com>
@@ -23,6 +25,15 @@ public abstract class Vehicle {
     // we'll assume miles per hour are integral
     protected int speed;
 
+    // bumped by Hibernate on every update; used for optimistic locking and
+    // handed to clients as the resource's ETag
+    protected long version;
+
+    // the FK side of Owner#vehicles, so that a vehicle can be attached to an
+    // owner without loading the owner's other vehicles; not part of the JSON
+    // representation (vehicles are attached through /owner/{id}/vehicles)
+    protected Owner owner;
+
     // empty constructor needed for Hibernate
     public Vehicle() {}
 
@@ -38,4 +49,12 @@ public abstract class Vehicle {
     public int getSpeed() { return this.speed; }
     public void setSpeed(int speed) { this.speed = speed; }
 
+    public long getVersion() { return this.version; }
+    public void setVersion(long version) { this.version = version; }
+
+    @JsonIgnore
+    public Owner getOwner() { return this.owner; }
+    @JsonIgnore
+    public void setOwner(Owner owner) { this.owner = owner; }
+
 }
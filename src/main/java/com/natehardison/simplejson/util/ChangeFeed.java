@@ -0,0 +1,294 @@
+package com.natehardison.simplejson.util;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+import org.hibernate.Session;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostDeleteEventListener;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.Type;
+
+/**
+ * The changes committed to the database through this process, numbered in
+ * commit order, so that clients can keep up with a collection by asking for
+ * the changes after the last one they saw instead of re-reading all of it.
+ * The HibernateManager registers the feed as a post-insert, post-update and
+ * post-delete listener, and each change is only numbered and published once
+ * its transaction commits, so changes that are rolled back never show up.
+ *
+ * Only the latest capacity changes are kept, in a ring buffer; a client
+ * that falls further behind than that (or that saw sequence numbers from
+ * before a restart) has to start over from a full read.
+ *
+ * Publishing and reading take no locks (the feed is read on every cached
+ * or coalesced read, see ResponseCache); the monitor is only used to wait
+ * for changes, and to wake the waiters.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class ChangeFeed implements PostInsertEventListener, PostUpdateEventListener, PostDeleteEventListener {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Operation {
+        CREATE, UPDATE, DELETE
+    }
+
+    /**
+     * A single committed change to a resource, along with the resource's
+     * state as of the change (its plain properties; none for deletes).
+     */
+    @JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+    public static class Change {
+
+        private final long sequence;
+        private final Operation operation;
+        private final Class<?> modelClass;
+        private final Serializable id;
+        private final Object version;
+        private final Map<String, Object> resource;
+
+        public Change(long sequence, Operation operation, Class<?> modelClass, Serializable id, Object version,
+                      Map<String, Object> resource) {
+            this.sequence = sequence;
+            this.operation = operation;
+            this.modelClass = modelClass;
+            this.id = id;
+            this.version = version;
+            this.resource = resource;
+        }
+
+        public long getSequence() { return this.sequence; }
+        public Operation getOperation() { return this.operation; }
+        @JsonIgnore
+        public Class<?> getModelClass() { return this.modelClass; }
+        public Serializable getId() { return this.id; }
+        public Object getVersion() { return this.version; }
+        public Map<String, Object> getResource() { return this.resource; }
+
+        /**
+         * @return The model name of the resource (e.g., "car").
+         */
+        public String getType() {
+            return ModelRegistry.getName(modelClass);
+        }
+
+    }
+
+    private final AtomicReferenceArray<Change> changes;
+    // sequence number of the latest change; the first change is 1. A change
+    // is numbered before it's put in the ring, so the ring may briefly lag
+    private final AtomicLong last = new AtomicLong();
+    // sequence number of the latest change to each class, kept forever
+    private final ConcurrentMap<Class<?>, AtomicLong> lastByClass = new ConcurrentHashMap<Class<?>, AtomicLong>();
+
+    /**
+     * @param capacity How many of the latest changes to keep.
+     */
+    public ChangeFeed(int capacity) {
+        this.changes = new AtomicReferenceArray<Change>(capacity);
+    }
+
+    public void onPostInsert(PostInsertEvent event) {
+        onCommit(event.getSession(), Operation.CREATE, event.getPersister(), event.getId(), event.getState());
+    }
+
+    public void onPostUpdate(PostUpdateEvent event) {
+        onCommit(event.getSession(), Operation.UPDATE, event.getPersister(), event.getId(), event.getState());
+    }
+
+    public void onPostDelete(PostDeleteEvent event) {
+        onCommit(event.getSession(), Operation.DELETE, event.getPersister(), event.getId(), null);
+    }
+
+    /**
+     * Publishes a change once (and if) the transaction it was made in
+     * commits. The state is captured now, as Hibernate wrote it.
+     */
+    private void onCommit(Session session, final Operation operation, EntityPersister persister,
+                          final Serializable id, Object[] state) {
+        Object version = null;
+        Map<String, Object> resource = null;
+        if (state != null) {
+            resource = new LinkedHashMap<String, Object>();
+            resource.put(persister.getIdentifierPropertyName(), id);
+            String[] names = persister.getPropertyNames();
+            Type[] types = persister.getPropertyTypes();
+            for (int i = 0; i < names.length; i++) {
+                if (!types[i].isAssociationType()) {
+                    resource.put(names[i], state[i]);
+                }
+            }
+            if (persister.isVersioned()) {
+                version = state[persister.getVersionProperty()];
+            }
+        }
+        final Class<?> modelClass = persister.getMappedClass();
+        final Object committedVersion = version;
+        final Map<String, Object> committedResource = resource;
+        session.getTransaction().registerSynchronization(new Synchronization() {
+            public void beforeCompletion() {}
+
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED) {
+                    publish(operation, modelClass, id, committedVersion, committedResource);
+                }
+            }
+        });
+    }
+
+    private void publish(Operation operation, Class<?> modelClass, Serializable id, Object version,
+                         Map<String, Object> resource) {
+        long sequence = last.incrementAndGet();
+        Change change = new Change(sequence, operation, modelClass, id, version, resource);
+        // a publisher that's a whole ring behind mustn't overwrite a newer
+        // change with its own
+        int slot = slot(sequence);
+        Change previous = changes.get(slot);
+        while ((previous == null || previous.getSequence() < sequence)
+                && !changes.compareAndSet(slot, previous, change)) {
+            previous = changes.get(slot);
+        }
+
+        AtomicLong classLast = lastByClass.get(modelClass);
+        if (classLast == null) {
+            AtomicLong created = new AtomicLong();
+            classLast = lastByClass.putIfAbsent(modelClass, created);
+            if (classLast == null) {
+                classLast = created;
+            }
+        }
+        // publishers may get here out of sequence order
+        long latest = classLast.get();
+        while (sequence > latest && !classLast.compareAndSet(latest, sequence)) {
+            latest = classLast.get();
+        }
+
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % changes.length());
+    }
+
+    /**
+     * @return The sequence number of the latest change (0 if there are
+     *         none), from which a client that has just read everything can
+     *         follow the feed.
+     */
+    public long getLastSequence() {
+        return last.get();
+    }
+
+    /**
+     * @param classes Mapped model classes.
+     * @return The sequence number of the latest change to a resource of any
+     *         of the classes (0 if there are none), which moves on whenever
+     *         one of them changes; e.g., to tell whether something built
+     *         from them is still current (see ResponseCache).
+     */
+    public long getLastSequence(Collection<Class<?>> classes) {
+        long latest = 0;
+        for (Class<?> klass : classes) {
+            AtomicLong sequence = lastByClass.get(klass);
+            if (sequence != null && sequence.get() > latest) {
+                latest = sequence.get();
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Retrieves the changes to resources of type klass (or its subclasses)
+     * after since, waiting up to timeout milliseconds for one if there are
+     * none yet.
+     * @param klass The type of resources to retrieve changes to.
+     * @param since The sequence number of the last change the client saw.
+     * @param limit The maximum number of changes to retrieve.
+     * @param timeout Milliseconds to wait for a change, or 0 not to wait.
+     * @return The changes, in sequence order, or null if the changes right
+     *         after since are no longer kept (or since is from the future).
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public Page getChanges(Class<?> klass, long since, int limit, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long scanned = since;
+        List<Change> matches = new ArrayList<Change>();
+        while (true) {
+            long latest = last.get();
+            if (scanned > latest) {
+                return null;
+            }
+            for (long sequence = scanned + 1; sequence <= latest && matches.size() < limit; sequence++) {
+                Change change = changes.get(slot(sequence));
+                if (change == null || change.getSequence() < sequence) {
+                    // numbered, but not in the ring yet
+                    break;
+                } else if (change.getSequence() > sequence) {
+                    // the change we need has already been overwritten
+                    return null;
+                }
+                if (klass.isAssignableFrom(change.getModelClass())) {
+                    matches.add(change);
+                }
+                scanned = sequence;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (!matches.isEmpty() || remaining <= 0) {
+                return new Page(scanned, matches);
+            }
+            synchronized (this) {
+                // publish notifies once the change is in the ring
+                if (!isPublished(scanned + 1)) {
+                    wait(remaining);
+                }
+            }
+        }
+    }
+
+    private boolean isPublished(long sequence) {
+        Change change = changes.get(slot(sequence));
+        return change != null && change.getSequence() >= sequence;
+    }
+
+    /**
+     * The changes to resources of one type after some sequence number, and
+     * the sequence number to ask for changes after next time (which skips
+     * any changes to other types along the way).
+     */
+    public static class Page {
+
+        private final long last;
+        private final List<Change> changes;
+
+        public Page(long last, List<Change> changes) {
+            this.last = last;
+            this.changes = Collections.unmodifiableList(changes);
+        }
+
+        public long getLast() { return this.last; }
+        public List<Change> getChanges() { return this.changes; }
+
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.natehardison.simplejson.util;
+
+/**
+ * A point-in-time snapshot of the JDBC connection pool, as reported by the
+ * MeteredConnectionProvider.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class ConnectionPoolStatistics {
+
+    // connections currently checked out
+    private int activeConnections;
+
+    // connections sitting in the pool, ready to be checked out
+    private int idleConnections;
+
+    // callers currently blocked waiting for a connection
+    private int threadsAwaitingConnection;
+
+    // checkouts that failed (e.g., timed out waiting) since startup
+    private long failedCheckouts;
+
+    // prepared statements currently held in the statement cache
+    private int cachedStatements;
+
+    // successful or not, the number of checkouts attempted since startup
+    private long acquisitions;
+
+    // time spent waiting for connections since startup, in nanoseconds
+    private long totalWaitNanos;
+
+    // the longest single wait for a connection since startup, in nanoseconds
+    private long maxWaitNanos;
+
+    public int getActiveConnections() { return this.activeConnections; }
+    public void setActiveConnections(int activeConnections) { this.activeConnections = activeConnections; }
+
+    public int getIdleConnections() { return this.idleConnections; }
+    public void setIdleConnections(int idleConnections) { this.idleConnections = idleConnections; }
+
+    public int getThreadsAwaitingConnection() { return this.threadsAwaitingConnection; }
+    public void setThreadsAwaitingConnection(int threadsAwaitingConnection) { this.threadsAwaitingConnection = threadsAwaitingConnection; }
+
+    public long getFailedCheckouts() { return this.failedCheckouts; }
+    public void setFailedCheckouts(long failedCheckouts) { this.failedCheckouts = failedCheckouts; }
+
+    public int getCachedStatements() { return this.cachedStatements; }
+    public void setCachedStatements(int cachedStatements) { this.cachedStatements = cachedStatements; }
+
+    public long getAcquisitions() { return this.acquisitions; }
+    public void setAcquisitions(long acquisitions) { this.acquisitions = acquisitions; }
+
+    public long getTotalWaitNanos() { return this.totalWaitNanos; }
+    public void setTotalWaitNanos(long totalWaitNanos) { this.totalWaitNanos = totalWaitNanos; }
+
+    public long getMaxWaitNanos() { return this.maxWaitNanos; }
+    public void setMaxWaitNanos(long maxWaitNanos) { this.maxWaitNanos = maxWaitNanos; }
+
+}
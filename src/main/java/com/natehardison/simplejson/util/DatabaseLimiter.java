@@ -0,0 +1,158 @@
+package com.natehardison.simplejson.util;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The DatabaseLimiter is a helper singleton class that bounds how many
+ * requests can be doing database work at once, and how many more can queue
+ * up waiting for their turn. A request that finds the queue full, or that
+ * waits in it for too long, is turned away with an OverloadedException
+ * straight away, instead of tying up a container thread until the client
+ * gives up. That way a slow database costs us a fast 503 for the excess
+ * requests, rather than every thread in the container.
+ *
+ * Configured in hibernate.cfg.xml (see the constants below).
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class DatabaseLimiter {
+
+    /**
+     * How many requests may use the database at once. Should be no more
+     * than the connection pool's max_size.
+     */
+    public static final String MAX_CONCURRENT = "simplejson.db.max_concurrent";
+    private static final int DEFAULT_MAX_CONCURRENT = 40;
+
+    /**
+     * How many requests may wait for their turn before new ones are turned
+     * away.
+     */
+    public static final String QUEUE_SIZE = "simplejson.db.queue_size";
+    private static final int DEFAULT_QUEUE_SIZE = 200;
+
+    /**
+     * Milliseconds a request may wait in the queue before it's turned away.
+     */
+    public static final String QUEUE_TIMEOUT = "simplejson.db.queue_timeout";
+    private static final long DEFAULT_QUEUE_TIMEOUT = 5000;
+
+    /**
+     * Seconds that turned-away clients are told to wait before retrying.
+     */
+    public static final String RETRY_AFTER = "simplejson.db.retry_after";
+    private static final int DEFAULT_RETRY_AFTER = 1;
+
+    private static final DatabaseLimiter limiter = new DatabaseLimiter();
+
+    private final int maxConcurrent;
+    private final int queueSize;
+    private final long queueTimeout;
+    private final int retryAfter;
+    // fair, so that requests get their turn in the order they queued
+    private final Semaphore permits;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    private DatabaseLimiter() {
+        HibernateManager manager = HibernateManager.getManager();
+        this.maxConcurrent = getInt(manager, MAX_CONCURRENT, DEFAULT_MAX_CONCURRENT);
+        this.queueSize = getInt(manager, QUEUE_SIZE, DEFAULT_QUEUE_SIZE);
+        String timeout = manager.getProperty(QUEUE_TIMEOUT);
+        this.queueTimeout = timeout == null ? DEFAULT_QUEUE_TIMEOUT : Long.parseLong(timeout);
+        this.retryAfter = getInt(manager, RETRY_AFTER, DEFAULT_RETRY_AFTER);
+        this.permits = new Semaphore(maxConcurrent, true);
+    }
+
+    private static int getInt(HibernateManager manager, String name, int defaultValue) {
+        String value = manager.getProperty(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * @return The singleton instance of the DatabaseLimiter.
+     */
+    public static DatabaseLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Waits for a turn to use the database. Every successful call must be
+     * paired with a call to release, in a finally block.
+     * @throws OverloadedException If the queue is full, or the wait times out.
+     */
+    public void acquire() {
+        // tryAcquire() would barge ahead of the queue even on a fair
+        // Semaphore; a timed tryAcquire, even of no time, waits its turn
+        try {
+            if (permits.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OverloadedException(retryAfter);
+        }
+        if (waiting.incrementAndGet() > queueSize) {
+            waiting.decrementAndGet();
+            rejected.incrementAndGet();
+            throw new OverloadedException(retryAfter);
+        }
+        try {
+            if (!permits.tryAcquire(queueTimeout, TimeUnit.MILLISECONDS)) {
+                timedOut.incrementAndGet();
+                throw new OverloadedException(retryAfter);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OverloadedException(retryAfter);
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * Gives up a turn taken with acquire.
+     */
+    public void release() {
+        permits.release();
+    }
+
+    /**
+     * @return Seconds that turned-away clients are told to wait.
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * @return The number of requests using the database right now.
+     */
+    public int getActive() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    /**
+     * @return The number of requests waiting for their turn right now.
+     */
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    /**
+     * @return The number of requests turned away because the queue was full.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return The number of requests turned away after waiting too long.
+     */
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+}
@@ -11,16 +11,22 @@ import javax.servlet.ServletContextListener;
 public class HibernateListener implements ServletContextListener {
 
     /**
-     * Starts Hibernate on deployment.
+     * Starts Hibernate on deployment, and builds the model registry from it
+     * so that the first requests don't have to. Also starts the scheduled
+     * writes of the WriteBehindBuffer.
      */
     public void contextInitialized(ServletContextEvent event) {
         HibernateManager.getManager().getSessionFactory();
+        ModelRegistry.getRegistry();
+        WriteBehindBuffer.getBuffer();
     }
 
     /**
-     * Stops Hibernate on undeployment.
+     * Stops Hibernate (and its shards) on undeployment, once the updates
+     * still waiting in the WriteBehindBuffer have been written.
      */
     public void contextDestroyed(ServletContextEvent event) {
-        HibernateManager.getManager().getSessionFactory().close();
+        WriteBehindBuffer.getBuffer().shutdown();
+        HibernateManager.getManager().close();
     }
 }
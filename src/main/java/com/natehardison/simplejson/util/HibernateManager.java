@@ -1,16 +1,55 @@
 package com.natehardison.simplejson.util;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Statistics;
+
+import org.hibernate.CacheMode;
+import org.hibernate.Criteria;
+import org.hibernate.Hibernate;
 import org.hibernate.HibernateException;
-import org.hibernate.LockOptions;
+import org.hibernate.ObjectNotFoundException;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.StaleObjectStateException;
 import org.hibernate.Transaction;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.spi.CacheKey;
+import org.hibernate.cache.spi.entry.CacheEntry;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.criterion.Conjunction;
+import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.Disjunction;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.EntityPersister;
 import org.hibernate.service.ServiceRegistry;
 import org.hibernate.service.ServiceRegistryBuilder;
+import org.hibernate.service.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.type.CollectionType;
+import org.hibernate.type.Type;
 
 /**
  * The HibernateManager is a helper singleton class for performing common
@@ -22,22 +61,160 @@ import org.hibernate.service.ServiceRegistryBuilder;
  */
 public class HibernateManager {
 
+    /**
+     * System property naming the Hibernate configuration resource to use
+     * instead of hibernate.cfg.xml (e.g., to run against an embedded
+     * database in benchmarks).
+     */
+    public static final String CONFIG_RESOURCE = "simplejson.hibernate_config";
+    private static final String DEFAULT_CONFIG_RESOURCE = "hibernate.cfg.xml";
+
+    /**
+     * Configuration property holding the JDBC fetch size used when streaming
+     * resources with scrollResources. MySQL only honours this with
+     * useCursorFetch=true on the connection URL; see hibernate.cfg.xml.
+     */
+    public static final String SCROLL_FETCH_SIZE = "simplejson.scroll_fetch_size";
+    private static final int DEFAULT_SCROLL_FETCH_SIZE = 100;
+
+    /**
+     * How many inserts createResources sends per JDBC batch (and so how
+     * often it flushes and clears the session) if hibernate.jdbc.batch_size
+     * isn't configured.
+     */
+    private static final int DEFAULT_BATCH_SIZE = 50;
+
+    /**
+     * How many IDs getResources (by ID) puts in each IN list. Some databases
+     * cap the list (Oracle at 1000), and long ones make for big statements
+     * that are rarely reused from the statement cache.
+     */
+    static final int IN_CHUNK_SIZE = 500;
+
+    /**
+     * Configuration property holding how far (in milliseconds) the read
+     * replicas may lag behind the primary. Reads that have to see writes
+     * made more recently than that go to the primary (see setReadAfter).
+     */
+    public static final String REPLICA_MAX_LAG = "simplejson.replica.max_lag";
+    private static final long DEFAULT_REPLICA_MAX_LAG = 1000;
+
+    /**
+     * Configuration property holding the number of changes the ChangeFeed
+     * keeps.
+     */
+    public static final String CHANGES_CAPACITY = "simplejson.changes.capacity";
+    private static final int DEFAULT_CHANGES_CAPACITY = 10000;
+
+    /**
+     * Configuration property holding how long (in milliseconds) a read may
+     * wait for a concurrent load of the same resource (see getResource)
+     * before it's turned away.
+     */
+    public static final String LOAD_TIMEOUT = "simplejson.load_timeout";
+    private static final long DEFAULT_LOAD_TIMEOUT = 5000;
+
+    /**
+     * Configuration property holding how long (in milliseconds) statistics
+     * (see getStatistics) are reused for before they're computed again; 0
+     * computes them every time.
+     */
+    public static final String STATS_TTL = "simplejson.stats.ttl";
+    private static final long DEFAULT_STATS_TTL = 5000;
+
+    // how many different statistics (by class, query, etc.) are kept
+    private static final int STATS_CACHE_SIZE = 1000;
+
+    /**
+     * Callback for resources streamed out of Hibernate by scrollResources.
+     */
+    public interface ResourceHandler {
+        /**
+         * Handles a single resource. The resource (and its associations)
+         * is evicted from the session as soon as this method returns.
+         * @param resource The resource that was just read.
+         * @throws IOException If the handler can't write the resource out.
+         */
+        void handle(Object resource) throws IOException;
+    }
+
+    /**
+     * Callback that modifies a resource in place, for patchResource.
+     */
+    public interface ResourcePatch {
+        /**
+         * Applies the changes to the resource.
+         * @param resource The resource, attached to the current session.
+         * @throws IOException If the patch can't be read or doesn't fit the
+         *         resource (e.g., a JsonMappingException).
+         */
+        void apply(Object resource) throws IOException;
+    }
+
     private static final HibernateManager manager = new HibernateManager();
     private final SessionFactory sessionFactory;
+    private final ShardRouter shards;
+    // the reads of the sharded classes
+    private final ShardedResources sharded;
+    private final int scrollFetchSize;
+    private final int batchSize;
+    private final long replicaMaxLag;
+    private final ThreadLocal<Long> readAfter = new ThreadLocal<Long>();
+    private final ChangeFeed changeFeed;
+    // by-ID loads under way (see getResource)
+    private final SingleFlight<List<Object>, Object> loads;
+    // statistics computations under way, and those computed less than
+    // statsTtl ago, by key (see getStatistics); the latter guarded by itself
+    private final SingleFlight<String, ResourceStatistics> statisticsLoads;
+    private final long statsTtl;
+    private final Map<String, CachedStatistics> statistics =
+            new LinkedHashMap<String, CachedStatistics>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<String, CachedStatistics> eldest) {
+                    return size() > STATS_CACHE_SIZE;
+                }
+            };
 
     /**
      * Instantiates a HibernateManager, which consists mostly of building a
-     * SessionFactory.
+     * SessionFactory (plus one per shard, if any are configured; see
+     * ShardRouter), and registers the ChangeFeed with each of them.
      */
     private HibernateManager() {
         try {
             // Create the SessionFactory from hibernate.cfg.xml
+            String resource = System.getProperty(CONFIG_RESOURCE, DEFAULT_CONFIG_RESOURCE);
             Configuration configuration = new Configuration();
-            configuration.configure("hibernate.cfg.xml");
+            configuration.configure(resource);
             ServiceRegistryBuilder serviceRegistryBuilder = new ServiceRegistryBuilder();
             serviceRegistryBuilder.applySettings(configuration.getProperties());
             ServiceRegistry serviceRegistry = serviceRegistryBuilder.buildServiceRegistry();
             this.sessionFactory = configuration.buildSessionFactory(serviceRegistry);
+            String fetchSize = configuration.getProperty(SCROLL_FETCH_SIZE);
+            this.scrollFetchSize = fetchSize == null ? DEFAULT_SCROLL_FETCH_SIZE : Integer.parseInt(fetchSize);
+            String batchSize = configuration.getProperty(Environment.STATEMENT_BATCH_SIZE);
+            this.batchSize = batchSize == null ? DEFAULT_BATCH_SIZE : Integer.parseInt(batchSize);
+            String maxLag = configuration.getProperty(REPLICA_MAX_LAG);
+            this.replicaMaxLag = maxLag == null ? DEFAULT_REPLICA_MAX_LAG : Long.parseLong(maxLag);
+            String capacity = configuration.getProperty(CHANGES_CAPACITY);
+            this.changeFeed = new ChangeFeed(capacity == null ? DEFAULT_CHANGES_CAPACITY : Integer.parseInt(capacity));
+            String loadTimeout = configuration.getProperty(LOAD_TIMEOUT);
+            this.loads = new SingleFlight<List<Object>, Object>(
+                    loadTimeout == null ? DEFAULT_LOAD_TIMEOUT : Long.parseLong(loadTimeout));
+            this.statisticsLoads = new SingleFlight<String, ResourceStatistics>(
+                    loadTimeout == null ? DEFAULT_LOAD_TIMEOUT : Long.parseLong(loadTimeout));
+            String statsTtl = configuration.getProperty(STATS_TTL);
+            this.statsTtl = statsTtl == null ? DEFAULT_STATS_TTL : Long.parseLong(statsTtl);
+            this.shards = new ShardRouter(configuration, resource, sessionFactory);
+            this.sharded = new ShardedResources(this, sessionFactory, shards);
+            Set<SessionFactory> factories = new HashSet<SessionFactory>(shards.getShards());
+            factories.add(sessionFactory);
+            for (SessionFactory factory : factories) {
+                EventListenerRegistry listeners = ((SessionFactoryImplementor) factory).getServiceRegistry()
+                        .getService(EventListenerRegistry.class);
+                listeners.appendListeners(EventType.POST_INSERT, changeFeed);
+                listeners.appendListeners(EventType.POST_UPDATE, changeFeed);
+                listeners.appendListeners(EventType.POST_DELETE, changeFeed);
+            }
         } catch (Throwable ex) {
             // Log the exception so it's not swallowed
             System.err.println("Initial SessionFactory creation failed." + ex);
@@ -52,6 +229,13 @@ public class HibernateManager {
         return manager;
     }
 
+    /**
+     * @return The feed of changes committed through this process.
+     */
+    public ChangeFeed getChangeFeed() {
+        return this.changeFeed;
+    }
+
     /**
      * A SessionFactory allows manual access to Hibernate in case more control
      * is needed than the CRUD methods provide.
@@ -61,22 +245,148 @@ public class HibernateManager {
         return manager.sessionFactory;
     }
 
+    /**
+     * @param klass A mapped model class.
+     * @param id The ID of a resource of type klass.
+     * @return The SessionFactory of the database that holds the resource:
+     *         its shard, if klass is sharded (see ShardRouter), or else the
+     *         primary. A sharded resource without an ID can't be routed,
+     *         so it's left to the primary to turn away (sharded classes
+     *         have assigned IDs).
+     */
+    public SessionFactory getSessionFactory(Class<?> klass, Serializable id) {
+        if (id == null || !shards.isSharded(klass)) {
+            return sessionFactory;
+        }
+        return shards.getShard(id);
+    }
+
+    private SessionFactory getSessionFactory(Object resource) {
+        return getSessionFactory(Hibernate.getClass(resource), getIdentifier(resource));
+    }
+
+    /**
+     * @return The JDBC fetch size (and chunk size) of scrollResources.
+     */
+    int getScrollFetchSize() {
+        return scrollFetchSize;
+    }
+
+    /**
+     * @return The router that spreads the sharded classes over the shards.
+     */
+    ShardRouter getShardRouter() {
+        return shards;
+    }
+
+    /**
+     * Closes the SessionFactories, the shards' included.
+     */
+    public void close() {
+        shards.close();
+        sessionFactory.close();
+    }
+
+    /**
+     * @param name The name of a property set in the Hibernate configuration.
+     * @return The value of the property, or null if it isn't set.
+     */
+    public String getProperty(String name) {
+        return ((SessionFactoryImplementor) sessionFactory).getProperties().getProperty(name);
+    }
+
+    /**
+     * Requires the calling thread's reads to see every write made at or
+     * before timestamp (e.g., the client's own last write), until cleared.
+     * Reads are sent to the primary instead of a replica while that write
+     * could still be replicating.
+     * @param timestamp The time of the write (in milliseconds since the
+     *        epoch), or null to clear the requirement.
+     */
+    public void setReadAfter(Long timestamp) {
+        if (timestamp == null) {
+            readAfter.remove();
+        } else {
+            readAfter.set(timestamp);
+        }
+    }
+
+    /**
+     * @return The calling thread's read-after timestamp (see setReadAfter),
+     *         or null if there isn't one.
+     */
+    public Long getReadAfter() {
+        return readAfter.get();
+    }
+
+    /**
+     * Begins a transaction that will only read, on a connection to one of the
+     * read replicas (if any are configured) unless the calling thread has to
+     * read a write that may not have replicated yet (see setReadAfter). Use
+     * this in place of Session#beginTransaction for reads done "manually".
+     * A session reading from a replica only reads the second-level cache
+     * (CacheMode.GET), never adding to it: the replica may be behind, and
+     * what it returns mustn't be served to reads, or merged into writes,
+     * that expect the primary's data.
+     * @param session The current session.
+     * @return The transaction.
+     */
+    public Transaction beginRead(Session session) {
+        if (readsFromPrimary() || !hasReplicas(session.getSessionFactory())) {
+            return session.beginTransaction();
+        }
+        // the connection is checked out as the transaction begins
+        ReplicaRoutingConnectionProvider.readFromReplica(true);
+        Transaction tx;
+        try {
+            tx = session.beginTransaction();
+        } finally {
+            ReplicaRoutingConnectionProvider.readFromReplica(false);
+        }
+        // (a thread-bound session can't be set up before its transaction)
+        session.setCacheMode(CacheMode.GET);
+        return tx;
+    }
+
+    private static boolean hasReplicas(SessionFactory factory) {
+        ConnectionProvider provider = ((SessionFactoryImplementor) factory)
+                .getServiceRegistry().getService(ConnectionProvider.class);
+        return provider instanceof ReplicaRoutingConnectionProvider
+                && ((ReplicaRoutingConnectionProvider) provider).hasReplicas();
+    }
+
+    /**
+     * @return true if the calling thread's reads have to go to the primary.
+     */
+    private boolean readsFromPrimary() {
+        Long after = readAfter.get();
+        return after != null && System.currentTimeMillis() - after < replicaMaxLag;
+    }
+
     /**
      * Retrieves all of the resources of type klass from the Hibernate session.
      * @param klass The type of resources to retrieve.
      * @return A list of resource objects.
      */
-    @SuppressWarnings("unchecked")
     public <T> List<T> getResources(Class<T> klass) {
-        Session session = sessionFactory.getCurrentSession();
+        if (shards.isSharded(klass)) {
+            return sharded.getResources(klass);
+        }
+        return getResources(sessionFactory, klass);
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> List<T> getResources(SessionFactory factory, Class<T> klass) {
+        Session session = factory.getCurrentSession();
         Transaction tx = null;
         List<T> resources = null;
         try {
-            tx = session.beginTransaction();
+            tx = beginRead(session);
             // bit of a hack, but Class#getSimpleName gets us the table name
             // assuming that we set things up appropriately
             resources = (List<T>) session.createQuery("from " + klass.getSimpleName()).list();
             tx.commit();
+            applyPending(resources);
         } catch (HibernateException e) {
             if (tx != null) {
                 tx.rollback();
@@ -88,6 +398,816 @@ public class HibernateManager {
         return resources;
     }
 
+    /**
+     * Retrieves one page of the resources of type klass, ordered by ID. This
+     * is keyset (cursor) pagination: rather than skipping over an offset, we
+     * start right after the last ID the client saw, which the database can
+     * answer straight from the primary key index no matter how deep the page.
+     * @param klass The type of resources to retrieve.
+     * @param after The ID to start after, or null to start from the beginning.
+     * @param limit The maximum number of resources to retrieve.
+     * @param associations The lazy associations to fetch along with the
+     *        resources (see isAssociation).
+     * @return A list of at most limit resource objects.
+     */
+    public <T> List<T> getResources(Class<T> klass, Serializable after, int limit, Collection<String> associations) {
+        return getResources(klass, new ResourceQuery(), after, limit, associations);
+    }
+
+    /**
+     * Retrieves one page of the resources of type klass that match query, in
+     * query's sort order (then by ID). As with the unfiltered version, this
+     * is keyset pagination: after is the ID of the last resource on the
+     * previous page, and the page starts right after wherever that resource
+     * falls in the sort order.
+     * @param klass The type of resources to retrieve.
+     * @param query The conditions to filter by and properties to sort by.
+     * @param after The ID to start after, or null to start from the beginning.
+     * @param limit The maximum number of resources to retrieve.
+     * @param associations The lazy associations to fetch along with the
+     *        resources (see isAssociation).
+     * @return A list of at most limit resource objects.
+     * @throws ObjectNotFoundException If query is sorted and the resource
+     *         with ID after doesn't exist (or no longer does).
+     */
+    public <T> List<T> getResources(Class<T> klass, ResourceQuery query, Serializable after, int limit,
+                                    Collection<String> associations) {
+        if (shards.isSharded(klass)) {
+            return sharded.getResources(klass, query, after, limit, associations);
+        }
+        Session session = sessionFactory.getCurrentSession();
+        Transaction tx = null;
+        List<T> resources = null;
+        try {
+            tx = beginRead(session);
+            resources = getPage(session, klass, query, after, getCursor(session, klass, query, after), limit,
+                    associations);
+            tx.commit();
+            applyPending(resources);
+        } catch (HibernateException e) {
+            if (tx != null) {
+                tx.rollback();
+            }
+            throw e;
+        }
+        sharded.gatherAssociations(resources, associations);
+        return resources;
+    }
+
+    /**
+     * Reads one page of getResources in session's transaction.
+     */
+    @SuppressWarnings("unchecked")
+    <T> List<T> getPage(Session session, Class<T> klass, ResourceQuery query, Serializable after,
+                                Object cursor, int limit, Collection<String> associations) {
+        Criteria criteria = createCriteria(session, klass, query);
+        if (after != null) {
+            criteria.add(after(klass, query, after, cursor));
+        }
+        criteria.setMaxResults(limit);
+        // don't let page loads churn the (by-ID) second-level cache
+        criteria.setCacheMode(CacheMode.IGNORE);
+        List<T> resources = (List<T>) criteria.list();
+        // thanks to batch fetching, this is one query per batch-size
+        // resources rather than one per resource
+        for (T resource : resources) {
+            initialize(resource, associations);
+        }
+        return resources;
+    }
+
+    /**
+     * Retrieves the resources of type klass with the given IDs, in a single
+     * transaction, with one IN query per IN_CHUNK_SIZE IDs rather than a
+     * query (and transaction) per ID. IDs with no resource of type klass are
+     * skipped.
+     * @param klass The type of resources to retrieve.
+     * @param ids The IDs of the resources, of klass's identifier type (see
+     *        ModelRegistry.Model#parseId), without duplicates.
+     * @param associations The lazy associations to fetch along with the
+     *        resources (see isAssociation).
+     * @return The resources found, in no particular order.
+     */
+    public <T> List<T> getResources(Class<T> klass, Collection<? extends Serializable> ids,
+                                    Collection<String> associations) {
+        if (shards.isSharded(klass)) {
+            return sharded.getResources(klass, ids, associations);
+        }
+        List<T> resources = getResources(sessionFactory, klass, ids, associations);
+        sharded.gatherAssociations(resources, associations);
+        return resources;
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> List<T> getResources(SessionFactory factory, Class<T> klass, Collection<? extends Serializable> ids,
+                             Collection<String> associations) {
+        List<Serializable> remaining = new ArrayList<Serializable>(ids);
+        String identifierName = getIdentifierName(klass);
+        Session session = factory.getCurrentSession();
+        Transaction tx = null;
+        List<T> resources = new ArrayList<T>(ids.size());
+        try {
+            tx = beginRead(session);
+            for (int from = 0; from < remaining.size(); from += IN_CHUNK_SIZE) {
+                List<Serializable> chunk = remaining.subList(from, Math.min(from + IN_CHUNK_SIZE, remaining.size()));
+                Criteria criteria = session.createCriteria(klass)
+                        .add(Restrictions.in(identifierName, chunk))
+                        .setCacheMode(CacheMode.IGNORE);
+                resources.addAll((List<T>) criteria.list());
+            }
+            // batch fetched, as for pages
+            for (T resource : resources) {
+                initialize(resource, associations);
+            }
+            tx.commit();
+            applyPending(resources);
+        } catch (HibernateException e) {
+            if (tx != null) {
+                tx.rollback();
+            }
+            throw e;
+        }
+        return resources;
+    }
+
+    /**
+     * Streams all of the resources of type klass to the provided handler as
+     * the rows arrive from the database, instead of materializing the whole
+     * table as a List. Resources are read and handled a fetch-sized chunk at
+     * a time, and evicted from the session once handled, so memory use stays
+     * flat regardless of the table size.
+     * @param klass The type of resources to retrieve.
+     * @param associations The lazy associations to fetch along with the
+     *        resources (see isAssociation).
+     * @param handler The callback to pass each resource to.
+     * @throws IOException If the handler fails; the transaction is rolled back.
+     */
+    public void scrollResources(Class<?> klass, Collection<String> associations, ResourceHandler handler) throws IOException {
+        scrollResources(klass, new ResourceQuery(), associations, handler);
+    }
+
+    /**
+     * Like scrollResources(Class, Collection, ResourceHandler), but streams
+     * only the resources that match query, in query's sort order (then by
+     * ID).
+     * @param klass The type of resources to retrieve.
+     * @param query The conditions to filter by and properties to sort by.
+     * @param associations The lazy associations to fetch along with the
+     *        resources (see isAssociation).
+     * @param handler The callback to pass each resource to.
+     * @throws IOException If the handler fails; the transaction is rolled back.
+     */
+    public void scrollResources(Class<?> klass, ResourceQuery query, Collection<String> associations,
+                                ResourceHandler handler) throws IOException {
+        if (shards.isSharded(klass)) {
+            sharded.scrollResources(klass, query, associations, handler);
+            return;
+        }
+        Session session = sessionFactory.getCurrentSession();
+        Transaction tx = null;
+        ScrollableResults results = null;
+        try {
+            tx = beginRead(session);
+            results = scroll(session, klass, query);
+            // work in chunks so that associations can be batch fetched for
+            // the whole chunk instead of one resource at a time
+            List<Object> chunk = new ArrayList<Object>(scrollFetchSize);
+            while (results.next()) {
+                chunk.add(results.get(0));
+                if (chunk.size() == scrollFetchSize) {
+                    handleChunk(session, chunk, associations, handler);
+                }
+            }
+            handleChunk(session, chunk, associations, handler);
+            results.close();
+            tx.commit();
+        } catch (HibernateException e) {
+            if (tx != null) {
+                tx.rollback();
+            }
+            throw e;
+        } catch (IOException e) {
+            // most likely the client went away mid-stream
+            if (tx != null) {
+                tx.rollback();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Statistics computed by getStatistics, and until when they're reused.
+     */
+    private static class CachedStatistics {
+
+        private final ResourceStatistics statistics;
+        private final long expires;
+
+        public CachedStatistics(ResourceStatistics statistics, long expires) {
+            this.statistics = statistics;
+            this.expires = expires;
+        }
+
+    }
+
+    /**
+     * Opens a forward-only stream of the resources of type klass that match
+     * query, in session's transaction.
+     */
+    ScrollableResults scroll(Session session, Class<?> klass, ResourceQuery query) {
+        Criteria criteria = createCriteria(session, klass, query);
+        // nothing we stream out will be modified, so skip the snapshots
+        // Hibernate would otherwise keep around for dirty checking
+        criteria.setReadOnly(true);
+        criteria.setFetchSize(scrollFetchSize);
+        // nor should a full table scan evict the hot by-ID cache entries
+        criteria.setCacheMode(CacheMode.IGNORE);
+        return criteria.scroll(ScrollMode.FORWARD_ONLY);
+    }
+
+    /**
+     * Orders resources as createCriteria does: by query's sort properties,
+     * then by ID.
+     */
+    Comparator<Object> getComparator(final ResourceQuery query) {
+        return new Comparator<Object>() {
+            public int compare(Object a, Object b) {
+                ClassMetadata metadataA = sessionFactory.getClassMetadata(Hibernate.getClass(a));
+                ClassMetadata metadataB = sessionFactory.getClassMetadata(Hibernate.getClass(b));
+                for (ResourceQuery.Sort sort : query.getSorts()) {
+                    int comparison = compareValues(metadataA.getPropertyValue(a, sort.getProperty()),
+                            metadataB.getPropertyValue(b, sort.getProperty()));
+                    if (comparison != 0) {
+                        return sort.isAscending() ? comparison : -comparison;
+                    }
+                }
+                return compareValues(metadataA.getIdentifier(a, null), metadataB.getIdentifier(b, null));
+            }
+        };
+    }
+
+    // nulls first, as MySQL and H2 sort them in ascending order
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        return ((Comparable<Object>) a).compareTo(b);
+    }
+
+    /**
+     * Builds a Criteria query for the resources of type klass that match
+     * query, ordered by query's sort properties and then by ID. Values are
+     * bound as parameters, never spliced into the SQL.
+     */
+    private Criteria createCriteria(Session session, Class<?> klass, ResourceQuery query) {
+        Criteria criteria = session.createCriteria(klass);
+        for (ResourceQuery.Condition condition : query.getConditions()) {
+            criteria.add(compare(condition.getProperty(), condition.getOperator(), condition.getValue()));
+        }
+        for (ResourceQuery.Sort sort : query.getSorts()) {
+            criteria.addOrder(sort.isAscending() ? Order.asc(sort.getProperty()) : Order.desc(sort.getProperty()));
+        }
+        // the ID breaks ties, which keeps the order stable (and pageable)
+        criteria.addOrder(Order.asc(getIdentifierName(klass)));
+        return criteria;
+    }
+
+    private static Criterion compare(String property, ResourceQuery.Operator operator, Object value) {
+        switch (operator) {
+        case EQ:
+            return Restrictions.eq(property, value);
+        case NE:
+            return Restrictions.ne(property, value);
+        case GT:
+            return Restrictions.gt(property, value);
+        case GTE:
+            return Restrictions.ge(property, value);
+        case LT:
+            return Restrictions.lt(property, value);
+        case LTE:
+            return Restrictions.le(property, value);
+        default:
+            throw new IllegalArgumentException("Unknown operator " + operator);
+        }
+    }
+
+    /**
+     * Restricts a query's results to those that come after the resource with
+     * ID after in its sort order. With sort properties s1..sn, that's
+     * (s1 > v1) or (s1 = v1 and s2 > v2) or ... or (s1..sn = v1..vn and
+     * id > after), where v1..vn are after's own values ("<" for descending
+     * properties). The database can answer this from an index on s1.
+     * @param cursor The resource with ID after (see getCursor).
+     */
+    private Criterion after(Class<?> klass, ResourceQuery query, Serializable after, Object cursor) {
+        String idName = getIdentifierName(klass);
+        List<ResourceQuery.Sort> sorts = query.getSorts();
+        if (sorts.isEmpty()) {
+            return Restrictions.gt(idName, after);
+        }
+        ClassMetadata metadata = sessionFactory.getClassMetadata(Hibernate.getClass(cursor));
+        Disjunction following = Restrictions.disjunction();
+        Conjunction ties = Restrictions.conjunction();
+        for (ResourceQuery.Sort sort : sorts) {
+            Object value = metadata.getPropertyValue(cursor, sort.getProperty());
+            ResourceQuery.Operator operator = sort.isAscending() ? ResourceQuery.Operator.GT : ResourceQuery.Operator.LT;
+            following.add(Restrictions.conjunction().add(ties).add(compare(sort.getProperty(), operator, value)));
+            ties = (Conjunction) Restrictions.conjunction().add(ties).add(Restrictions.eq(sort.getProperty(), value));
+        }
+        following.add(Restrictions.conjunction().add(ties).add(Restrictions.gt(idName, after)));
+        return following;
+    }
+
+    /**
+     * @return The resource with ID after, whose sort values a page that
+     *         starts after it is restricted by (see after), or null if
+     *         there's no after or query isn't sorted (the ID is enough).
+     * @throws ObjectNotFoundException If the resource doesn't exist.
+     */
+    Object getCursor(Session session, Class<?> klass, ResourceQuery query, Serializable after) {
+        if (after == null || query.getSorts().isEmpty()) {
+            return null;
+        }
+        Object cursor = session.get(klass, after);
+        if (cursor == null) {
+            throw new ObjectNotFoundException(after, klass.getName());
+        }
+        return cursor;
+    }
+
+    /**
+     * Checks whether resources of type klass can be filtered and sorted by
+     * the property name, i.e. whether it's a plain (non-association) property
+     * of klass, other than its version.
+     * @param klass A mapped model class.
+     * @param name The property name to check.
+     * @return The Java type of the property's values (e.g., Integer,
+     *         String), or null if it can't be filtered by.
+     */
+    public Class<?> getFilterableType(Class<?> klass, String name) {
+        ClassMetadata metadata = sessionFactory.getClassMetadata(klass);
+        int index = Arrays.asList(metadata.getPropertyNames()).indexOf(name);
+        if (index < 0 || index == metadata.getVersionProperty() || metadata.getPropertyType(name).isAssociationType()) {
+            return null;
+        }
+        return metadata.getPropertyType(name).getReturnedClass();
+    }
+
+    /**
+     * Computes statistics of integral properties of the resources of type
+     * klass that match query (see ResourceStatistics), overall and, if
+     * asked, for each value of another property, in the database without
+     * reading the resources themselves: one aggregate query finds each
+     * property's count, minimum, maximum and sum, then one per property
+     * counts its values in buckets spread evenly between that minimum and
+     * maximum. For a sharded class, every shard runs the same queries, with
+     * the same buckets, and their results are added up.
+     *
+     * Statistics are reused for stats_ttl milliseconds, so they may be that
+     * far out of date, and concurrent reads of the same ones share a single
+     * computation (waiting up to load_timeout for it, as in getResource).
+     * @param klass The type of resources.
+     * @param query The conditions to filter by; its sorts are ignored.
+     * @param properties The names of the properties, at least one, each
+     *        filterable (see getFilterableType) with Integer or Long values.
+     * @param group The name of the property to group by, either filterable
+     *        or a reference to another resource (e.g., a vehicle's owner, in
+     *        which case the groups are by the owner's ID), or null.
+     * @return The statistics, which mustn't be modified.
+     */
+    public ResourceStatistics getStatistics(final Class<?> klass, final ResourceQuery query,
+                                            final List<String> properties, final String group) {
+        StringBuilder key = new StringBuilder(klass.getName()).append(' ').append(properties).append(' ').append(group);
+        for (ResourceQuery.Condition condition : query.getConditions()) {
+            key.append(' ').append(condition.getProperty()).append(' ').append(condition.getOperator())
+                    .append(' ').append(condition.getValue());
+        }
+        final String statisticsKey = key.toString();
+        if (statsTtl > 0) {
+            synchronized (statistics) {
+                CachedStatistics cached = statistics.get(statisticsKey);
+                if (cached != null && System.currentTimeMillis() < cached.expires) {
+                    return cached.statistics;
+                }
+            }
+        }
+        return statisticsLoads.execute(statisticsKey, new SingleFlight.Call<ResourceStatistics, RuntimeException>() {
+            public ResourceStatistics call() {
+                ResourceStatistics computed = computeStatistics(klass, query, properties, group);
+                if (statsTtl > 0) {
+                    synchronized (statistics) {
+                        statistics.put(statisticsKey,
+                                new CachedStatistics(computed, System.currentTimeMillis() + statsTtl));
+                    }
+                }
+                return computed;
+            }
+        });
+    }
+
+    private ResourceStatistics computeStatistics(Class<?> klass, ResourceQuery query, List<String> properties,
+                                                 String group) {
+        String groupBy = null;
+        if (group != null) {
+            boolean reference = sessionFactory.getClassMetadata(klass).getPropertyType(group).isEntityType();
+            groupBy = "e." + group + (reference ? ".id" : "");
+        }
+        StringBuilder where = new StringBuilder(" from ").append(klass.getName()).append(" e");
+        List<ResourceQuery.Condition> conditions = query.getConditions();
+        for (int i = 0; i < conditions.size(); i++) {
+            ResourceQuery.Condition condition = conditions.get(i);
+            where.append(i == 0 ? " where " : " and ").append("e.").append(condition.getProperty())
+                    .append(' ').append(symbol(condition.getOperator())).append(" :c").append(i);
+        }
+
+        // count, min, max and sum of each property, then the group's value
+        StringBuilder totals = new StringBuilder("select count(*)");
+        for (String property : properties) {
+            String path = "e." + property;
+            totals.append(", count(").append(path).append("), min(").append(path).append("), max(").append(path)
+                    .append("), sum(").append(path).append(')');
+        }
+        if (groupBy != null) {
+            totals.append(", ").append(groupBy).append(where).append(" group by ").append(groupBy);
+        } else {
+            totals.append(where);
+        }
+        ResourceStatistics total = new ResourceStatistics(null, properties);
+        // sorted by value, as the rows of different shards interleave
+        Map<Object, ResourceStatistics> groups = new TreeMap<Object, ResourceStatistics>(new Comparator<Object>() {
+            public int compare(Object a, Object b) {
+                return compareValues(a, b);
+            }
+        });
+        for (Object[] row : aggregate(klass, query, Collections.singletonList(totals.toString())).get(0)) {
+            addTotals(total, properties, row);
+            if (groupBy != null) {
+                Object value = row[row.length - 1];
+                ResourceStatistics groupStatistics = groups.get(value);
+                if (groupStatistics == null) {
+                    groupStatistics = new ResourceStatistics(value, properties);
+                    groups.put(value, groupStatistics);
+                }
+                addTotals(groupStatistics, properties, row);
+            }
+        }
+        if (groupBy != null) {
+            total.setGroups(new ArrayList<ResourceStatistics>(groups.values()));
+        }
+
+        // the bucket of each value and how many have it (and the group's
+        // value), for each property that has any values; the buckets are
+        // computed from literals, not parameters, so that the database can
+        // tell the grouping from the selected column
+        List<String> histogrammed = new ArrayList<String>();
+        List<String> histograms = new ArrayList<String>();
+        for (String property : properties) {
+            PropertyStatistics overall = total.getProperty(property);
+            if (overall.getCount() == 0) {
+                continue;
+            }
+            long min = overall.getMin();
+            long width = Math.max(1, (overall.getMax() - min + PropertyStatistics.BUCKETS) / PropertyStatistics.BUCKETS);
+            int size = (int) ((overall.getMax() - min) / width + 1);
+            overall.setBuckets(min, width, size);
+            for (ResourceStatistics groupStatistics : groups.values()) {
+                groupStatistics.getProperty(property).setBuckets(min, width, size);
+            }
+            String bucket = "floor((e." + property + (min < 0 ? " + " + -min : " - " + min) + ") / " + width + ")";
+            String groupColumn = groupBy == null ? "" : ", " + groupBy;
+            histogrammed.add(property);
+            histograms.add("select " + bucket + ", count(*)" + groupColumn + where
+                    + (conditions.isEmpty() ? " where " : " and ") + "e." + property + " is not null group by "
+                    + bucket + groupColumn);
+        }
+        if (histograms.isEmpty()) {
+            return total;
+        }
+        List<List<Object[]>> rows = aggregate(klass, query, histograms);
+        for (int i = 0; i < histogrammed.size(); i++) {
+            String property = histogrammed.get(i);
+            for (Object[] row : rows.get(i)) {
+                int index = ((Number) row[0]).intValue();
+                long count = ((Number) row[1]).longValue();
+                total.getProperty(property).addToBucket(index, count);
+                if (groupBy != null) {
+                    groups.get(row[2]).getProperty(property).addToBucket(index, count);
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Adds a row of getStatistics' first query (count(*), then count, min,
+     * max and sum of each property) to statistics.
+     */
+    private static void addTotals(ResourceStatistics statistics, List<String> properties, Object[] row) {
+        statistics.addCount(((Number) row[0]).longValue());
+        for (int i = 0; i < properties.size(); i++) {
+            int column = 1 + 4 * i;
+            statistics.getProperty(properties.get(i)).add(((Number) row[column]).longValue(),
+                    (Number) row[column + 1], (Number) row[column + 2], (Number) row[column + 3]);
+        }
+    }
+
+    private static String symbol(ResourceQuery.Operator operator) {
+        switch (operator) {
+        case EQ:
+            return "=";
+        case NE:
+            return "<>";
+        case GT:
+            return ">";
+        case GTE:
+            return ">=";
+        case LT:
+            return "<";
+        case LTE:
+            return "<=";
+        default:
+            throw new IllegalArgumentException("Unknown operator " + operator);
+        }
+    }
+
+    /**
+     * Runs the HQL queries, which select from "e" with query's conditions
+     * as parameters :c0, :c1, etc., in a single read transaction (one per
+     * shard, for a sharded klass).
+     * @return Each query's rows, those of every shard together.
+     */
+    private List<List<Object[]>> aggregate(Class<?> klass, ResourceQuery query, List<String> hqls) {
+        if (shards.isSharded(klass)) {
+            return sharded.aggregate(query, hqls);
+        }
+        return aggregate(sessionFactory, query, hqls);
+    }
+
+    @SuppressWarnings("unchecked")
+    List<List<Object[]>> aggregate(SessionFactory factory, ResourceQuery query, List<String> hqls) {
+        Session session = factory.getCurrentSession();
+        Transaction tx = null;
+        List<List<Object[]>> rows = new ArrayList<List<Object[]>>();
+        try {
+            tx = beginRead(session);
+            for (String hql : hqls) {
+                Query aggregateQuery = session.createQuery(hql);
+                List<ResourceQuery.Condition> conditions = query.getConditions();
+                for (int i = 0; i < conditions.size(); i++) {
+                    aggregateQuery.setParameter("c" + i, conditions.get(i).getValue());
+                }
+                rows.add((List<Object[]>) aggregateQuery.list());
+            }
+            tx.commit();
+        } catch (HibernateException e) {
+            if (tx != null) {
+                tx.rollback();
+            }
+            throw e;
+        }
+        return rows;
+    }
+
+    /**
+     * Hands a chunk of scrolled resources to the handler, then evicts them
+     * (along with anything loaded alongside them) and empties the chunk.
+     */
+    private void handleChunk(Session session, List<Object> chunk, Collection<String> associations,
+                             ResourceHandler handler) throws IOException {
+        for (Object resource : chunk) {
+            initialize(resource, associations);
+        }
+        // the chunk is read-only, so this won't be written back
+        applyPending(chunk);
+        sharded.gatherAssociations(chunk, associations);
+        for (Object resource : chunk) {
+            handler.handle(resource);
+        }
+        session.clear();
+        chunk.clear();
+    }
+
+    /**
+     * Fetches the named lazy associations of resource, if it has them (e.g.,
+     * in a list of Persons, only the Owners have vehicles), other than
+     * those of sharded resources (see ShardedResources#gatherAssociations).
+     * Must be called with the resource's session open.
+     * @param resource A resource attached to the current session.
+     * @param associations The names of the associations to fetch.
+     */
+    void initialize(Object resource, Collection<String> associations) {
+        if (associations.isEmpty()) {
+            return;
+        }
+        ClassMetadata metadata = sessionFactory.getClassMetadata(Hibernate.getClass(resource));
+        List<String> propertyNames = Arrays.asList(metadata.getPropertyNames());
+        for (String association : associations) {
+            if (propertyNames.contains(association) && sharded.getElementClass(metadata, association) == null) {
+                Hibernate.initialize(metadata.getPropertyValue(resource, association));
+            }
+        }
+    }
+
+    /**
+     * Overlays any updates of the resources still waiting in the
+     * WriteBehindBuffer, so that reads see them before they're written. The
+     * resources must be detached or read-only, or the overlay would be
+     * written back.
+     */
+    void applyPending(List<?> resources) {
+        if (WriteBehindBuffer.getBuffer().isEmpty()) {
+            return;
+        }
+        for (Object resource : resources) {
+            applyPending(resource);
+        }
+    }
+
+    private void applyPending(Object resource) {
+        WriteBehindBuffer buffer = WriteBehindBuffer.getBuffer();
+        if (buffer.isEmpty()) {
+            return;
+        }
+        Object pending = buffer.getPending(Hibernate.getClass(resource), getIdentifier(resource));
+        if (pending != null) {
+            copyProperties(pending, resource);
+        }
+    }
+
+    /**
+     * @param klass A mapped model class.
+     * @return The topmost mapped superclass of klass (e.g., Vehicle for Car),
+     *         which owns the identifiers klass shares with its siblings.
+     */
+    public Class<?> getRootClass(Class<?> klass) {
+        Class<?> root = klass;
+        while (root.getSuperclass() != null && sessionFactory.getClassMetadata(root.getSuperclass()) != null) {
+            root = root.getSuperclass();
+        }
+        return root;
+    }
+
+    /**
+     * Works out which classes of resources a read of klass (with the given
+     * associations) depends on: klass and its mapped subclasses (e.g.,
+     * Person and Owner), plus the classes the associations hold (e.g., Car
+     * and Truck for vehicles).
+     * @param klass A mapped model class.
+     * @param associations The lazy associations included in the read (see
+     *        isAssociation).
+     * @return The mapped classes, any change to which may change the read.
+     */
+    public Set<Class<?>> getDependencies(Class<?> klass, Collection<String> associations) {
+        Set<Class<?>> dependencies = getMappedSubclasses(klass);
+        for (Class<?> subclass : new ArrayList<Class<?>>(dependencies)) {
+            ClassMetadata metadata = sessionFactory.getClassMetadata(subclass);
+            List<String> names = Arrays.asList(metadata.getPropertyNames());
+            for (String association : associations) {
+                if (!names.contains(association)) {
+                    continue;
+                }
+                Type type = metadata.getPropertyType(association);
+                if (type.isCollectionType()) {
+                    Type elementType = ((CollectionType) type).getElementType((SessionFactoryImplementor) sessionFactory);
+                    dependencies.addAll(getMappedSubclasses(elementType.getReturnedClass()));
+                }
+            }
+        }
+        return dependencies;
+    }
+
+    /**
+     * @return The mapped classes assignable to klass, klass included.
+     */
+    private Set<Class<?>> getMappedSubclasses(Class<?> klass) {
+        Set<Class<?>> subclasses = new HashSet<Class<?>>();
+        for (ClassMetadata metadata : sessionFactory.getAllClassMetadata().values()) {
+            if (klass.isAssignableFrom(metadata.getMappedClass())) {
+                subclasses.add(metadata.getMappedClass());
+            }
+        }
+        return subclasses;
+    }
+
+    /**
+     * Checks whether name is an association that can be fetched for
+     * resources of type klass, i.e. a collection property of klass or of
+     * one of its mapped subclasses (so "vehicles" is valid for Person, since
+     * some Persons are Owners).
+     * @param klass A mapped model class.
+     * @param name The property name to check.
+     * @return true if name can be passed to the CRUD methods to be fetched.
+     */
+    public boolean isAssociation(Class<?> klass, String name) {
+        for (ClassMetadata metadata : sessionFactory.getAllClassMetadata().values()) {
+            if (klass.isAssignableFrom(metadata.getMappedClass())
+                    && Arrays.asList(metadata.getPropertyNames()).contains(name)
+                    && metadata.getPropertyType(name).isCollectionType()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether name is a many-to-one property of klass, i.e. a
+     * reference to another resource (e.g., a Vehicle's owner).
+     * @param klass A mapped model class.
+     * @param name The property name to check.
+     * @return true if resources of type klass can be grouped by name (see
+     *         getStatistics).
+     */
+    public boolean isReference(Class<?> klass, String name) {
+        ClassMetadata metadata = sessionFactory.getClassMetadata(klass);
+        return Arrays.asList(metadata.getPropertyNames()).contains(name)
+                && metadata.getPropertyType(name).isEntityType();
+    }
+
+    /**
+     * Snapshots the counters (hits, misses, size, evictions) of each of the
+     * second-level cache regions, for monitoring.
+     * @return One Statistics object per cache region.
+     */
+    public List<Statistics> getCacheStatistics() {
+        List<Statistics> statistics = new ArrayList<Statistics>();
+        CacheManager cacheManager = CacheManager.getInstance();
+        for (String name : cacheManager.getCacheNames()) {
+            statistics.add(cacheManager.getCache(name).getStatistics());
+        }
+        return statistics;
+    }
+
+    /**
+     * Snapshots the JDBC connection pool: active/idle connections, waiting
+     * threads and the time spent waiting for connections.
+     * @return The pool statistics, or null if the configured connection
+     *         provider isn't a MeteredConnectionProvider.
+     * @throws SQLException If the pool can't report on itself.
+     */
+    public ConnectionPoolStatistics getPoolStatistics() throws SQLException {
+        return getPoolStatistics(sessionFactory);
+    }
+
+    private static ConnectionPoolStatistics getPoolStatistics(SessionFactory factory) throws SQLException {
+        ConnectionProvider provider = ((SessionFactoryImplementor) factory)
+                .getServiceRegistry().getService(ConnectionProvider.class);
+        if (!(provider instanceof MeteredConnectionProvider)) {
+            return null;
+        }
+        return ((MeteredConnectionProvider) provider).getStatistics();
+    }
+
+    /**
+     * Snapshots the connection pool of each read replica (see
+     * getPoolStatistics).
+     * @return One ConnectionPoolStatistics per replica, in the order
+     *         configured; empty if there are no replicas.
+     * @throws SQLException If a pool can't report on itself.
+     */
+    public List<ConnectionPoolStatistics> getReplicaPoolStatistics() throws SQLException {
+        ConnectionProvider provider = ((SessionFactoryImplementor) sessionFactory)
+                .getServiceRegistry().getService(ConnectionProvider.class);
+        if (!(provider instanceof ReplicaRoutingConnectionProvider)) {
+            return Collections.emptyList();
+        }
+        return ((ReplicaRoutingConnectionProvider) provider).getReplicaStatistics();
+    }
+
+    /**
+     * Snapshots the connection pool of each shard (see getPoolStatistics);
+     * a shard that's the primary reports the primary's pool.
+     * @return One ConnectionPoolStatistics per shard (null if its
+     *         connection provider isn't a MeteredConnectionProvider), in the
+     *         order configured; empty if there are no shards.
+     * @throws SQLException If a pool can't report on itself.
+     */
+    public List<ConnectionPoolStatistics> getShardPoolStatistics() throws SQLException {
+        List<ConnectionPoolStatistics> statistics = new ArrayList<ConnectionPoolStatistics>();
+        if (shards.isSharding()) {
+            for (SessionFactory shard : shards.getShards()) {
+                statistics.add(getPoolStatistics(shard));
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * @param klass A mapped model class.
+     * @return The name of klass's identifier property (e.g., "id", "vin").
+     */
+    public String getIdentifierName(Class<?> klass) {
+        return sessionFactory.getClassMetadata(klass).getIdentifierPropertyName();
+    }
+
+    /**
+     * @param resource An instance of a mapped model class.
+     * @return The identifier of the resource.
+     */
+    public Serializable getIdentifier(Object resource) {
+        return sessionFactory.getClassMetadata(Hibernate.getClass(resource)).getIdentifier(resource, null);
+    }
+
     /**
      * Retrieves the resource of type klass with ID id. Returns null if the
      * resource does not exist.
@@ -96,14 +1216,87 @@ public class HibernateManager {
      * @return
      */
     public Object getResource(Class<?> klass, Serializable id) {
-        Session session = sessionFactory.getCurrentSession();
+        return getResource(klass, id, Collections.<String>emptySet());
+    }
+
+    /**
+     * Retrieves the resource of type klass with ID id, along with the named
+     * lazy associations. Returns null if the resource does not exist.
+     *
+     * Concurrent reads of the same resource share a single load (and its
+     * result, which must therefore not be modified), as long as they'd read
+     * from the same database and nothing they depend on has committed a
+     * change since the load began. Reads that wait longer than load_timeout
+     * for the load are turned away with an OverloadedException.
+     * @param klass The type of the resource.
+     * @param id The ID of the resource.
+     * @param associations The lazy associations to fetch along with the
+     *        resource (see isAssociation).
+     * @return The resource, or null.
+     */
+    public Object getResource(final Class<?> klass, final Serializable id, final Collection<String> associations) {
+        Set<Class<?>> dependencies = getDependencies(klass, associations);
+        // buffered updates are laid over each load, and don't show up in
+        // the ChangeFeed until they're written, so loads can't be shared
+        WriteBehindBuffer buffer = WriteBehindBuffer.getBuffer();
+        if (!buffer.isEmpty()) {
+            for (Class<?> dependency : dependencies) {
+                if (buffer.isBuffered(dependency)) {
+                    return loadResource(klass, id, associations);
+                }
+            }
+        }
+        List<Object> key = Arrays.<Object>asList(changeFeed.getLastSequence(dependencies), readsFromPrimary(),
+                klass, id, new HashSet<String>(associations));
+        return loads.execute(key, new SingleFlight.Call<Object, RuntimeException>() {
+            public Object call() {
+                return loadResource(klass, id, associations);
+            }
+        });
+    }
+
+    /**
+     * Looks for the resource of type klass with ID id in the second-level
+     * cache only, without a session or a trip to the database.
+     * @param klass The type of the resource.
+     * @param id The ID of the resource.
+     * @return true if the cache holds the resource, as a klass; false if it
+     *         doesn't (the resource may still exist), or klass isn't cached.
+     */
+    public boolean isCached(Class<?> klass, Serializable id) {
+        SessionFactoryImplementor factory = (SessionFactoryImplementor) getSessionFactory(klass, id);
+        EntityPersister persister = factory.getEntityPersister(klass.getName());
+        if (!persister.hasCache()) {
+            return false;
+        }
+        // the cache is shared with klass's siblings (e.g., cars and trucks),
+        // so check which one the entry is
+        CacheKey key = new CacheKey(id, persister.getIdentifierType(), persister.getRootEntityName(), null, factory);
+        try {
+            Object entry = persister.getCacheAccessStrategy().get(key,
+                    factory.getSettings().getRegionFactory().nextTimestamp());
+            if (!(entry instanceof CacheEntry)) {
+                return false;
+            }
+            String subclass = ((CacheEntry) entry).getSubclass();
+            return klass.isAssignableFrom(factory.getEntityPersister(subclass).getMappedClass());
+        } catch (CacheException e) {
+            return false;
+        }
+    }
+
+    private Object loadResource(Class<?> klass, Serializable id, Collection<String> associations) {
+        Session session = getSessionFactory(klass, id).getCurrentSession();
         Transaction tx = null;
         Object resource = null;
         try {
-            tx = session.beginTransaction();
+            tx = beginRead(session);
             // use Session#get, not Session#load to avoid an exception if the
             // resource doesn't exist
             resource = session.get(klass, id);
+            if (resource != null) {
+                initialize(resource, associations);
+            }
             tx.commit();
         } catch (HibernateException e) {
             if (tx != null) {
@@ -111,9 +1304,29 @@ public class HibernateManager {
             }
             throw e;
         }
+        if (resource != null) {
+            applyPending(resource);
+            sharded.gatherAssociations(Collections.singletonList(resource), associations);
+        }
         return resource;
     }
 
+    /**
+     * @return The number of reads that shared another's load (see
+     *         getResource) instead of going to the database.
+     */
+    public long getCoalescedLoads() {
+        return loads.getCoalesced();
+    }
+
+    /**
+     * @return The number of reads turned away after waiting load_timeout for
+     *         another's load.
+     */
+    public long getTimedOutLoads() {
+        return loads.getTimedOut();
+    }
+
     /**
      * Creates a record for the provided resource in Hibernate. Throws an
      * exception if a resource with the same ID already exists.
@@ -121,7 +1334,7 @@ public class HibernateManager {
      * @return The ID of the saved resource.
      */
     public Serializable createResource(Object resource) {
-        Session session = sessionFactory.getCurrentSession();
+        Session session = getSessionFactory(resource).getCurrentSession();
         Transaction tx = null;
         Serializable id = null;
         try {
@@ -138,6 +1351,90 @@ public class HibernateManager {
         return id;
     }
 
+    /**
+     * Creates records for all of the provided resources in a single
+     * transaction. The inserts go out in JDBC batches of
+     * hibernate.jdbc.batch_size, and the session is flushed and cleared
+     * after each batch so it never holds more than one batch of resources.
+     * Either every resource is created or, if an exception is thrown, none
+     * of them are (but see commit for resources spread over shards).
+     * @param resources The resources to save in Hibernate.
+     * @return The IDs of the saved resources, in the same order.
+     */
+    public List<Serializable> createResources(List<?> resources) {
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        try {
+            for (Map.Entry<SessionFactory, List<Object>> part : partition(resources).entrySet()) {
+                Session session = part.getKey().getCurrentSession();
+                transactions.add(session.beginTransaction());
+                // a bulk load would otherwise push every new row into the cache
+                session.setCacheMode(CacheMode.IGNORE);
+                List<Object> partResources = part.getValue();
+                for (int i = 0; i < partResources.size(); i++) {
+                    session.save(partResources.get(i));
+                    if ((i + 1) % batchSize == 0) {
+                        session.flush();
+                        session.clear();
+                    }
+                }
+                session.flush();
+            }
+            commit(transactions);
+        } catch (HibernateException e) {
+            rollback(transactions);
+            throw e;
+        }
+        // saving sets the IDs of resources with generated ones
+        List<Serializable> ids = new ArrayList<Serializable>(resources.size());
+        for (Object resource : resources) {
+            ids.add(getIdentifier(resource));
+        }
+        return ids;
+    }
+
+    /**
+     * Splits resources by the database each one belongs in (see
+     * getSessionFactory), keeping their order within each part.
+     */
+    private Map<SessionFactory, List<Object>> partition(List<?> resources) {
+        Map<SessionFactory, List<Object>> parts = new LinkedHashMap<SessionFactory, List<Object>>();
+        for (Object resource : resources) {
+            SessionFactory factory = getSessionFactory(resource);
+            List<Object> part = parts.get(factory);
+            if (part == null) {
+                part = new ArrayList<Object>();
+                parts.put(factory, part);
+            }
+            part.add(resource);
+        }
+        return parts;
+    }
+
+    /**
+     * Commits the transactions of a write spread over several databases,
+     * each of which has already been flushed, so any constraint violation
+     * or stale version has already surfaced and rolled all of them back.
+     * There's no two-phase commit, though, so if a commit itself fails
+     * (e.g., the connection drops), the databases committed before it keep
+     * their part of the write.
+     */
+    static void commit(List<Transaction> transactions) {
+        for (Transaction tx : transactions) {
+            tx.commit();
+        }
+    }
+
+    /**
+     * Rolls back whichever of the transactions haven't been committed.
+     */
+    static void rollback(List<Transaction> transactions) {
+        for (Transaction tx : transactions) {
+            if (!tx.wasCommitted() && !tx.wasRolledBack()) {
+                tx.rollback();
+            }
+        }
+    }
+
     /**
      * Updates the resource of type klass with ID id to match the provided
      * resource. If a resource matching klass and id doesn't exist in
@@ -147,17 +1444,91 @@ public class HibernateManager {
      * @param id The id of the resource to update.
      */
     public void updateResource(Object resource, Class<?> klass, Serializable id) {
-        Session session = sessionFactory.getCurrentSession();
+        updateResource(resource, klass, id, null);
+    }
+
+    /**
+     * Updates the resource of type klass with ID id to match the provided
+     * resource, provided that it's still at expectedVersion. No row lock is
+     * taken: the UPDATE only matches the row if its version hasn't moved, and
+     * Hibernate throws a StaleObjectStateException if it has. On success the
+     * resource's version is set to the new version. An update of the resource
+     * still waiting in the WriteBehindBuffer is written first, and none can
+     * be buffered until this one is done (see WriteBehindBuffer#lock); the
+     * same goes for createOrUpdateResource and patchResource.
+     * @param resource The updated resource data.
+     * @param klass The type of resource to update.
+     * @param id The id of the resource to update.
+     * @param expectedVersion The version the caller last saw, or null to
+     *        update whatever version is current.
+     * @throws ObjectNotFoundException If the resource doesn't exist.
+     * @throws StaleObjectStateException If the resource isn't at
+     *         expectedVersion, or was changed concurrently.
+     */
+    public void updateResource(Object resource, Class<?> klass, Serializable id, Long expectedVersion) {
+        WriteBehindBuffer buffer = WriteBehindBuffer.getBuffer();
         Transaction tx = null;
+        // writing a pending update commits (and so closes) the thread's
+        // session, so this write's is only taken afterwards
+        buffer.lock(klass, id);
         try {
+            Session session = getSessionFactory(klass, id).getCurrentSession();
             tx = session.beginTransaction();
-            session.update(resource);
+            Object existingResource = session.get(klass, id);
+            if (existingResource == null) {
+                throw new ObjectNotFoundException(id, klass.getName());
+            }
+            merge(session, resource, existingResource, expectedVersion);
             tx.commit();
         } catch (HibernateException e) {
             if (tx != null) {
                 tx.rollback();
             }
             throw e;
+        } finally {
+            buffer.unlock(klass, id);
+        }
+    }
+
+    /**
+     * Updates many resources, each to match the given one (as updateResource
+     * does, without a version check), in a single transaction. The UPDATEs
+     * go out in JDBC batches of hibernate.jdbc.batch_size, and the session
+     * is flushed and cleared after each batch. Either every resource is
+     * updated or, if an exception is thrown, none of them are (but see
+     * commit for resources spread over shards).
+     * @param resources The updated resource data, each with its identifier.
+     * @throws ObjectNotFoundException If one of the resources doesn't exist.
+     * @throws StaleObjectStateException If one of the resources was changed
+     *         concurrently.
+     */
+    public void updateResources(List<?> resources) {
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        try {
+            for (Map.Entry<SessionFactory, List<Object>> part : partition(resources).entrySet()) {
+                Session session = part.getKey().getCurrentSession();
+                transactions.add(session.beginTransaction());
+                List<Object> partResources = part.getValue();
+                for (int i = 0; i < partResources.size(); i++) {
+                    Object resource = partResources.get(i);
+                    Class<?> klass = Hibernate.getClass(resource);
+                    Serializable id = getIdentifier(resource);
+                    Object existingResource = session.get(klass, id);
+                    if (existingResource == null) {
+                        throw new ObjectNotFoundException(id, klass.getName());
+                    }
+                    copyProperties(resource, existingResource);
+                    if ((i + 1) % batchSize == 0) {
+                        session.flush();
+                        session.clear();
+                    }
+                }
+                session.flush();
+            }
+            commit(transactions);
+        } catch (HibernateException e) {
+            rollback(transactions);
+            throw e;
         }
     }
 
@@ -172,30 +1543,168 @@ public class HibernateManager {
      * @return true if a new resource was created, false if an update occurred.
      */
     public boolean createOrUpdateResource(Object resource, Class<?> klass, Serializable id) {
-        Session session = sessionFactory.getCurrentSession();
+        return createOrUpdateResource(resource, klass, id, null);
+    }
+
+    /**
+     * Like createOrUpdateResource(Object, Class, Serializable), but an update
+     * only goes through if the resource is still at expectedVersion (see
+     * updateResource). On success the resource's version is set to the new
+     * version.
+     * @param resource The resource data to update or create.
+     * @param klass The type of the resource to update.
+     * @param id The id of the resource to update.
+     * @param expectedVersion The version the caller last saw, or null to
+     *        create or update unconditionally.
+     * @return true if a new resource was created, false if an update occurred.
+     * @throws StaleObjectStateException If the resource doesn't exist or isn't
+     *         at expectedVersion, or was changed concurrently.
+     */
+    public boolean createOrUpdateResource(Object resource, Class<?> klass, Serializable id, Long expectedVersion) {
+        WriteBehindBuffer buffer = WriteBehindBuffer.getBuffer();
         Transaction tx = null;
         boolean created = false;
+        buffer.lock(klass, id);
         try {
+            Session session = getSessionFactory(klass, id).getCurrentSession();
             tx = session.beginTransaction();
             // This is a great place to use Session#saveOrUpdate. Unfortunately,
             // that method doesn't tell us whether or not the resource was
             // created, which is needed for the proper PUT response code.
-            Object existingResource = session.get(klass, id, LockOptions.UPGRADE);
+            // There's no SELECT ... FOR UPDATE here: concurrent writers are
+            // caught by the version check when the UPDATE goes out instead.
+            Object existingResource = session.get(klass, id);
             if (existingResource == null) {
+                if (expectedVersion != null) {
+                    // the caller expected to be updating something
+                    throw new StaleObjectStateException(klass.getName(), id);
+                }
                 session.save(resource);
                 created = true;
             } else {
-                session.merge(resource);
+                merge(session, resource, existingResource, expectedVersion);
             }
             tx.commit();
         } catch (HibernateException e) {
-            e.printStackTrace();
             if (tx != null) {
                 tx.rollback();
             }
             throw e;
+        } finally {
+            buffer.unlock(klass, id);
         }
         return created;
     }
 
+    /**
+     * Applies patch to the resource of type klass with ID id, provided that
+     * it's still at expectedVersion. The patch is applied to the loaded
+     * resource itself, and the mappings are dynamic-update, so the UPDATE
+     * only sets the columns that actually changed (of only the tables they
+     * belong to); if nothing changed, nothing is written.
+     * @param klass The type of resource to patch.
+     * @param id The id of the resource to patch.
+     * @param patch The changes to make.
+     * @param expectedVersion The version the caller last saw, or null to
+     *        patch whatever version is current.
+     * @return The resource's version after the patch.
+     * @throws IOException If the patch fails; the transaction is rolled back.
+     * @throws ObjectNotFoundException If the resource doesn't exist.
+     * @throws StaleObjectStateException If the resource isn't at
+     *         expectedVersion, or was changed concurrently.
+     */
+    public Object patchResource(Class<?> klass, Serializable id, ResourcePatch patch, Long expectedVersion)
+            throws IOException {
+        WriteBehindBuffer buffer = WriteBehindBuffer.getBuffer();
+        Transaction tx = null;
+        Object version = null;
+        buffer.lock(klass, id);
+        try {
+            Session session = getSessionFactory(klass, id).getCurrentSession();
+            tx = session.beginTransaction();
+            Object existingResource = session.get(klass, id);
+            if (existingResource == null) {
+                throw new ObjectNotFoundException(id, klass.getName());
+            }
+            checkVersion(existingResource, expectedVersion);
+            patch.apply(existingResource);
+            session.flush();
+            version = getVersion(existingResource);
+            tx.commit();
+        } catch (HibernateException e) {
+            if (tx != null) {
+                tx.rollback();
+            }
+            throw e;
+        } catch (IOException e) {
+            if (tx != null) {
+                tx.rollback();
+            }
+            throw e;
+        } finally {
+            buffer.unlock(klass, id);
+        }
+        return version;
+    }
+
+    /**
+     * Checks that existingResource, as loaded, is at expectedVersion. Only
+     * the loaded version matters after that: the UPDATE only matches the row
+     * at that version, so concurrent writers are still caught when it goes
+     * out.
+     * @throws StaleObjectStateException If it isn't.
+     */
+    private void checkVersion(Object existingResource, Long expectedVersion) {
+        ClassMetadata metadata = sessionFactory.getClassMetadata(Hibernate.getClass(existingResource));
+        if (expectedVersion != null && !expectedVersion.equals(metadata.getVersion(existingResource))) {
+            throw new StaleObjectStateException(metadata.getEntityName(), metadata.getIdentifier(existingResource, null));
+        }
+    }
+
+    /**
+     * Copies the plain properties of resource onto existingResource, checking
+     * that existingResource is at expectedVersion (if given), and flushes so
+     * that the version is bumped. The new version is then copied back onto
+     * resource.
+     *
+     * Associations are left alone: they aren't part of the representations
+     * clients send (vehicles are attached through /owner/{id}/vehicles), and
+     * Session#merge would load an owner's entire vehicle collection just to
+     * replace it with an empty one.
+     */
+    private void merge(Session session, Object resource, Object existingResource, Long expectedVersion) {
+        ClassMetadata metadata = sessionFactory.getClassMetadata(Hibernate.getClass(resource));
+        // whatever version the client sent in the entity is ignored
+        checkVersion(existingResource, expectedVersion);
+        copyProperties(resource, existingResource);
+        session.flush();
+        metadata.setPropertyValue(resource, metadata.getPropertyNames()[metadata.getVersionProperty()],
+                getVersion(existingResource));
+    }
+
+    /**
+     * Copies the plain (non-version, non-association) properties of resource
+     * onto target.
+     */
+    private void copyProperties(Object resource, Object target) {
+        ClassMetadata metadata = sessionFactory.getClassMetadata(Hibernate.getClass(resource));
+        ClassMetadata targetMetadata = sessionFactory.getClassMetadata(Hibernate.getClass(target));
+        String[] names = metadata.getPropertyNames();
+        Type[] types = metadata.getPropertyTypes();
+        for (int i = 0; i < names.length; i++) {
+            if (i != metadata.getVersionProperty() && !types[i].isAssociationType()) {
+                targetMetadata.setPropertyValue(target, names[i], metadata.getPropertyValue(resource, names[i]));
+            }
+        }
+    }
+
+    /**
+     * @param resource An instance of a mapped model class.
+     * @return The current version of the resource, which is bumped on every
+     *         update (suitable for use as an ETag).
+     */
+    public Object getVersion(Object resource) {
+        return sessionFactory.getClassMetadata(Hibernate.getClass(resource)).getVersion(resource);
+    }
+
 }
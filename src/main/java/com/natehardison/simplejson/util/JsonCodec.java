@@ -0,0 +1,125 @@
+package com.natehardison.simplejson.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.map.ObjectWriter;
+import org.codehaus.jackson.map.ser.BeanSerializerFactory;
+import org.codehaus.jackson.smile.SmileFactory;
+
+/**
+ * The JsonCodec is a helper singleton class that owns the one Jackson
+ * ObjectMapper used by the service. Building an ObjectMapper (and the
+ * serializers and deserializers it discovers) is expensive, so instead of
+ * creating one per request we keep a single, fully-configured instance and
+ * hand out pre-built ObjectReaders and ObjectWriters for each model class.
+ * Readers and writers are immutable and therefore safe to share between
+ * request threads.
+ *
+ * There is one codec per wire format: plain JSON, and Smile, Jackson's
+ * binary encoding of the same data model, which is smaller and cheaper to
+ * produce and parse. Both are configured identically.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class JsonCodec {
+
+    private static final JsonCodec codec = new JsonCodec(new JsonFactory());
+    private static final JsonCodec smileCodec = new JsonCodec(new SmileFactory());
+
+    private final ObjectMapper mapper;
+    private final ConcurrentMap<Class<?>, ObjectReader> readers;
+    private final ConcurrentMap<Class<?>, ObjectWriter> writers;
+
+    /**
+     * Instantiates a JsonCodec. The mapper must not be reconfigured once
+     * readers and writers have been handed out.
+     * @param factory The factory for the wire format's parsers and generators.
+     */
+    private JsonCodec(JsonFactory factory) {
+        this.mapper = new ObjectMapper(factory);
+        // skip lazy associations that weren't fetched instead of tripping
+        // over them after the session is closed
+        mapper.setSerializerFactory(BeanSerializerFactory.instance
+                .withSerializerModifier(new LazyPropertySerializerModifier()));
+        this.readers = new ConcurrentHashMap<Class<?>, ObjectReader>();
+        this.writers = new ConcurrentHashMap<Class<?>, ObjectWriter>();
+    }
+
+    /**
+     * @return The singleton instance of the JsonCodec for plain JSON.
+     */
+    public static JsonCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return The singleton instance of the JsonCodec for Smile.
+     */
+    public static JsonCodec getSmileCodec() {
+        return smileCodec;
+    }
+
+    /**
+     * The shared ObjectMapper, for callers (such as the JAX-RS provider) that
+     * need the mapper itself rather than a reader or writer.
+     * @return The singleton ObjectMapper.
+     */
+    public ObjectMapper getMapper() {
+        return this.mapper;
+    }
+
+    /**
+     * Retrieves the cached ObjectReader for klass, building it on first use.
+     * @param klass The model class to deserialize.
+     * @return An ObjectReader bound to klass.
+     */
+    public ObjectReader getReader(Class<?> klass) {
+        ObjectReader reader = readers.get(klass);
+        if (reader == null) {
+            // two threads may race to build the same reader; that's harmless
+            // since they're equivalent, and we keep whichever got there first
+            ObjectReader built = mapper.reader(klass);
+            reader = readers.putIfAbsent(klass, built);
+            if (reader == null) {
+                reader = built;
+            }
+        }
+        return reader;
+    }
+
+    /**
+     * Retrieves the cached ObjectWriter for klass, building it on first use.
+     * @param klass The model class to serialize.
+     * @return An ObjectWriter bound to klass.
+     */
+    public ObjectWriter getWriter(Class<?> klass) {
+        ObjectWriter writer = writers.get(klass);
+        if (writer == null) {
+            ObjectWriter built = mapper.writerWithType(klass);
+            writer = writers.putIfAbsent(klass, built);
+            if (writer == null) {
+                writer = built;
+            }
+        }
+        return writer;
+    }
+
+    /**
+     * Parses a model object of type klass directly from the provided stream,
+     * without buffering the whole entity into a String first.
+     * @param stream The stream containing the entity.
+     * @param klass The model class to deserialize.
+     * @return The parsed model object.
+     * @throws IOException If the stream can't be read or doesn't contain a
+     *         valid klass (JsonParseException, JsonMappingException).
+     */
+    public <T> T read(InputStream stream, Class<T> klass) throws IOException {
+        return getReader(klass).<T>readValue(stream);
+    }
+
+}
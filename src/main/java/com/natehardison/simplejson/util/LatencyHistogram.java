@@ -0,0 +1,76 @@
+package com.natehardison.simplejson.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-bucket latency histogram, cheap enough to record every request
+ * into: recording is a short scan of the bucket bounds plus two atomic
+ * increments, with no locking and no allocation. The buckets are the same
+ * as Prometheus' defaults, with a couple more at the low end.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class LatencyHistogram {
+
+    /**
+     * Upper bounds of the buckets, in seconds. Anything slower than the last
+     * one goes in an extra +Inf bucket.
+     */
+    private static final double[] BOUNDS = {
+        0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUNDS_NANOS[i] = (long) (BOUNDS[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong sumNanos = new AtomicLong();
+
+    /**
+     * @param nanos The latency to record.
+     */
+    public void record(long nanos) {
+        int i = 0;
+        while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) {
+            i++;
+        }
+        counts.incrementAndGet(i);
+        sumNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return The upper bounds of the buckets, in seconds, not including
+     *         the final +Inf bucket.
+     */
+    public static double[] getBounds() {
+        return BOUNDS.clone();
+    }
+
+    /**
+     * Snapshots the bucket counts, cumulatively as Prometheus expects: each
+     * count includes all of the faster buckets. The last one (+Inf) is the
+     * total count.
+     * @return One count per bound, plus one for +Inf.
+     */
+    public long[] getCumulativeCounts() {
+        long[] cumulative = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < cumulative.length; i++) {
+            total += counts.get(i);
+            cumulative[i] = total;
+        }
+        return cumulative;
+    }
+
+    /**
+     * @return The sum of all recorded latencies, in seconds.
+     */
+    public double getSumSeconds() {
+        return sumNanos.get() / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.natehardison.simplejson.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.JsonSerializer;
+import org.codehaus.jackson.map.SerializationConfig;
+import org.codehaus.jackson.map.SerializerProvider;
+import org.codehaus.jackson.map.introspect.BasicBeanDescription;
+import org.codehaus.jackson.map.ser.BeanPropertyWriter;
+import org.codehaus.jackson.map.ser.BeanSerializerModifier;
+import org.hibernate.Hibernate;
+
+/**
+ * Teaches Jackson to leave out lazy Hibernate associations that were never
+ * loaded, rather than touching them (which would either run a query per
+ * object or, once the session is gone, throw a LazyInitializationException).
+ * An association only shows up in the JSON if it was explicitly fetched,
+ * e.g. with ?expand=vehicles.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class LazyPropertySerializerModifier extends BeanSerializerModifier {
+
+    @Override
+    public List<BeanPropertyWriter> changeProperties(SerializationConfig config,
+                                                     BasicBeanDescription beanDesc,
+                                                     List<BeanPropertyWriter> beanProperties) {
+        List<BeanPropertyWriter> properties = new ArrayList<BeanPropertyWriter>(beanProperties.size());
+        for (BeanPropertyWriter property : beanProperties) {
+            properties.add(new LazyPropertyWriter(property));
+        }
+        return properties;
+    }
+
+    /**
+     * Writes a property as usual, unless it's an uninitialized lazy
+     * association, in which case the property is skipped entirely.
+     */
+    private static class LazyPropertyWriter extends BeanPropertyWriter {
+
+        public LazyPropertyWriter(BeanPropertyWriter base) {
+            super(base);
+        }
+
+        private LazyPropertyWriter(BeanPropertyWriter base, JsonSerializer<Object> serializer) {
+            super(base, serializer);
+        }
+
+        @Override
+        public BeanPropertyWriter withSerializer(JsonSerializer<Object> serializer) {
+            return new LazyPropertyWriter(this, serializer);
+        }
+
+        @Override
+        public void serializeAsField(Object bean, JsonGenerator jgen, SerializerProvider prov) throws Exception {
+            if (!Hibernate.isInitialized(get(bean))) {
+                return;
+            }
+            super.serializeAsField(bean, jgen, prov);
+        }
+
+    }
+
+}
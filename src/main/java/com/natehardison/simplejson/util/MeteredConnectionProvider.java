@@ -0,0 +1,67 @@
+package com.natehardison.simplejson.util;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.hibernate.service.jdbc.connections.internal.C3P0ConnectionProvider;
+
+import com.mchange.v2.c3p0.PooledDataSource;
+
+/**
+ * A c3p0 connection pool that also keeps track of how long callers wait to
+ * check out a connection. The pool itself is configured through the usual
+ * hibernate.c3p0.* properties in hibernate.cfg.xml; this class only adds
+ * the measurements needed to size it against real contention.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class MeteredConnectionProvider extends C3P0ConnectionProvider {
+
+    private static final long serialVersionUID = 1L;
+
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return super.getConnection();
+        } finally {
+            recordWait(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Snapshots the pool's current state along with the wait times recorded
+     * since startup.
+     * @return The current pool statistics.
+     * @throws SQLException If c3p0 can't report on the pool.
+     */
+    public ConnectionPoolStatistics getStatistics() throws SQLException {
+        PooledDataSource pool = (PooledDataSource) unwrap(DataSource.class);
+        ConnectionPoolStatistics statistics = new ConnectionPoolStatistics();
+        statistics.setActiveConnections(pool.getNumBusyConnectionsDefaultUser());
+        statistics.setIdleConnections(pool.getNumIdleConnectionsDefaultUser());
+        statistics.setThreadsAwaitingConnection(pool.getNumThreadsAwaitingCheckoutDefaultUser());
+        statistics.setFailedCheckouts(pool.getNumFailedCheckoutsDefaultUser());
+        statistics.setCachedStatements(pool.getStatementCacheNumStatementsDefaultUser());
+        statistics.setAcquisitions(acquisitions.get());
+        statistics.setTotalWaitNanos(totalWaitNanos.get());
+        statistics.setMaxWaitNanos(maxWaitNanos.get());
+        return statistics;
+    }
+
+    private void recordWait(long nanos) {
+        acquisitions.incrementAndGet();
+        totalWaitNanos.addAndGet(nanos);
+        long max = maxWaitNanos.get();
+        while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos)) {
+            max = maxWaitNanos.get();
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.natehardison.simplejson.util;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The Metrics class is a helper singleton class that holds the request
+ * metrics of the service: a latency histogram and error counters per route
+ * (e.g., "GET /{class}/{id}"). Routes are registered as Jersey discovers the
+ * resource methods, so recording a request never has to look anything up.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class Metrics {
+
+    private static final Metrics metrics = new Metrics();
+
+    private final ConcurrentMap<String, RouteMetrics> routes = new ConcurrentHashMap<String, RouteMetrics>();
+
+    private Metrics() {}
+
+    /**
+     * @return The singleton instance of Metrics.
+     */
+    public static Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Retrieves the metrics of route, creating them on first use.
+     * @param route The route, e.g. "GET /{class}/{id}".
+     * @return The route's metrics.
+     */
+    public RouteMetrics getRoute(String route) {
+        RouteMetrics routeMetrics = routes.get(route);
+        if (routeMetrics == null) {
+            RouteMetrics created = new RouteMetrics();
+            routeMetrics = routes.putIfAbsent(route, created);
+            if (routeMetrics == null) {
+                routeMetrics = created;
+            }
+        }
+        return routeMetrics;
+    }
+
+    /**
+     * @return The metrics of every route, ordered by route.
+     */
+    public SortedMap<String, RouteMetrics> getRoutes() {
+        return new TreeMap<String, RouteMetrics>(routes);
+    }
+
+    /**
+     * Latency and errors of the requests to one route.
+     */
+    public static class RouteMetrics {
+
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong clientErrors = new AtomicLong();
+        private final AtomicLong serverErrors = new AtomicLong();
+
+        /**
+         * Records a request.
+         * @param status The HTTP status of the response.
+         * @param nanos How long the request took, up to the last byte written.
+         */
+        public void record(int status, long nanos) {
+            latency.record(nanos);
+            if (status >= 500) {
+                serverErrors.incrementAndGet();
+            } else if (status >= 400) {
+                clientErrors.incrementAndGet();
+            }
+        }
+
+        public LatencyHistogram getLatency() {
+            return this.latency;
+        }
+
+        /**
+         * @return The number of 4xx responses.
+         */
+        public long getClientErrors() {
+            return clientErrors.get();
+        }
+
+        /**
+         * @return The number of 5xx responses.
+         */
+        public long getServerErrors() {
+            return serverErrors.get();
+        }
+
+    }
+
+}
@@ -0,0 +1,213 @@
+package com.natehardison.simplejson.util;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.map.ObjectWriter;
+import org.hibernate.metadata.ClassMetadata;
+
+/**
+ * The ModelRegistry is a helper singleton class that knows, for each mapped
+ * model class, everything the resources need in order to serve it: the class
+ * itself, its name in URIs, how to parse its ID out of a path segment, and
+ * its JSON reader and writer. It's built once, from the Hibernate mapping
+ * metadata, so that requests never have to resolve class names reflectively
+ * or special-case ID types; mapping a new entity is enough to register it.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class ModelRegistry {
+
+    private static final ModelRegistry registry = new ModelRegistry();
+
+    private final Map<String, Model> models;
+
+    /**
+     * Instantiates a ModelRegistry from the metadata of the (already built)
+     * SessionFactory.
+     */
+    private ModelRegistry() {
+        Map<String, Model> models = new HashMap<String, Model>();
+        for (ClassMetadata metadata : HibernateManager.getManager().getSessionFactory().getAllClassMetadata().values()) {
+            Model model = new Model(metadata);
+            models.put(model.getName(), model);
+        }
+        this.models = Collections.unmodifiableMap(models);
+    }
+
+    /**
+     * @return The singleton instance of the ModelRegistry.
+     */
+    public static ModelRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Looks up a model by the name it goes by in URIs.
+     * @param name The model name (e.g., "car", "truck").
+     * @return The corresponding model, or null if there isn't one.
+     */
+    public Model getModel(String name) {
+        return models.get(name);
+    }
+
+    /**
+     * @param klass A mapped model class.
+     * @return The name klass goes by in URIs: Car => "car", as in /car/{vin}.
+     */
+    public static String getName(Class<?> klass) {
+        return klass.getSimpleName().toLowerCase();
+    }
+
+    /**
+     * Everything needed to serve one mapped model class. Immutable.
+     */
+    public static class Model {
+
+        private final String name;
+        private final Class<?> modelClass;
+        private final String entityName;
+        private final String identifierName;
+        private final Class<?> identifierType;
+        private final ObjectReader reader;
+        private final ObjectWriter writer;
+        private final ClassMetadata metadata;
+        // names of the properties of primitive types, which can't be null
+        private final Set<String> primitiveProperties;
+
+        private Model(ClassMetadata metadata) {
+            this.metadata = metadata;
+            this.modelClass = metadata.getMappedClass();
+            this.name = ModelRegistry.getName(modelClass);
+            this.entityName = metadata.getEntityName();
+            this.identifierName = metadata.getIdentifierPropertyName();
+            this.identifierType = metadata.getIdentifierType().getReturnedClass();
+            if (identifierType != Long.class && identifierType != Integer.class && identifierType != String.class) {
+                throw new IllegalStateException("Unsupported identifier type " + identifierType + " for " + entityName);
+            }
+            this.reader = JsonCodec.getCodec().getReader(modelClass);
+            this.writer = JsonCodec.getCodec().getWriter(modelClass);
+            Set<String> primitiveProperties = new HashSet<String>();
+            try {
+                for (PropertyDescriptor property : Introspector.getBeanInfo(modelClass).getPropertyDescriptors()) {
+                    if (property.getPropertyType() != null && property.getPropertyType().isPrimitive()) {
+                        primitiveProperties.add(property.getName());
+                    }
+                }
+            } catch (IntrospectionException e) {
+                throw new IllegalStateException("Can't introspect " + entityName, e);
+            }
+            this.primitiveProperties = Collections.unmodifiableSet(primitiveProperties);
+        }
+
+        /**
+         * @return The model's name in URIs (e.g., "car").
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        public Class<?> getModelClass() {
+            return this.modelClass;
+        }
+
+        public String getEntityName() {
+            return this.entityName;
+        }
+
+        /**
+         * @return The name of the identifier property (e.g., "id", "vin").
+         */
+        public String getIdentifierName() {
+            return this.identifierName;
+        }
+
+        /**
+         * @return The Java type of the identifier (e.g., Long, String).
+         */
+        public Class<?> getIdentifierType() {
+            return this.identifierType;
+        }
+
+        public ObjectReader getReader() {
+            return this.reader;
+        }
+
+        /**
+         * @param property The name of a property of the model.
+         * @return true if the property is of a primitive type (e.g., int),
+         *         and so can't be set to null.
+         */
+        public boolean isPrimitive(String property) {
+            return primitiveProperties.contains(property);
+        }
+
+        public ObjectWriter getWriter() {
+            return this.writer;
+        }
+
+        /**
+         * Turns an ID from a URI (or query parameter) into an identifier of
+         * the right type to hand to Hibernate.
+         * @param id The ID as a string.
+         * @return The identifier.
+         * @throws NumberFormatException If the model has a numeric ID and id
+         *         isn't a number.
+         */
+        public Serializable parseId(String id) {
+            if (identifierType == Long.class) {
+                return Long.decode(id);
+            } else if (identifierType == Integer.class) {
+                return Integer.decode(id);
+            }
+            return id;
+        }
+
+        /**
+         * Sets the identifier of resource, e.g. to the ID from the URI it was
+         * sent to, overriding whatever was in the entity.
+         * @param resource An instance of this model.
+         * @param id The identifier (see parseId).
+         */
+        public void setIdentifier(Object resource, Serializable id) {
+            metadata.setIdentifier(resource, id, null);
+        }
+
+        /**
+         * Parses an instance of this model directly from the provided stream.
+         * @param stream The stream containing the JSON entity.
+         * @return The parsed model object.
+         * @throws IOException If the stream can't be read or doesn't contain a
+         *         valid instance (JsonParseException, JsonMappingException).
+         */
+        public Object read(InputStream stream) throws IOException {
+            return reader.readValue(stream);
+        }
+
+        /**
+         * Parses an instance of this model from the provided stream in the
+         * wire format of codec (e.g., Smile).
+         * @param stream The stream containing the entity.
+         * @param codec The codec for the entity's format.
+         * @return The parsed model object.
+         * @throws IOException As for read(InputStream).
+         */
+        public Object read(InputStream stream, JsonCodec codec) throws IOException {
+            if (codec == JsonCodec.getCodec()) {
+                return read(stream);
+            }
+            return codec.getReader(modelClass).readValue(stream);
+        }
+
+    }
+
+}
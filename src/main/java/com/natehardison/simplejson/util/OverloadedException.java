@@ -0,0 +1,26 @@
+package com.natehardison.simplejson.util;
+
+/**
+ * Thrown when a request is turned away because the database is already as
+ * busy as we let it get (see DatabaseLimiter).
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class OverloadedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int retryAfter;
+
+    /**
+     * @param retryAfter Seconds the client should wait before retrying.
+     */
+    public OverloadedException(int retryAfter) {
+        super("Too many requests waiting for the database");
+        this.retryAfter = retryAfter;
+    }
+
+    public int getRetryAfter() {
+        return this.retryAfter;
+    }
+
+}
@@ -0,0 +1,138 @@
+package com.natehardison.simplejson.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+/**
+ * Statistics of one integral property (e.g., horsepower) over a set of
+ * resources, as computed by HibernateManager#getStatistics: count, min,
+ * max, average, and a histogram of up to BUCKETS equal-width buckets. The
+ * percentiles are estimated from the histogram, so they're exact when the
+ * buckets are one value wide and otherwise off by at most a bucket's width.
+ * Resources with no value (null) aren't counted.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+@JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+public class PropertyStatistics {
+
+    /**
+     * The most buckets a histogram is split into.
+     */
+    public static final int BUCKETS = 20;
+
+    // the percentiles reported, in percent
+    private static final int[] PERCENTILES = { 50, 90, 95, 99 };
+
+    /**
+     * One bucket of the histogram: the values from its lower to its upper
+     * bound (inclusive), and how many resources have one of them.
+     */
+    public static class Bucket {
+
+        private final long from;
+        private final long to;
+        private long count;
+
+        Bucket(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        public long getFrom() { return this.from; }
+        public long getTo() { return this.to; }
+        public long getCount() { return this.count; }
+
+    }
+
+    private long count;
+    private Long min;
+    private Long max;
+    private long sum;
+    private final List<Bucket> buckets = new ArrayList<Bucket>();
+
+    /**
+     * Adds in the aggregates of some more of the resources (e.g., another
+     * group's or another shard's).
+     * @param count How many of them have a value.
+     * @param min Their least value, or null if count is 0.
+     * @param max Their greatest value, or null if count is 0.
+     * @param sum The sum of their values, or null if count is 0.
+     */
+    void add(long count, Number min, Number max, Number sum) {
+        if (count == 0) {
+            return;
+        }
+        this.count += count;
+        this.min = this.min == null ? min.longValue() : Math.min(this.min, min.longValue());
+        this.max = this.max == null ? max.longValue() : Math.max(this.max, max.longValue());
+        this.sum += sum.longValue();
+    }
+
+    /**
+     * Sets up the (empty) histogram's buckets.
+     * @param origin The lower bound of the first bucket.
+     * @param width The number of values in each bucket.
+     * @param size The number of buckets.
+     */
+    void setBuckets(long origin, long width, int size) {
+        buckets.clear();
+        for (int i = 0; i < size; i++) {
+            buckets.add(new Bucket(origin + i * width, origin + (i + 1) * width - 1));
+        }
+    }
+
+    /**
+     * Adds count resources to the index-th bucket (or the nearest one, for
+     * values written since the buckets were set up).
+     */
+    void addToBucket(int index, long count) {
+        buckets.get(Math.max(0, Math.min(index, buckets.size() - 1))).count += count;
+    }
+
+    public long getCount() { return this.count; }
+    public Long getMin() { return this.min; }
+    public Long getMax() { return this.max; }
+
+    public Double getAverage() {
+        return count == 0 ? null : (double) sum / count;
+    }
+
+    public List<Bucket> getBuckets() {
+        return Collections.unmodifiableList(buckets);
+    }
+
+    /**
+     * @return The 50th, 90th, 95th and 99th percentiles (as "p50", etc.),
+     *         each interpolated within the bucket it falls in, or null if
+     *         there are no values.
+     */
+    public Map<String, Double> getPercentiles() {
+        long total = 0;
+        for (Bucket bucket : buckets) {
+            total += bucket.count;
+        }
+        if (total == 0) {
+            return null;
+        }
+        Map<String, Double> percentiles = new LinkedHashMap<String, Double>();
+        for (int percentile : PERCENTILES) {
+            double rank = total * percentile / 100.0;
+            long below = 0;
+            for (Bucket bucket : buckets) {
+                if (bucket.count > 0 && below + bucket.count >= rank) {
+                    double value = bucket.from + (bucket.to - bucket.from) * Math.max(0, rank - below) / bucket.count;
+                    percentiles.put("p" + percentile, Math.max(min, Math.min(max, value)));
+                    break;
+                }
+                below += bucket.count;
+            }
+        }
+        return percentiles;
+    }
+
+}
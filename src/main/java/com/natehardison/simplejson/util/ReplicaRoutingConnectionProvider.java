@@ -0,0 +1,183 @@
+package com.natehardison.simplejson.util;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hibernate.cfg.Environment;
+import org.hibernate.service.spi.ServiceRegistryImplementor;
+
+/**
+ * A connection pool for the primary database, as MeteredConnectionProvider,
+ * plus one pool per read replica (the comma-separated REPLICA_URLS property;
+ * replicas share the primary's credentials and c3p0 settings). Connections
+ * come from the primary unless a replica read is in progress on the calling
+ * thread (see readFromReplica), in which case they come from the replica
+ * with the fewest connections checked out, in round-robin order on ties.
+ *
+ * There's a single SessionFactory either way, so the second-level cache is
+ * shared by reads from every database.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class ReplicaRoutingConnectionProvider extends MeteredConnectionProvider {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Configuration property holding the JDBC URLs of the read replicas.
+     */
+    public static final String REPLICA_URLS = "simplejson.replica.urls";
+
+    private static final ThreadLocal<Boolean> replicaRead = new ThreadLocal<Boolean>();
+
+    private ServiceRegistryImplementor serviceRegistry;
+    private List<Replica> replicas = Collections.emptyList();
+    private final AtomicInteger next = new AtomicInteger();
+    // which replica each checked-out replica connection came from
+    private final Map<Connection, Replica> checkedOut = new IdentityHashMap<Connection, Replica>();
+
+    /**
+     * Routes the connections the calling thread checks out to a replica
+     * (or back to the primary).
+     * @param replica true to check out replica connections.
+     */
+    static void readFromReplica(boolean replica) {
+        if (replica) {
+            replicaRead.set(Boolean.TRUE);
+        } else {
+            replicaRead.remove();
+        }
+    }
+
+    @Override
+    public void injectServices(ServiceRegistryImplementor serviceRegistry) {
+        super.injectServices(serviceRegistry);
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    @Override
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public void configure(Map properties) {
+        super.configure(properties);
+        Object urls = properties.get(REPLICA_URLS);
+        if (urls == null || urls.toString().trim().length() == 0) {
+            return;
+        }
+        List<Replica> replicas = new ArrayList<Replica>();
+        for (String url : urls.toString().split(",")) {
+            Map replicaProperties = new HashMap(properties);
+            replicaProperties.put(Environment.URL, url.trim());
+            MeteredConnectionProvider pool = new MeteredConnectionProvider();
+            pool.injectServices(serviceRegistry);
+            pool.configure(replicaProperties);
+            replicas.add(new Replica(pool));
+        }
+        this.replicas = Collections.unmodifiableList(replicas);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (replicaRead.get() == null || replicas.isEmpty()) {
+            return super.getConnection();
+        }
+        Replica replica = leastLoaded();
+        replica.active.incrementAndGet();
+        Connection connection;
+        try {
+            connection = replica.pool.getConnection();
+        } catch (SQLException e) {
+            replica.active.decrementAndGet();
+            throw e;
+        }
+        synchronized (checkedOut) {
+            checkedOut.put(connection, replica);
+        }
+        return connection;
+    }
+
+    @Override
+    public void closeConnection(Connection connection) throws SQLException {
+        Replica replica;
+        synchronized (checkedOut) {
+            replica = checkedOut.remove(connection);
+        }
+        if (replica == null) {
+            super.closeConnection(connection);
+            return;
+        }
+        try {
+            replica.pool.closeConnection(connection);
+        } finally {
+            replica.active.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return true if any read replicas are configured.
+     */
+    public boolean hasReplicas() {
+        return !replicas.isEmpty();
+    }
+
+    /**
+     * @return The replica with the fewest connections checked out, starting
+     *         the search from the next replica in turn so that idle replicas
+     *         share the load evenly.
+     */
+    private Replica leastLoaded() {
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % replicas.size();
+        Replica best = null;
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get((start + i) % replicas.size());
+            if (best == null || replica.active.get() < best.active.get()) {
+                best = replica;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return The number of read replicas configured.
+     */
+    public int getReplicaCount() {
+        return replicas.size();
+    }
+
+    /**
+     * @return The pool statistics of each replica, in the order configured.
+     * @throws SQLException If c3p0 can't report on a pool.
+     */
+    public List<ConnectionPoolStatistics> getReplicaStatistics() throws SQLException {
+        List<ConnectionPoolStatistics> statistics = new ArrayList<ConnectionPoolStatistics>();
+        for (Replica replica : replicas) {
+            statistics.add(replica.pool.getStatistics());
+        }
+        return statistics;
+    }
+
+    @Override
+    public void stop() {
+        for (Replica replica : replicas) {
+            replica.pool.stop();
+        }
+        super.stop();
+    }
+
+    private static class Replica {
+
+        private final MeteredConnectionProvider pool;
+        private final AtomicInteger active = new AtomicInteger();
+
+        public Replica(MeteredConnectionProvider pool) {
+            this.pool = pool;
+        }
+
+    }
+
+}
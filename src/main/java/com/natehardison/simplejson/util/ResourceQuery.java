@@ -0,0 +1,107 @@
+package com.natehardison.simplejson.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Which resources of a type to retrieve, and in what order: a conjunction of
+ * conditions on properties (e.g., horsepower > 400) and a list of properties
+ * to sort by. The HibernateManager turns it into a parameterized Criteria
+ * query. Property names and value types are the caller's responsibility
+ * (see HibernateManager#getFilterableType).
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class ResourceQuery {
+
+    /**
+     * Comparisons a condition can make between a property and a value.
+     */
+    public enum Operator {
+        EQ, NE, GT, GTE, LT, LTE
+    }
+
+    /**
+     * A single comparison: property operator value.
+     */
+    public static class Condition {
+
+        private final String property;
+        private final Operator operator;
+        private final Object value;
+
+        public Condition(String property, Operator operator, Object value) {
+            this.property = property;
+            this.operator = operator;
+            this.value = value;
+        }
+
+        public String getProperty() {
+            return this.property;
+        }
+
+        public Operator getOperator() {
+            return this.operator;
+        }
+
+        public Object getValue() {
+            return this.value;
+        }
+
+    }
+
+    /**
+     * A property to sort by, in ascending or descending order.
+     */
+    public static class Sort {
+
+        private final String property;
+        private final boolean ascending;
+
+        public Sort(String property, boolean ascending) {
+            this.property = property;
+            this.ascending = ascending;
+        }
+
+        public String getProperty() {
+            return this.property;
+        }
+
+        public boolean isAscending() {
+            return this.ascending;
+        }
+
+    }
+
+    private final List<Condition> conditions = new ArrayList<Condition>();
+    private final List<Sort> sorts = new ArrayList<Sort>();
+
+    /**
+     * Adds a condition that every resource retrieved must meet.
+     * @param property The name of the property to compare.
+     * @param operator The comparison to make.
+     * @param value The value to compare against, of the property's type.
+     */
+    public void addCondition(String property, Operator operator, Object value) {
+        conditions.add(new Condition(property, operator, value));
+    }
+
+    /**
+     * Adds a property to sort by, after any added before it. Resources that
+     * tie on every sort property come back in ID order.
+     * @param property The name of the property to sort by.
+     * @param ascending true to sort in ascending order, false for descending.
+     */
+    public void addSort(String property, boolean ascending) {
+        sorts.add(new Sort(property, ascending));
+    }
+
+    public List<Condition> getConditions() {
+        return Collections.unmodifiableList(conditions);
+    }
+
+    public List<Sort> getSorts() {
+        return Collections.unmodifiableList(sorts);
+    }
+
+}
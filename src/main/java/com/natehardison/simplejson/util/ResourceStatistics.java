@@ -0,0 +1,62 @@
+package com.natehardison.simplejson.util;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+/**
+ * Statistics of a set of resources (see HibernateManager#getStatistics):
+ * how many there are, statistics of each of the properties asked for and,
+ * if they were grouped (e.g., by owner), the same for each group, with the
+ * group's value.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+@JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+public class ResourceStatistics {
+
+    // the value the resources share, if this is a group; null for the group
+    // of resources without one
+    private final Object group;
+
+    private long count;
+
+    // by property name, in the order asked for
+    private final Map<String, PropertyStatistics> properties = new LinkedHashMap<String, PropertyStatistics>();
+
+    // null unless grouped
+    private List<ResourceStatistics> groups;
+
+    ResourceStatistics(Object group, List<String> properties) {
+        this.group = group;
+        for (String property : properties) {
+            this.properties.put(property, new PropertyStatistics());
+        }
+    }
+
+    void addCount(long count) {
+        this.count += count;
+    }
+
+    PropertyStatistics getProperty(String name) {
+        return properties.get(name);
+    }
+
+    void setGroups(List<ResourceStatistics> groups) {
+        this.groups = groups;
+    }
+
+    public Object getGroup() { return this.group; }
+    public long getCount() { return this.count; }
+
+    public Map<String, PropertyStatistics> getProperties() {
+        return Collections.unmodifiableMap(properties);
+    }
+
+    public List<ResourceStatistics> getGroups() {
+        return groups == null ? null : Collections.unmodifiableList(groups);
+    }
+
+}
@@ -0,0 +1,286 @@
+package com.natehardison.simplejson.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The ResponseCache is a helper singleton class that keeps encoded response
+ * bodies (e.g., the JSON of a page of cars) so that repeat reads are served
+ * straight from memory, without touching the database or Jackson. Each
+ * entry remembers the latest change (see ChangeFeed) to the classes of
+ * resources it was built from, and is only served while that's still the
+ * latest change, so every committed write invalidates exactly the entries
+ * it affects, whichever path it took. That also means the cache only knows
+ * about writes made through this process.
+ *
+ * When an entry is missing or out of date, concurrent requests for it wait
+ * for a single rebuild instead of each doing their own. The cache is bounded
+ * by the total size of the bodies (plus a nominal ENTRY_OVERHEAD each),
+ * least recently used first out, and no single body may take more than a
+ * quarter of it (larger ones are served uncached). It's meant for bounded
+ * responses, such as pages; whole collections should be streamed instead.
+ *
+ * Configured in hibernate.cfg.xml (see the constants below).
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class ResponseCache {
+
+    /**
+     * Total bytes of response bodies to keep; 0 disables the cache.
+     */
+    public static final String MAX_BYTES = "simplejson.response_cache.max_bytes";
+    private static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    // what an entry costs over and above its body (key, headers, ETag,
+    // map entry), roughly; charged to bodyless markers too, so that there
+    // can only be so many of them
+    private static final int ENTRY_OVERHEAD = 512;
+
+    /**
+     * Writes the body of a response to be cached.
+     */
+    public interface Builder {
+        /**
+         * @param body The stream to write the body to.
+         * @param headers Headers that go with the body (e.g., Link), to add to.
+         * @throws IOException If the body can't be written.
+         */
+        void build(OutputStream body, Map<String, String> headers) throws IOException;
+    }
+
+    private static final ResponseCache cache = new ResponseCache();
+
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    // guarded by itself; in access order, for LRU eviction
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long bytes;
+    // rebuilds under way, by generation and key; a rebuild takes as long as
+    // it takes, so there's no timeout
+    private final SingleFlight<String, Entry> builds = new SingleFlight<String, Entry>(0);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private ResponseCache() {
+        String maxBytes = HibernateManager.getManager().getProperty(MAX_BYTES);
+        this.maxBytes = maxBytes == null ? DEFAULT_MAX_BYTES : Long.parseLong(maxBytes);
+        this.maxEntryBytes = (int) Math.min(Integer.MAX_VALUE, this.maxBytes / 4);
+    }
+
+    /**
+     * @return The singleton instance of the ResponseCache.
+     */
+    public static ResponseCache getCache() {
+        return cache;
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Retrieves the entry for key, building it if it's missing or if any of
+     * the dependencies have changed since it was built.
+     * @param key The response's key: everything that goes into the body
+     *        (e.g., format, URI with query).
+     * @param dependencies The classes of resources the body is built from
+     *        (see HibernateManager#getDependencies).
+     * @param builder Builds the body, if need be.
+     * @return The entry, or null if the body is too large to cache.
+     * @throws IOException If the builder fails.
+     */
+    public Entry get(final String key, Collection<Class<?>> dependencies, final Builder builder) throws IOException {
+        // taken before building, so that any change that the build might
+        // have missed leaves the entry out of date
+        final long generation = HibernateManager.getManager().getChangeFeed().getLastSequence(dependencies);
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.generation == generation) {
+                hits.incrementAndGet();
+                return entry.body == null ? null : entry;
+            }
+        }
+        misses.incrementAndGet();
+
+        Entry entry = builds.execute(generation + " " + key, new SingleFlight.Call<Entry, IOException>() {
+            public Entry call() throws IOException {
+                Entry entry = new Build(builder, generation).call();
+                put(key, entry);
+                return entry;
+            }
+        });
+        return entry.body == null ? null : entry;
+    }
+
+    private void put(String key, Entry entry) {
+        synchronized (entries) {
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                bytes -= previous.size();
+            }
+            bytes += entry.size();
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().size();
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The number of misses that waited for another request's rebuild.
+     */
+    public long getCoalesced() {
+        return builds.getCoalesced();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return The total size of the entries cached, in bytes: their bodies
+     *         plus ENTRY_OVERHEAD each.
+     */
+    public long getBytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    /**
+     * A cached response body, with its ETag (a hash of the body, so that a
+     * rebuild of unchanged data keeps its tag) and any headers that go with
+     * it. Immutable; the body is served as is, so it must not be modified.
+     */
+    public static class Entry {
+
+        private final long generation;
+        private final byte[] body;
+        private final String etag;
+        private final Map<String, String> headers;
+
+        private Entry(long generation, byte[] body, Map<String, String> headers) {
+            this.generation = generation;
+            this.body = body;
+            this.etag = body == null ? null : hash(body);
+            this.headers = Collections.unmodifiableMap(headers);
+        }
+
+        public byte[] getBody() {
+            return this.body;
+        }
+
+        public String getETag() {
+            return this.etag;
+        }
+
+        public Map<String, String> getHeaders() {
+            return this.headers;
+        }
+
+        // what the entry costs, roughly; too-large markers have no body
+        private long size() {
+            return ENTRY_OVERHEAD + (body == null ? 0 : body.length);
+        }
+
+        private static String hash(byte[] body) {
+            try {
+                byte[] digest = MessageDigest.getInstance("MD5").digest(body);
+                StringBuilder hex = new StringBuilder();
+                for (byte b : digest) {
+                    hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+                }
+                return hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                // every JRE has MD5
+                throw new IllegalStateException(e);
+            }
+        }
+
+    }
+
+    /**
+     * Runs a Builder into a buffer of at most maxEntryBytes, producing an
+     * entry without a body (a marker not to try again until something
+     * changes) if the body outgrows it.
+     */
+    private class Build {
+
+        private final Builder builder;
+        private final long generation;
+
+        public Build(Builder builder, long generation) {
+            this.builder = builder;
+            this.generation = generation;
+        }
+
+        public Entry call() throws IOException {
+            CappedOutputStream body = new CappedOutputStream(maxEntryBytes);
+            Map<String, String> headers = new LinkedHashMap<String, String>();
+            try {
+                builder.build(body, headers);
+            } catch (IOException e) {
+                // the builder may have wrapped the overflow on its way out
+                if (!body.overflowed) {
+                    throw e;
+                }
+            }
+            if (body.overflowed) {
+                return new Entry(generation, null, Collections.<String, String>emptyMap());
+            }
+            return new Entry(generation, body.buffer.toByteArray(), headers);
+        }
+
+    }
+
+    /**
+     * Buffers up to cap bytes, then fails every write.
+     */
+    private static class CappedOutputStream extends OutputStream {
+
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final int cap;
+        private boolean overflowed;
+
+        public CappedOutputStream(int cap) {
+            this.cap = cap;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (overflowed || buffer.size() + len > cap) {
+                overflowed = true;
+                throw new IOException("Response body over " + cap + " bytes");
+            }
+            buffer.write(b, off, len);
+        }
+
+    }
+
+}
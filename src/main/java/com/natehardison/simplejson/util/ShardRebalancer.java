@@ -0,0 +1,226 @@
+package com.natehardison.simplejson.util;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.CacheMode;
+import org.hibernate.Criteria;
+import org.hibernate.Hibernate;
+import org.hibernate.HibernateException;
+import org.hibernate.ReplicationMode;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+
+/**
+ * Moves the resources of the sharded classes to the shards they belong in
+ * (see ShardRouter) after shards have been added or removed:
+ *
+ *   java -Dsimplejson.hibernate_config=... com.natehardison.simplejson.util.ShardRebalancer
+ *
+ * with the configuration the server will run with afterwards. To remove a
+ * shard, move its URL from simplejson.shard.urls to
+ * simplejson.shard.drain_urls, and drop it once this has emptied it.
+ *
+ * Each shard's IDs are read in order, a batch at a time, and those that
+ * belong elsewhere are copied to their shard (keeping their versions) and
+ * committed there before they're deleted where they were, so a run that's
+ * cut short loses nothing and can simply be run again. The server must be
+ * stopped while it runs: a resource written between its copy and its
+ * delete would lose the write.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class ShardRebalancer {
+
+    private static final int BATCH_SIZE = 500;
+
+    private final HibernateManager manager;
+    private final ShardRouter router;
+
+    ShardRebalancer(HibernateManager manager) {
+        this.manager = manager;
+        this.router = manager.getShardRouter();
+    }
+
+    public static void main(String[] args) {
+        String resource = System.getProperty(HibernateManager.CONFIG_RESOURCE, "hibernate.cfg.xml");
+        String hbm2ddl = new Configuration().configure(resource).getProperty(Environment.HBM2DDL_AUTO);
+        // checked before anything connects, since that would drop the data
+        if (hbm2ddl != null && hbm2ddl.startsWith("create")) {
+            System.err.println("Refusing to rebalance with hbm2ddl.auto=" + hbm2ddl + " in " + resource);
+            System.exit(1);
+        }
+        HibernateManager manager = HibernateManager.getManager();
+        try {
+            if (manager.getShardRouter().isSharding()) {
+                new ShardRebalancer(manager).run();
+            } else {
+                System.err.println("No shards configured in " + resource);
+            }
+        } finally {
+            manager.close();
+        }
+    }
+
+    /**
+     * Moves every resource of the sharded classes that's on the wrong shard.
+     */
+    void run() {
+        List<SessionFactory> shards = router.getShards();
+        for (int i = 0; i < shards.size(); i++) {
+            for (Class<?> klass : router.getRootClasses()) {
+                long moved = rebalance(shards.get(i), i, klass);
+                System.out.println("Moved " + moved + " " + klass.getSimpleName() + " from " + router.getUrls().get(i));
+            }
+        }
+    }
+
+    /**
+     * Moves the resources of type klass on shard (the index-th) that belong
+     * on other shards.
+     * @return The number moved.
+     */
+    @SuppressWarnings("unchecked")
+    private long rebalance(SessionFactory shard, int index, Class<?> klass) {
+        String idName = manager.getIdentifierName(klass);
+        Serializable last = null;
+        long moved = 0;
+        while (true) {
+            List<Serializable> ids;
+            Session session = shard.openSession();
+            try {
+                Criteria criteria = session.createCriteria(klass)
+                        .setProjection(Projections.id())
+                        .addOrder(Order.asc(idName))
+                        .setMaxResults(BATCH_SIZE);
+                if (last != null) {
+                    criteria.add(Restrictions.gt(idName, last));
+                }
+                ids = (List<Serializable>) criteria.list();
+            } finally {
+                session.close();
+            }
+            if (ids.isEmpty()) {
+                return moved;
+            }
+            last = ids.get(ids.size() - 1);
+
+            // the misplaced IDs, by the shard they belong on
+            Map<Integer, List<Serializable>> targets = new HashMap<Integer, List<Serializable>>();
+            for (Serializable id : ids) {
+                int target = router.getShardIndex(id);
+                if (target != index) {
+                    List<Serializable> targetIds = targets.get(target);
+                    if (targetIds == null) {
+                        targetIds = new ArrayList<Serializable>();
+                        targets.put(target, targetIds);
+                    }
+                    targetIds.add(id);
+                }
+            }
+            for (Map.Entry<Integer, List<Serializable>> target : targets.entrySet()) {
+                move(shard, router.getShards().get(target.getKey()), klass, target.getValue());
+                moved += target.getValue().size();
+            }
+        }
+    }
+
+    /**
+     * Copies the resources of type klass with the given IDs from source to
+     * target, then deletes them from source.
+     */
+    @SuppressWarnings("unchecked")
+    private void move(SessionFactory source, SessionFactory target, Class<?> klass, List<Serializable> ids) {
+        List<Object> resources;
+        Session session = source.openSession();
+        try {
+            // read-only and detached once the session closes; references to
+            // unsharded resources stay uninitialized proxies
+            resources = (List<Object>) session.createCriteria(klass)
+                    .add(Restrictions.in(manager.getIdentifierName(klass), ids))
+                    .setCacheMode(CacheMode.IGNORE)
+                    .setReadOnly(true)
+                    .list();
+        } finally {
+            session.close();
+        }
+
+        session = target.openSession();
+        Transaction tx = null;
+        try {
+            tx = session.beginTransaction();
+            session.setCacheMode(CacheMode.IGNORE);
+            for (Object resource : resources) {
+                reattachReferences(session, resource);
+                // keeps the ID and version; a copy left by an earlier,
+                // interrupted run has the same version, so it's kept
+                session.replicate(resource, ReplicationMode.LATEST_VERSION);
+            }
+            tx.commit();
+        } catch (HibernateException e) {
+            if (tx != null) {
+                tx.rollback();
+            }
+            throw e;
+        } finally {
+            session.close();
+        }
+
+        session = source.openSession();
+        tx = null;
+        try {
+            tx = session.beginTransaction();
+            session.setCacheMode(CacheMode.IGNORE);
+            for (Serializable id : ids) {
+                Object resource = session.get(klass, id);
+                if (resource != null) {
+                    session.delete(resource);
+                }
+            }
+            tx.commit();
+        } catch (HibernateException e) {
+            if (tx != null) {
+                tx.rollback();
+            }
+            throw e;
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Points resource's many-to-one references (e.g., a vehicle's owner) at
+     * proxies from session, since the ones it has belong to the session it
+     * was read in.
+     */
+    private void reattachReferences(Session session, Object resource) {
+        SessionFactory factory = manager.getSessionFactory();
+        ClassMetadata metadata = factory.getClassMetadata(Hibernate.getClass(resource));
+        String[] names = metadata.getPropertyNames();
+        Type[] types = metadata.getPropertyTypes();
+        for (int i = 0; i < names.length; i++) {
+            Object value = metadata.getPropertyValue(resource, names[i]);
+            if (!types[i].isEntityType() || value == null) {
+                continue;
+            }
+            Serializable id = value instanceof HibernateProxy
+                    ? ((HibernateProxy) value).getHibernateLazyInitializer().getIdentifier()
+                    : manager.getIdentifier(value);
+            metadata.setPropertyValue(resource, names[i],
+                    session.load(((EntityType) types[i]).getAssociatedEntityName(), id));
+        }
+    }
+
+}
@@ -0,0 +1,343 @@
+package com.natehardison.simplejson.util;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.mapping.ForeignKey;
+import org.hibernate.mapping.PersistentClass;
+import org.hibernate.service.ServiceRegistryBuilder;
+
+/**
+ * Spreads the resources of the sharded classes (e.g., vehicles) over
+ * several databases, each with its own SessionFactory, by a consistent
+ * hash of their IDs: each shard owns VIRTUAL_NODES points on a ring of
+ * hashes, and an ID belongs to the shard owning the first point at or
+ * after the ID's own hash. Adding a shard then only moves the IDs that land
+ * on its new points (about 1/N of them) rather than nearly all of them, as
+ * hashing modulo N would; ShardRebalancer does the moving.
+ *
+ * Shards are placed on the ring by their URLs, so a shard's URL mustn't
+ * change while it holds data. A shard with the primary's URL is the
+ * primary; every other one gets a SessionFactory of its own, with the
+ * primary's settings (credentials, pool, cache) but no replicas. Shards map
+ * the whole model, so their schemas match, but leave out the foreign keys
+ * from sharded tables to unsharded ones (e.g., VEHICLE.OWNER_ID), since
+ * those rows live in the primary. Resources of every other class stay in
+ * the primary.
+ *
+ * Configured in hibernate.cfg.xml (see the constants below); with no URLs
+ * configured, nothing is sharded.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class ShardRouter {
+
+    /**
+     * Comma-separated JDBC URLs of the shards.
+     */
+    public static final String URLS = "simplejson.shard.urls";
+
+    /**
+     * Comma-separated JDBC URLs of shards being removed: they're read from
+     * like the others, but own nothing on the ring, so nothing new is
+     * written to them and ShardRebalancer moves everything off them.
+     */
+    public static final String DRAIN_URLS = "simplejson.shard.drain_urls";
+
+    /**
+     * Comma-separated names of the mapped classes to shard; a class covers
+     * its subclasses (e.g., Vehicle covers cars and trucks).
+     */
+    public static final String CLASSES = "simplejson.shard.classes";
+
+    // enough points per shard for an even spread
+    private static final int VIRTUAL_NODES = 128;
+
+    // c3p0's own default max_size
+    private static final int DEFAULT_POOL_SIZE = 15;
+    private static final long IDLE_SECONDS = 60;
+
+    /**
+     * Work to do against one shard (see scatter).
+     */
+    public interface ShardCall<T> {
+        /**
+         * @param shard The shard's SessionFactory.
+         * @return The shard's part of the result.
+         */
+        T call(SessionFactory shard);
+    }
+
+    private final SessionFactory primary;
+    private final List<String> urls;
+    private final List<SessionFactory> shards;
+    private final List<Class<?>> classes;
+    // point on the ring -> index of the shard that owns it
+    private final TreeMap<Long, Integer> ring = new TreeMap<Long, Integer>();
+    private final ExecutorService executor;
+
+    /**
+     * Builds the SessionFactory of each shard other than the primary.
+     * @param configuration The primary's configuration.
+     * @param resource The configuration resource it was read from.
+     * @param primary The primary's SessionFactory.
+     */
+    ShardRouter(Configuration configuration, String resource, SessionFactory primary) {
+        this.primary = primary;
+        List<String> urls = split(configuration.getProperty(URLS));
+        int ringSize = urls.size();
+        urls.addAll(split(configuration.getProperty(DRAIN_URLS)));
+        List<Class<?>> classes = new ArrayList<Class<?>>();
+        for (String name : split(configuration.getProperty(CLASSES))) {
+            try {
+                classes.add(Class.forName(name));
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException("Unknown class " + name + " in " + CLASSES, e);
+            }
+        }
+        if (urls.isEmpty()) {
+            classes.clear();
+        }
+        this.urls = Collections.unmodifiableList(urls);
+        this.classes = Collections.unmodifiableList(classes);
+
+        List<SessionFactory> shards = new ArrayList<SessionFactory>();
+        String primaryUrl = configuration.getProperty(Environment.URL);
+        for (int i = 0; i < urls.size(); i++) {
+            String url = urls.get(i);
+            shards.add(url.equals(primaryUrl) ? primary : buildShard(resource, url));
+            for (int node = 0; i < ringSize && node < VIRTUAL_NODES; node++) {
+                ring.put(hash(url + "#" + node), i);
+            }
+        }
+        this.shards = Collections.unmodifiableList(shards);
+
+        // a scatter's calls each hold one of their shard's connections, and
+        // the last runs on the caller's thread, so there's no use in more
+        // threads than the other shards have connections between them;
+        // further calls queue up for a thread rather than for a connection
+        String poolSize = configuration.getProperty(Environment.C3P0_MAX_SIZE);
+        int threads = Math.max(1, (shards.size() - 1)
+                * (poolSize == null ? DEFAULT_POOL_SIZE : Integer.parseInt(poolSize)));
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "simplejson-shard");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        this.executor = executor;
+    }
+
+    private static List<String> split(String values) {
+        List<String> list = new ArrayList<String>();
+        if (values != null) {
+            for (String value : values.split(",")) {
+                if (value.trim().length() > 0) {
+                    list.add(value.trim());
+                }
+            }
+        }
+        return list;
+    }
+
+    private SessionFactory buildShard(String resource, String url) {
+        Configuration configuration = new Configuration().configure(resource);
+        configuration.setProperty(Environment.URL, url);
+        configuration.setProperty(ReplicaRoutingConnectionProvider.REPLICA_URLS, "");
+        configuration.buildMappings();
+        Iterator<?> mappings = configuration.getClassMappings();
+        while (mappings.hasNext()) {
+            PersistentClass mapping = (PersistentClass) mappings.next();
+            if (!isSharded(mapping.getMappedClass())) {
+                continue;
+            }
+            // the keys were bound along with the mappings, so they're taken
+            // off the table before the schema is generated from it
+            Iterator<?> foreignKeys = mapping.getTable().getForeignKeyIterator();
+            while (foreignKeys.hasNext()) {
+                PersistentClass referenced = configuration.getClassMapping(
+                        ((ForeignKey) foreignKeys.next()).getReferencedEntityName());
+                if (referenced != null && !isSharded(referenced.getMappedClass())) {
+                    foreignKeys.remove();
+                }
+            }
+        }
+        ServiceRegistryBuilder serviceRegistryBuilder = new ServiceRegistryBuilder();
+        serviceRegistryBuilder.applySettings(configuration.getProperties());
+        return configuration.buildSessionFactory(serviceRegistryBuilder.buildServiceRegistry());
+    }
+
+    /**
+     * @param key A shard URL plus virtual node, or an ID.
+     * @return The key's point on the ring: the first 8 bytes of its MD5.
+     */
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            // every JRE has MD5
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            // and UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return true if there are shards.
+     */
+    public boolean isSharding() {
+        return !classes.isEmpty();
+    }
+
+    /**
+     * @param klass A mapped model class.
+     * @return true if resources of type klass are spread over the shards.
+     */
+    public boolean isSharded(Class<?> klass) {
+        for (Class<?> sharded : classes) {
+            if (sharded.isAssignableFrom(klass)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param id The ID of a resource of a sharded class.
+     * @return The index of the shard that the resource belongs in.
+     */
+    public int getShardIndex(Serializable id) {
+        SortedMap<Long, Integer> tail = ring.tailMap(hash(id.toString()));
+        return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail.firstKey());
+    }
+
+    /**
+     * @param id The ID of a resource of a sharded class.
+     * @return The SessionFactory of the shard that the resource belongs in.
+     */
+    public SessionFactory getShard(Serializable id) {
+        return shards.get(getShardIndex(id));
+    }
+
+    /**
+     * @return The SessionFactories of the shards, in the order configured,
+     *         followed by those of the shards being drained.
+     */
+    public List<SessionFactory> getShards() {
+        return shards;
+    }
+
+    /**
+     * @return The JDBC URLs of the shards, in the order of getShards.
+     */
+    public List<String> getUrls() {
+        return urls;
+    }
+
+    /**
+     * @return The sharded classes, as configured (e.g., Vehicle).
+     */
+    public List<Class<?>> getRootClasses() {
+        return classes;
+    }
+
+    /**
+     * Runs call against every shard at once, the last on the calling thread
+     * and the others on the router's threads, and waits for all of them.
+     * The threads are bounded by the shards' pool sizes, so when the
+     * scatters outnumber them, calls wait their turn for one.
+     * @param call The work to do against each shard.
+     * @return Each shard's result, in the order the shards are configured.
+     * @throws RuntimeException The exception thrown by the first shard (in
+     *         that order) that failed, if any.
+     */
+    public <T> List<T> scatter(final ShardCall<T> call) {
+        int last = shards.size() - 1;
+        List<Future<T>> futures = new ArrayList<Future<T>>(last);
+        for (final SessionFactory shard : shards.subList(0, last)) {
+            futures.add(executor.submit(new Callable<T>() {
+                public T call() {
+                    return call.call(shard);
+                }
+            }));
+        }
+        List<T> results = new ArrayList<T>(shards.size());
+        RuntimeException lastFailure = null;
+        try {
+            results.add(call.call(shards.get(last)));
+        } catch (RuntimeException e) {
+            lastFailure = e;
+        }
+
+        RuntimeException failure = null;
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                results.add(i, futures.get(i).get());
+            } catch (InterruptedException e) {
+                // the other shards' work is under way, so finish waiting
+                interrupted = true;
+                i--;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                if (failure == null) {
+                    failure = (RuntimeException) cause;
+                }
+                results.add(i, null);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        } else if (lastFailure != null) {
+            throw lastFailure;
+        }
+        return results;
+    }
+
+    /**
+     * Closes the SessionFactories of the shards other than the primary.
+     */
+    void close() {
+        executor.shutdown();
+        for (SessionFactory shard : shards) {
+            if (shard != primary) {
+                shard.close();
+            }
+        }
+    }
+
+}
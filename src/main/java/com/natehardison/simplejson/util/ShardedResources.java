@@ -0,0 +1,407 @@
+package com.natehardison.simplejson.util;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.hibernate.CacheMode;
+import org.hibernate.Hibernate;
+import org.hibernate.HibernateException;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.type.CollectionType;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+
+/**
+ * The reads HibernateManager makes of the sharded classes (see
+ * ShardRouter): each is scattered over every shard at once, and the shards'
+ * parts are gathered back into what a single database would have returned,
+ * with pages and streams merged in the query's order. Also fills in the
+ * collections of sharded resources that unsharded ones hold (e.g., an
+ * Owner's vehicles), which Hibernate can't fetch across databases.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class ShardedResources {
+
+    private final HibernateManager manager;
+    private final SessionFactory sessionFactory;
+    private final ShardRouter shards;
+
+    /**
+     * @param manager The HibernateManager whose reads these are.
+     * @param sessionFactory The primary's SessionFactory, for the mapping
+     *        metadata.
+     * @param shards The router that spreads the sharded classes over the
+     *        shards.
+     */
+    ShardedResources(HibernateManager manager, SessionFactory sessionFactory, ShardRouter shards) {
+        this.manager = manager;
+        this.sessionFactory = sessionFactory;
+        this.shards = shards;
+    }
+
+    /**
+     * Runs call against every shard at once (see ShardRouter#scatter), with
+     * the calling thread's read-after timestamp.
+     */
+    private <T> List<T> scatter(final ShardRouter.ShardCall<T> call) {
+        final Long after = manager.getReadAfter();
+        return shards.scatter(new ShardRouter.ShardCall<T>() {
+            public T call(SessionFactory shard) {
+                Long previous = manager.getReadAfter();
+                manager.setReadAfter(after);
+                try {
+                    return call.call(shard);
+                } finally {
+                    manager.setReadAfter(previous);
+                }
+            }
+        });
+    }
+
+    /**
+     * HibernateManager#getResources(Class) for a sharded class: every
+     * shard's resources, together.
+     */
+    <T> List<T> getResources(final Class<T> klass) {
+        List<T> resources = new ArrayList<T>();
+        for (List<T> part : scatter(new ShardRouter.ShardCall<List<T>>() {
+            public List<T> call(SessionFactory shard) {
+                return manager.getResources(shard, klass);
+            }
+        })) {
+            resources.addAll(part);
+        }
+        return resources;
+    }
+
+    /**
+     * HibernateManager#getResources(Class, ResourceQuery, Serializable, int,
+     * Collection) for a sharded class: every shard reads a page of its own,
+     * in parallel, and the pages are merged in query's order and cut back
+     * to limit, which makes the same page a single database would. Query's
+     * order is compared in Java for the merge, so string sorts should use a
+     * collation that agrees with it (e.g., a binary one).
+     */
+    <T> List<T> getResources(final Class<T> klass, final ResourceQuery query, final Serializable after,
+                             final int limit, final Collection<String> associations) {
+        Object cursor = null;
+        if (after != null && !query.getSorts().isEmpty()) {
+            // the cursor's sort values come from its own shard
+            Session session = manager.getSessionFactory(klass, after).getCurrentSession();
+            Transaction tx = null;
+            try {
+                tx = manager.beginRead(session);
+                cursor = manager.getCursor(session, klass, query, after);
+                tx.commit();
+            } catch (HibernateException e) {
+                if (tx != null) {
+                    tx.rollback();
+                }
+                throw e;
+            }
+        }
+        final Object cursorResource = cursor;
+        List<T> resources = new ArrayList<T>();
+        for (List<T> page : scatter(new ShardRouter.ShardCall<List<T>>() {
+            public List<T> call(SessionFactory shard) {
+                Session session = shard.getCurrentSession();
+                Transaction tx = null;
+                try {
+                    tx = manager.beginRead(session);
+                    List<T> page = manager.getPage(session, klass, query, after, cursorResource, limit,
+                            associations);
+                    tx.commit();
+                    return page;
+                } catch (HibernateException e) {
+                    if (tx != null) {
+                        tx.rollback();
+                    }
+                    throw e;
+                }
+            }
+        })) {
+            resources.addAll(page);
+        }
+        Collections.sort(resources, manager.getComparator(query));
+        resources = new ArrayList<T>(resources.subList(0, Math.min(limit, resources.size())));
+        manager.applyPending(resources);
+        return resources;
+    }
+
+    /**
+     * HibernateManager#getResources(Class, Collection, Collection) for a
+     * sharded class: each shard reads just its own IDs.
+     */
+    <T> List<T> getResources(final Class<T> klass, Collection<? extends Serializable> ids,
+                             final Collection<String> associations) {
+        final List<List<Serializable>> parts = new ArrayList<List<Serializable>>();
+        for (int i = 0; i < shards.getShards().size(); i++) {
+            parts.add(new ArrayList<Serializable>());
+        }
+        for (Serializable id : ids) {
+            parts.get(shards.getShardIndex(id)).add(id);
+        }
+        List<T> resources = new ArrayList<T>(ids.size());
+        for (List<T> part : scatter(new ShardRouter.ShardCall<List<T>>() {
+            public List<T> call(SessionFactory shard) {
+                List<Serializable> part = parts.get(shards.getShards().indexOf(shard));
+                if (part.isEmpty()) {
+                    return Collections.emptyList();
+                }
+                return manager.getResources(shard, klass, part, associations);
+            }
+        })) {
+            resources.addAll(part);
+        }
+        return resources;
+    }
+
+    /**
+     * HibernateManager#scrollResources for a sharded class: every shard
+     * streams its own resources in query's order, and the streams are
+     * merged (in Java, as for getResources) as they go, so that the
+     * resources come out in the same order they would from a single
+     * database. Each resource has its associations fetched as it's read,
+     * rather than a chunk at a time.
+     */
+    void scrollResources(Class<?> klass, ResourceQuery query, Collection<String> associations,
+                         HibernateManager.ResourceHandler handler) throws IOException {
+        final Comparator<Object> comparator = manager.getComparator(query);
+        // the next resource from each shard, in merged order
+        PriorityQueue<ShardScroll> heads = new PriorityQueue<ShardScroll>(shards.getShards().size(),
+                new Comparator<ShardScroll>() {
+                    public int compare(ShardScroll a, ShardScroll b) {
+                        return comparator.compare(a.next, b.next);
+                    }
+                });
+        int chunkSize = manager.getScrollFetchSize();
+        List<Session> sessions = new ArrayList<Session>();
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        try {
+            for (SessionFactory shard : shards.getShards()) {
+                Session session = shard.getCurrentSession();
+                sessions.add(session);
+                transactions.add(manager.beginRead(session));
+                ShardScroll scroll = new ShardScroll(manager.scroll(session, klass, query), associations);
+                if (scroll.advance()) {
+                    heads.add(scroll);
+                }
+            }
+            List<Object> chunk = new ArrayList<Object>(chunkSize);
+            while (!heads.isEmpty()) {
+                ShardScroll head = heads.poll();
+                chunk.add(head.next);
+                if (head.advance()) {
+                    heads.add(head);
+                }
+                if (chunk.size() == chunkSize || heads.isEmpty()) {
+                    manager.applyPending(chunk);
+                    for (Object resource : chunk) {
+                        handler.handle(resource);
+                    }
+                    chunk.clear();
+                    // the heads still waiting are already initialized
+                    for (Session session : sessions) {
+                        session.clear();
+                    }
+                }
+            }
+            HibernateManager.commit(transactions);
+        } catch (HibernateException e) {
+            HibernateManager.rollback(transactions);
+            throw e;
+        } catch (IOException e) {
+            HibernateManager.rollback(transactions);
+            throw e;
+        }
+    }
+
+    /**
+     * One shard's stream of resources in scrollResources.
+     */
+    private class ShardScroll {
+
+        private final ScrollableResults results;
+        private final Collection<String> associations;
+        private Object next;
+
+        public ShardScroll(ScrollableResults results, Collection<String> associations) {
+            this.results = results;
+            this.associations = associations;
+        }
+
+        /**
+         * Reads the next resource into next, or closes the stream at the end.
+         * @return false if there are no more.
+         */
+        public boolean advance() {
+            if (!results.next()) {
+                results.close();
+                next = null;
+                return false;
+            }
+            next = results.get(0);
+            manager.initialize(next, associations);
+            return true;
+        }
+
+    }
+
+    /**
+     * HibernateManager's aggregate queries for a sharded class, run on
+     * every shard.
+     * @return Each query's rows, those of every shard together.
+     */
+    List<List<Object[]>> aggregate(final ResourceQuery query, final List<String> hqls) {
+        List<List<Object[]>> rows = new ArrayList<List<Object[]>>();
+        for (int i = 0; i < hqls.size(); i++) {
+            rows.add(new ArrayList<Object[]>());
+        }
+        for (List<List<Object[]>> part : scatter(new ShardRouter.ShardCall<List<List<Object[]>>>() {
+            public List<List<Object[]>> call(SessionFactory shard) {
+                return manager.aggregate(shard, query, hqls);
+            }
+        })) {
+            for (int i = 0; i < hqls.size(); i++) {
+                rows.get(i).addAll(part.get(i));
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * @return The class of the elements of metadata's collection property
+     *         association, if they're sharded (e.g., Vehicle for an Owner's
+     *         vehicles), or else null.
+     */
+    Class<?> getElementClass(ClassMetadata metadata, String association) {
+        Type type = metadata.getPropertyType(association);
+        if (!shards.isSharding() || !type.isCollectionType()) {
+            return null;
+        }
+        Class<?> elementClass = ((CollectionType) type).getElementType((SessionFactoryImplementor) sessionFactory)
+                .getReturnedClass();
+        return shards.isSharded(elementClass) ? elementClass : null;
+    }
+
+    /**
+     * Fills in the named collections of sharded resources that the
+     * resources hold (e.g., an Owner's vehicles), which Hibernate can't
+     * fetch since their rows are spread over the shards: every shard is
+     * asked for its elements of all of the resources at once, by the
+     * foreign key back to them, and each resource's collection is replaced
+     * with a plain one holding them. The resources must be detached or
+     * read-only, or the replacements would be written back (though, as the
+     * collections are inverse, they'd write nothing).
+     */
+    void gatherAssociations(List<?> resources, Collection<String> associations) {
+        if (!shards.isSharding() || associations.isEmpty() || resources.isEmpty()) {
+            return;
+        }
+        for (String association : associations) {
+            // the resources holding the association, by ID
+            final Map<Serializable, Object> holders = new HashMap<Serializable, Object>();
+            Class<?> elementClass = null;
+            Class<?> holderClass = null;
+            for (Object resource : resources) {
+                ClassMetadata metadata = sessionFactory.getClassMetadata(Hibernate.getClass(resource));
+                if (Arrays.asList(metadata.getPropertyNames()).contains(association)) {
+                    elementClass = getElementClass(metadata, association);
+                    if (elementClass != null) {
+                        holderClass = metadata.getMappedClass();
+                        holders.put(manager.getIdentifier(resource), resource);
+                    }
+                }
+            }
+            if (holders.isEmpty()) {
+                continue;
+            }
+            String inverse = getInverseProperty(elementClass, holderClass);
+            final String hql = "select e, e." + inverse + ".id from " + elementClass.getName()
+                    + " e where e." + inverse + ".id in (:ids)";
+            final List<Serializable> ids = new ArrayList<Serializable>(holders.keySet());
+            Map<Serializable, List<Object>> elements = new HashMap<Serializable, List<Object>>();
+            for (List<Object[]> part : scatter(new ShardRouter.ShardCall<List<Object[]>>() {
+                @SuppressWarnings("unchecked")
+                public List<Object[]> call(SessionFactory shard) {
+                    Session session = shard.getCurrentSession();
+                    Transaction tx = null;
+                    List<Object[]> rows = new ArrayList<Object[]>();
+                    try {
+                        tx = manager.beginRead(session);
+                        for (int from = 0; from < ids.size(); from += HibernateManager.IN_CHUNK_SIZE) {
+                            int to = Math.min(from + HibernateManager.IN_CHUNK_SIZE, ids.size());
+                            rows.addAll(session.createQuery(hql)
+                                    .setParameterList("ids", ids.subList(from, to))
+                                    .setCacheMode(CacheMode.IGNORE)
+                                    .list());
+                        }
+                        tx.commit();
+                    } catch (HibernateException e) {
+                        if (tx != null) {
+                            tx.rollback();
+                        }
+                        throw e;
+                    }
+                    return rows;
+                }
+            })) {
+                for (Object[] row : part) {
+                    List<Object> holderElements = elements.get((Serializable) row[1]);
+                    if (holderElements == null) {
+                        holderElements = new ArrayList<Object>();
+                        elements.put((Serializable) row[1], holderElements);
+                    }
+                    holderElements.add(row[0]);
+                }
+            }
+            for (Map.Entry<Serializable, Object> holder : holders.entrySet()) {
+                List<Object> loaded = elements.get(holder.getKey());
+                if (loaded == null) {
+                    loaded = new ArrayList<Object>();
+                }
+                manager.applyPending(loaded);
+                ClassMetadata metadata = sessionFactory.getClassMetadata(Hibernate.getClass(holder.getValue()));
+                Class<?> collectionClass = metadata.getPropertyType(association).getReturnedClass();
+                metadata.setPropertyValue(holder.getValue(), association, Set.class.isAssignableFrom(collectionClass)
+                        ? new HashSet<Object>(loaded) : loaded);
+            }
+        }
+    }
+
+    /**
+     * @return The name of elementClass's many-to-one property that refers
+     *         to holderClass (e.g., a Vehicle's owner).
+     */
+    private String getInverseProperty(Class<?> elementClass, Class<?> holderClass) {
+        ClassMetadata metadata = sessionFactory.getClassMetadata(elementClass);
+        for (String name : metadata.getPropertyNames()) {
+            Type type = metadata.getPropertyType(name);
+            if (type.isEntityType()) {
+                Class<?> referenced = sessionFactory.getClassMetadata(
+                        ((EntityType) type).getAssociatedEntityName()).getMappedClass();
+                if (referenced.isAssignableFrom(holderClass)) {
+                    return name;
+                }
+            }
+        }
+        throw new IllegalStateException(elementClass.getName() + " has no reference to " + holderClass.getName());
+    }
+
+}
@@ -0,0 +1,117 @@
+package com.natehardison.simplejson.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets concurrent callers that need the same thing share a single call for
+ * it: the first caller for a key makes the call, and any others that ask
+ * for the same key while it's under way wait for its result (or exception)
+ * instead of making their own. Nothing is kept once the call returns, so
+ * the next caller for the key makes a new one; callers that mustn't be
+ * handed a result from before some event (e.g., a commit) should put
+ * something that changes with it into the key (see ChangeFeed).
+ *
+ * Results are shared as is between the callers, so they mustn't be
+ * modified. A caller that waits longer than the timeout for another's call
+ * is turned away with an OverloadedException, like a request that waited
+ * too long for the database (see DatabaseLimiter).
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class SingleFlight<K, V> {
+
+    /**
+     * A call to share, which throws E (or unchecked exceptions) on failure.
+     */
+    public interface Call<V, E extends Exception> {
+        V call() throws E;
+    }
+
+    private final long timeout;
+    // calls under way, by key
+    private final ConcurrentMap<K, FutureTask<V>> calls = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    /**
+     * @param timeout Milliseconds a caller may wait for another's call, or 0
+     *        to wait as long as it takes.
+     */
+    public SingleFlight(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Makes the call for key, or waits for the one already under way.
+     * @param key What the call is for; equal keys must mean equal results.
+     * @param call The call to make, if need be.
+     * @return The call's result.
+     * @throws E If the call fails.
+     * @throws OverloadedException If the wait for another's call times out
+     *         (or is interrupted).
+     */
+    @SuppressWarnings("unchecked")
+    public <E extends Exception> V execute(K key, final Call<V, E> call) throws E {
+        FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+            public V call() throws Exception {
+                return call.call();
+            }
+        });
+        FutureTask<V> existing = calls.putIfAbsent(key, task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                calls.remove(key, task);
+            }
+        } else {
+            coalesced.incrementAndGet();
+            task = existing;
+        }
+
+        try {
+            if (existing == null || timeout == 0) {
+                return task.get();
+            }
+            return task.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            timedOut.incrementAndGet();
+            throw new OverloadedException(DatabaseLimiter.getLimiter().getRetryAfter());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OverloadedException(DatabaseLimiter.getLimiter().getRetryAfter());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            // Call only lets E through
+            throw (E) cause;
+        }
+    }
+
+    /**
+     * @return The number of callers that waited for another's call instead
+     *         of making their own.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return The number of callers turned away after waiting too long.
+     */
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+}
@@ -0,0 +1,443 @@
+package com.natehardison.simplejson.util;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.hibernate.HibernateException;
+import org.hibernate.ObjectNotFoundException;
+
+/**
+ * The WriteBehindBuffer is a helper singleton class that holds updates of
+ * the configured entity types (e.g., vehicles reporting their speed several
+ * times a second) in memory instead of writing each one as it comes in.
+ * Only the latest update of each resource is kept, and every interval
+ * milliseconds (or as soon as max_pending resources are waiting) all of
+ * them are written in a single transaction, as batched UPDATEs. Reads of a
+ * resource with an update waiting see that update (see HibernateManager),
+ * and any other write to it writes the waiting update first and holds the
+ * resource's lock until it's done, so that no update of the resource can be
+ * buffered meanwhile and written over it later: the buffer never reorders
+ * writes to the same resource.
+ *
+ * Buffered updates have no version check and no new version to report, so
+ * only updates without If-Match go through the buffer. They're drained on
+ * shutdown (see HibernateListener), but if the process dies, whatever was
+ * still waiting is lost: at most one update per resource, made within the
+ * last interval milliseconds (plus however long the last write took).
+ *
+ * Buffering an update is therefore not a promise to write it: the client
+ * has its 202 before the database has seen the update, and an update that
+ * then fails to be written (e.g., it breaks a constraint, or the resource
+ * was deleted meanwhile) is dropped, not retried, and can't be reported to
+ * the client. Dropped updates are logged and counted (see getDropped).
+ *
+ * Configured in hibernate.cfg.xml (see the constants below); with no
+ * classes configured, nothing is buffered.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class WriteBehindBuffer {
+
+    /**
+     * Comma-separated names of the mapped classes to buffer updates of; a
+     * class covers its subclasses (e.g., Vehicle covers cars and trucks).
+     */
+    public static final String CLASSES = "simplejson.write_behind.classes";
+
+    /**
+     * Milliseconds between writes of the buffered updates.
+     */
+    public static final String INTERVAL = "simplejson.write_behind.interval";
+    private static final long DEFAULT_INTERVAL = 1000;
+
+    /**
+     * Number of resources with updates waiting that triggers a write before
+     * the interval is up.
+     */
+    public static final String MAX_PENDING = "simplejson.write_behind.max_pending";
+    private static final int DEFAULT_MAX_PENDING = 1000;
+
+    // number of locks the resources are spread over (see lock)
+    private static final int LOCKS = 64;
+
+    private static final Logger logger = Logger.getLogger(WriteBehindBuffer.class.getName());
+
+    private static final WriteBehindBuffer buffer = new WriteBehindBuffer();
+
+    private final HibernateManager manager;
+    private final List<Class<?>> classes;
+    private final long interval;
+    private final int maxPending;
+    private final ScheduledExecutorService executor;
+    private final Map<Key, Update> pending = new ConcurrentHashMap<Key, Update>();
+    // held while writing, so that other writes to a resource can wait for
+    // its buffered update to be written (see lock)
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // held while buffering an update of a resource, and by other writes to
+    // it for as long as they take (see lock), by the resource's Key's hash
+    private final ReentrantLock[] locks = new ReentrantLock[LOCKS];
+    private final AtomicBoolean writeRequested = new AtomicBoolean();
+    private volatile boolean closed;
+
+    private final AtomicLong buffered = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+
+    private final Runnable writeTask = new Runnable() {
+        public void run() {
+            writeRequested.set(false);
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                // keep the schedule going; the updates are still waiting
+                logger.log(Level.WARNING, "Write-behind flush failed", e);
+            }
+        }
+    };
+
+    private WriteBehindBuffer() {
+        this.manager = HibernateManager.getManager();
+        String interval = manager.getProperty(INTERVAL);
+        this.interval = interval == null ? DEFAULT_INTERVAL : Long.parseLong(interval);
+        String maxPending = manager.getProperty(MAX_PENDING);
+        this.maxPending = maxPending == null ? DEFAULT_MAX_PENDING : Integer.parseInt(maxPending);
+
+        List<Class<?>> classes = new ArrayList<Class<?>>();
+        String names = manager.getProperty(CLASSES);
+        if (names != null) {
+            for (String name : names.split(",")) {
+                if (name.trim().length() == 0) {
+                    continue;
+                }
+                try {
+                    classes.add(Class.forName(name.trim()));
+                } catch (ClassNotFoundException e) {
+                    throw new IllegalStateException("Unknown class " + name + " in " + CLASSES, e);
+                }
+            }
+        }
+        this.classes = Collections.unmodifiableList(classes);
+        for (int i = 0; i < LOCKS; i++) {
+            locks[i] = new ReentrantLock();
+        }
+
+        if (classes.isEmpty()) {
+            this.executor = null;
+            return;
+        }
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "simplejson-write-behind");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(writeTask, this.interval, this.interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The singleton instance of the WriteBehindBuffer.
+     */
+    public static WriteBehindBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @param klass A mapped model class.
+     * @return true if updates of resources of type klass are buffered.
+     */
+    public boolean isBuffered(Class<?> klass) {
+        for (Class<?> buffered : classes) {
+            if (buffered.isAssignableFrom(klass)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if no updates are waiting to be written.
+     */
+    public boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Buffers an update of the resource of type klass with ID id, replacing
+     * any update of it that's still waiting. After shutdown, the update is
+     * written straight away instead.
+     * @param resource The updated resource data, with its identifier set.
+     * @param klass The type of resource to update (see isBuffered).
+     * @param id The id of the resource to update.
+     * @throws ObjectNotFoundException If the resource doesn't exist.
+     */
+    public void update(Object resource, Class<?> klass, Serializable id) {
+        if (closed) {
+            manager.updateResource(resource, klass, id);
+            return;
+        }
+        Key key = new Key(manager.getRootClass(klass), id);
+        // wait for any other write to the resource under way to finish, so
+        // that this update is written after it, not before
+        ReentrantLock lock = getLock(key);
+        Update previous;
+        lock.lock();
+        try {
+            previous = pending.get(key);
+            // a resource with an update waiting is known to exist already,
+            // as is one in the second-level cache (where the last write of
+            // it left it), so only the first update of a resource reads it
+            if ((previous == null || previous.klass != klass) && !manager.isCached(klass, id)) {
+                if (!klass.isInstance(manager.getResource(klass, id))) {
+                    throw new ObjectNotFoundException(id, klass.getName());
+                }
+            }
+            previous = pending.put(key, new Update(klass, resource));
+        } finally {
+            lock.unlock();
+        }
+        buffered.incrementAndGet();
+        if (previous != null) {
+            coalesced.incrementAndGet();
+        } else if (pending.size() >= maxPending && writeRequested.compareAndSet(false, true)) {
+            executor.execute(writeTask);
+        }
+    }
+
+    /**
+     * @param klass The type of the resource.
+     * @param id The id of the resource.
+     * @return The update of the resource waiting to be written, or null.
+     */
+    public Object getPending(Class<?> klass, Serializable id) {
+        Update update = pending.get(new Key(manager.getRootClass(klass), id));
+        return update == null ? null : update.resource;
+    }
+
+    /**
+     * Writes every update waiting, in a single transaction. If that fails
+     * (e.g., one resource was changed concurrently), they're retried one at
+     * a time, and any that still fail are dropped.
+     */
+    public void flush() {
+        writeLock.lock();
+        try {
+            if (pending.isEmpty()) {
+                return;
+            }
+            List<Map.Entry<Key, Update>> updates = new ArrayList<Map.Entry<Key, Update>>(pending.entrySet());
+            List<Object> resources = new ArrayList<Object>(updates.size());
+            for (Map.Entry<Key, Update> update : updates) {
+                resources.add(update.getValue().resource);
+            }
+            try {
+                manager.updateResources(resources);
+                written.addAndGet(resources.size());
+            } catch (HibernateException e) {
+                for (Map.Entry<Key, Update> update : updates) {
+                    write(update.getKey(), update.getValue());
+                }
+            }
+            // leave any newer updates that came in meanwhile for next time
+            for (Map.Entry<Key, Update> update : updates) {
+                pending.remove(update.getKey(), update.getValue());
+            }
+            flushes.incrementAndGet();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Takes the lock of the resource of type klass with ID id, and writes
+     * its update, if one is waiting. Until unlock is called, no update of
+     * the resource can be buffered. Call this before writing to the resource
+     * any other way, and unlock (in a finally block) once the write is done
+     * (or has failed).
+     * @param klass The type of the resource.
+     * @param id The id of the resource.
+     */
+    public void lock(Class<?> klass, Serializable id) {
+        if (classes.isEmpty()) {
+            return;
+        }
+        Key key = new Key(manager.getRootClass(klass), id);
+        ReentrantLock lock = getLock(key);
+        lock.lock();
+        try {
+            flush(key);
+        } catch (RuntimeException e) {
+            lock.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Releases the lock of the resource of type klass with ID id taken by
+     * lock, letting updates of it be buffered again.
+     * @param klass The type of the resource.
+     * @param id The id of the resource.
+     */
+    public void unlock(Class<?> klass, Serializable id) {
+        if (classes.isEmpty()) {
+            return;
+        }
+        getLock(new Key(manager.getRootClass(klass), id)).unlock();
+    }
+
+    private ReentrantLock getLock(Key key) {
+        return locks[(key.hashCode() & Integer.MAX_VALUE) % LOCKS];
+    }
+
+    /**
+     * Writes the update of the resource with the given key, if one is
+     * waiting, waiting for any write already under way to finish first.
+     */
+    private void flush(Key key) {
+        if (!pending.containsKey(key)) {
+            return;
+        }
+        writeLock.lock();
+        try {
+            Update update = pending.get(key);
+            if (update != null) {
+                write(key, update);
+                pending.remove(key, update);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a single update in its own transaction, dropping it if it fails
+     * (see the class comment).
+     */
+    private void write(Key key, Update update) {
+        try {
+            manager.updateResources(Collections.singletonList(update.resource));
+            written.incrementAndGet();
+        } catch (HibernateException e) {
+            dropped.incrementAndGet();
+            logger.log(Level.WARNING, "Dropped buffered update of " + update.klass.getName() + " " + key.id, e);
+        }
+    }
+
+    /**
+     * Stops the scheduled writes and writes whatever is still waiting. Any
+     * updates made afterwards are written straight away.
+     */
+    public void shutdown() {
+        closed = true;
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(interval, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    /**
+     * @return The number of resources with updates waiting.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return The number of updates buffered.
+     */
+    public long getBuffered() {
+        return buffered.get();
+    }
+
+    /**
+     * @return The number of buffered updates replaced by a newer one before
+     *         they were written.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return The number of buffered updates written to the database.
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * @return The number of buffered updates that couldn't be written.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return The number of times the buffer has been written out.
+     */
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    /**
+     * A resource, by the root class whose identifiers it shares (so that
+     * /car/{vin} and /truck/{vin}, or /person/{id} and /owner/{id}, can't
+     * both have an update of the same row waiting).
+     */
+    private static class Key {
+
+        private final Class<?> root;
+        private final Serializable id;
+
+        public Key(Class<?> root, Serializable id) {
+            this.root = root;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return root == other.root && id.equals(other.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * root.hashCode() + id.hashCode();
+        }
+
+    }
+
+    private static class Update {
+
+        private final Class<?> klass;
+        private final Object resource;
+
+        public Update(Class<?> klass, Object resource) {
+            this.klass = klass;
+            this.resource = resource;
+        }
+
+    }
+
+}
@@ -0,0 +1,33 @@
+package com.natehardison.simplejson.web;
+
+import java.io.Serializable;
+
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+/**
+ * The outcome of creating one item of a POST /{class}/_bulk request.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+@JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+public class BulkResult {
+
+    // position of the item in the request, starting from 0
+    private int index;
+
+    // HTTP status the item would have gotten from POST /{class}
+    private int status;
+
+    // ID of the created resource; null unless the item was created
+    private Serializable id;
+
+    public BulkResult(int index, int status, Serializable id) {
+        this.index = index;
+        this.status = status;
+        this.id = id;
+    }
+
+    public int getIndex() { return this.index; }
+    public int getStatus() { return this.status; }
+    public Serializable getId() { return this.id; }
+
+}
@@ -0,0 +1,108 @@
+package com.natehardison.simplejson.web;
+
+import java.util.Collections;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import com.natehardison.simplejson.util.ChangeFeed;
+import com.natehardison.simplejson.util.HibernateManager;
+import com.natehardison.simplejson.util.ModelRegistry;
+import com.natehardison.simplejson.util.ModelRegistry.Model;
+
+/**
+ * Resource class for following the changes to a class of resources instead
+ * of re-reading the whole collection. Supported operations:
+ * - GET /{class}/_changes             => the sequence number to follow from
+ * - GET /{class}/_changes?since={seq} => changes after seq
+ *   (&limit={n} => at most n of them)
+ *   (&wait={seconds} => wait up to that long for one, if there are none yet)
+ * The changes are served from the ChangeFeed, in memory, so unlike the
+ * other resources this one doesn't use the database (and a long poll
+ * doesn't hold on to a turn at it). If the changes after since are no
+ * longer kept, HTTP 410 (Gone) is returned, and the client has to read the
+ * collection again.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+@Path("/{class: car|owner|person|truck}/_changes")
+public class ChangesResource {
+
+    /**
+     * Upper bound on wait, in seconds.
+     */
+    static final int MAX_WAIT = 30;
+
+    /**
+     * How many requests may wait for changes at once; any more are answered
+     * straight away, as if they hadn't asked to wait, so that long polls
+     * can't take every container thread.
+     */
+    static final int MAX_WAITING = 100;
+
+    private static final Semaphore waiting = new Semaphore(MAX_WAITING);
+
+    /**
+     * Retrieves the changes to resources of type className after since.
+     * Without since, no changes are returned, only the current sequence
+     * number: read the collection after getting it, then follow the changes
+     * from there.
+     * @param className The type of resources to retrieve changes to.
+     * @param since The last sequence number the client has seen.
+     * @param limit The maximum number of changes to return.
+     * @param wait Seconds to wait for a change, if there are none yet.
+     * @return The changes, and the sequence number to pass as since next.
+     */
+    @GET
+    @Produces({MediaType.APPLICATION_JSON, SmileProvider.SMILE})
+    public ChangeFeed.Page getChanges(@PathParam("class") String className,
+                                      @QueryParam("since") Long since,
+                                      @QueryParam("limit") Integer limit,
+                                      @QueryParam("wait") Integer wait) {
+        Model model = ModelRegistry.getRegistry().getModel(className);
+        if (model == null) {
+            throw new WebApplicationException(404);
+        }
+        ChangeFeed feed = HibernateManager.getManager().getChangeFeed();
+        if (since == null) {
+            return new ChangeFeed.Page(feed.getLastSequence(), Collections.<ChangeFeed.Change>emptyList());
+        }
+        if (limit == null) {
+            limit = SimpleJsonResource.DEFAULT_PAGE_SIZE;
+        } else if (limit <= 0 || limit > SimpleJsonResource.MAX_PAGE_SIZE) {
+            throw new WebApplicationException(400);
+        }
+        if (wait != null && (wait < 0 || wait > MAX_WAIT)) {
+            throw new WebApplicationException(400);
+        }
+
+        long timeout = 0;
+        boolean waited = wait != null && wait > 0 && waiting.tryAcquire();
+        if (waited) {
+            timeout = TimeUnit.SECONDS.toMillis(wait);
+        }
+        ChangeFeed.Page page;
+        try {
+            page = feed.getChanges(model.getModelClass(), since, limit, timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WebApplicationException(503);
+        } finally {
+            if (waited) {
+                waiting.release();
+            }
+        }
+        if (page == null) {
+            throw new WebApplicationException(Response.Status.GONE);
+        }
+        return page;
+    }
+
+}
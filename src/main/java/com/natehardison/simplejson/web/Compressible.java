@@ -0,0 +1,16 @@
+package com.natehardison.simplejson.web;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a resource method whose responses are big enough to be worth
+ * gzipping (e.g., collection GETs) when the client accepts it (see
+ * GzipFilterFactory).
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Compressible {}
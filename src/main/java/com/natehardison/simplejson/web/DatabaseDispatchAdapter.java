@@ -0,0 +1,82 @@
+package com.natehardison.simplejson.web;
+
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.ext.Provider;
+
+import com.natehardison.simplejson.util.DatabaseLimiter;
+import com.natehardison.simplejson.util.HibernateManager;
+import com.sun.jersey.api.core.HttpContext;
+import com.sun.jersey.api.model.AbstractResourceMethod;
+import com.sun.jersey.spi.container.ResourceMethodDispatchAdapter;
+import com.sun.jersey.spi.container.ResourceMethodDispatchProvider;
+import com.sun.jersey.spi.dispatch.RequestDispatcher;
+
+/**
+ * Wraps the dispatch of every @UsesDatabase resource method so that it
+ * first waits for a turn from the DatabaseLimiter, and is turned away with
+ * a 503 if it can't get one in time.
+ *
+ * It also takes care of reading your own writes when reads go to replicas:
+ * successful writes are answered with the time they were made, in an
+ * X-Last-Write header, and requests that send that time back as X-Read-After
+ * are read from the primary until the replicas have caught up.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+@Provider
+public class DatabaseDispatchAdapter implements ResourceMethodDispatchAdapter {
+
+    public static final String LAST_WRITE = "X-Last-Write";
+    public static final String READ_AFTER = "X-Read-After";
+
+    public ResourceMethodDispatchProvider adapt(final ResourceMethodDispatchProvider provider) {
+        return new ResourceMethodDispatchProvider() {
+            public RequestDispatcher create(AbstractResourceMethod method) {
+                final RequestDispatcher dispatcher = provider.create(method);
+                if (dispatcher == null || !usesDatabase(method)) {
+                    return dispatcher;
+                }
+                final boolean write = !method.getHttpMethod().equals(HttpMethod.GET)
+                        && !method.getHttpMethod().equals(HttpMethod.HEAD);
+                return new RequestDispatcher() {
+                    public void dispatch(Object resource, HttpContext context) {
+                        DatabaseLimiter limiter = DatabaseLimiter.getLimiter();
+                        HibernateManager manager = HibernateManager.getManager();
+                        limiter.acquire();
+                        try {
+                            manager.setReadAfter(parseReadAfter(context.getRequest().getHeaderValue(READ_AFTER)));
+                            dispatcher.dispatch(resource, context);
+                        } finally {
+                            manager.setReadAfter(null);
+                            limiter.release();
+                        }
+                        if (write && context.getResponse().getStatus() < 400) {
+                            context.getResponse().getHttpHeaders().putSingle(LAST_WRITE, System.currentTimeMillis());
+                        }
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * @param readAfter The X-Read-After header, possibly null.
+     * @return Its timestamp, or null if it's missing or malformed.
+     */
+    private static Long parseReadAfter(String readAfter) {
+        if (readAfter == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(readAfter.trim());
+        } catch (NumberFormatException e) {
+            // a bad token shouldn't fail the read; play it safe instead
+            return System.currentTimeMillis();
+        }
+    }
+
+    private static boolean usesDatabase(AbstractResourceMethod method) {
+        return method.isAnnotationPresent(UsesDatabase.class)
+                || method.getResource().getResourceClass().isAnnotationPresent(UsesDatabase.class);
+    }
+
+}
@@ -0,0 +1,197 @@
+package com.natehardison.simplejson.web;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+
+import com.sun.jersey.api.core.ResourceConfig;
+import com.sun.jersey.api.model.AbstractMethod;
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerRequestFilter;
+import com.sun.jersey.spi.container.ContainerResponse;
+import com.sun.jersey.spi.container.ContainerResponseFilter;
+import com.sun.jersey.spi.container.ContainerResponseWriter;
+import com.sun.jersey.spi.container.ResourceFilter;
+import com.sun.jersey.spi.container.ResourceFilterFactory;
+
+/**
+ * Gzips the responses of @Compressible resource methods for clients that
+ * send Accept-Encoding: gzip, once they reach a threshold size (the
+ * THRESHOLD_PROPERTY init-param, in bytes); smaller responses aren't worth
+ * the CPU. Registered with Jersey in web.xml.
+ *
+ * Most entities are streamed with no length known up front, so up to the
+ * threshold is buffered to find out whether the response will be big enough.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class GzipFilterFactory implements ResourceFilterFactory {
+
+    public static final String THRESHOLD_PROPERTY = "simplejson.gzip.threshold";
+    private static final int DEFAULT_THRESHOLD = 1024;
+
+    private final int threshold;
+
+    public GzipFilterFactory(@Context ResourceConfig config) {
+        Object threshold = config.getProperty(THRESHOLD_PROPERTY);
+        this.threshold = threshold == null ? DEFAULT_THRESHOLD : Integer.parseInt(threshold.toString().trim());
+    }
+
+    public List<ResourceFilter> create(AbstractMethod method) {
+        if (!method.isAnnotationPresent(Compressible.class)) {
+            return null;
+        }
+        return Collections.<ResourceFilter>singletonList(new GzipFilter(threshold));
+    }
+
+    /**
+     * @param acceptEncoding The request's Accept-Encoding header, or null.
+     * @return Whether the client will take a gzipped response.
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.split(";");
+            String name = params[0].trim();
+            if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) {
+                continue;
+            }
+            boolean refused = false;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        refused = Double.parseDouble(param.substring(2)) == 0;
+                    } catch (NumberFormatException e) {
+                        refused = true;
+                    }
+                }
+            }
+            if (!refused) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class GzipFilter implements ResourceFilter, ContainerResponseFilter {
+
+        private final int threshold;
+
+        public GzipFilter(int threshold) {
+            this.threshold = threshold;
+        }
+
+        public ContainerRequestFilter getRequestFilter() {
+            return null;
+        }
+
+        public ContainerResponseFilter getResponseFilter() {
+            return this;
+        }
+
+        public ContainerResponse filter(ContainerRequest request, ContainerResponse response) {
+            // caches have to keep the two encodings apart either way
+            response.getHttpHeaders().add("Vary", HttpHeaders.ACCEPT_ENCODING);
+            if (response.getEntity() == null || response.getHttpHeaders().containsKey("Content-Encoding")
+                    || !acceptsGzip(request.getHeaderValue(HttpHeaders.ACCEPT_ENCODING))) {
+                return response;
+            }
+            response.setContainerResponseWriter(new GzipResponseWriter(response.getContainerResponseWriter(), threshold));
+            return response;
+        }
+
+    }
+
+    /**
+     * Holds back the status and headers until it knows whether the entity
+     * reaches the threshold, then commits them with or without gzip.
+     */
+    private static class GzipResponseWriter implements ContainerResponseWriter {
+
+        private final ContainerResponseWriter writer;
+        private final int threshold;
+        private ContainerResponse response;
+        private ByteArrayOutputStream buffer;
+        private OutputStream out;
+
+        public GzipResponseWriter(ContainerResponseWriter writer, int threshold) {
+            this.writer = writer;
+            this.threshold = threshold;
+        }
+
+        public OutputStream writeStatusAndHeaders(long contentLength, ContainerResponse response) throws IOException {
+            this.response = response;
+            if (contentLength >= 0 && contentLength < threshold) {
+                return writer.writeStatusAndHeaders(contentLength, response);
+            }
+            if (contentLength >= threshold) {
+                out = compress();
+                return out;
+            }
+            buffer = new ByteArrayOutputStream(threshold);
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (out == null && buffer.size() + len >= threshold) {
+                        out = compress();
+                        buffer.writeTo(out);
+                        buffer = null;
+                    }
+                    if (out != null) {
+                        out.write(b, off, len);
+                    } else {
+                        buffer.write(b, off, len);
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    // flushing before the threshold would give away the
+                    // chance to compress, so only flush once committed
+                    if (out != null) {
+                        out.flush();
+                    }
+                }
+            };
+        }
+
+        private OutputStream compress() throws IOException {
+            response.getHttpHeaders().putSingle("Content-Encoding", "gzip");
+            // a strong ETag promises the exact bytes, which the gzipped ones
+            // aren't; a weak one still gets the client its 304s
+            Object tag = response.getHttpHeaders().getFirst("ETag");
+            if (tag instanceof EntityTag && !((EntityTag) tag).isWeak()) {
+                response.getHttpHeaders().putSingle("ETag", new EntityTag(((EntityTag) tag).getValue(), true));
+            }
+            return new GZIPOutputStream(writer.writeStatusAndHeaders(-1, response), 8192);
+        }
+
+        public void finish() throws IOException {
+            if (buffer != null) {
+                // never reached the threshold: send it as it is
+                OutputStream identity = writer.writeStatusAndHeaders(buffer.size(), response);
+                buffer.writeTo(identity);
+                buffer = null;
+            } else if (out instanceof GZIPOutputStream) {
+                ((GZIPOutputStream) out).finish();
+            }
+            writer.finish();
+        }
+
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.natehardison.simplejson.web;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+
+import com.natehardison.simplejson.util.Metrics;
+import com.sun.jersey.api.model.AbstractMethod;
+import com.sun.jersey.api.model.AbstractResourceMethod;
+import com.sun.jersey.api.model.AbstractSubResourceMethod;
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerRequestFilter;
+import com.sun.jersey.spi.container.ContainerResponse;
+import com.sun.jersey.spi.container.ContainerResponseFilter;
+import com.sun.jersey.spi.container.ContainerResponseWriter;
+import com.sun.jersey.spi.container.ResourceFilter;
+import com.sun.jersey.spi.container.ResourceFilterFactory;
+
+/**
+ * Times every resource method and records it under its route in Metrics.
+ * Registered with Jersey in web.xml. The timer stops once the response has
+ * been completely written, so streamed responses are timed in full.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class MetricsFilterFactory implements ResourceFilterFactory {
+
+    private static final String START_PROPERTY = MetricsFilterFactory.class.getName() + ".start";
+
+    public List<ResourceFilter> create(AbstractMethod method) {
+        if (!(method instanceof AbstractResourceMethod)) {
+            // sub-resource locators aren't requests in their own right
+            return null;
+        }
+        if (method.getResource().getResourceClass().getPackage() != MetricsFilterFactory.class.getPackage()) {
+            // leave out Jersey's own resources (e.g., application.wadl)
+            return null;
+        }
+        // only root resources have a path of their own
+        String path = method.getResource().isRootResource() ? method.getResource().getPath().getValue() : "";
+        if (method instanceof AbstractSubResourceMethod) {
+            path = path + "/" + ((AbstractSubResourceMethod) method).getPath().getValue();
+        }
+        String route = ((AbstractResourceMethod) method).getHttpMethod() + " " + normalize(path);
+        return Collections.<ResourceFilter>singletonList(new MetricsFilter(Metrics.getMetrics().getRoute(route)));
+    }
+
+    /**
+     * Turns a path template into a readable route: "/{class: car|truck}//{id}"
+     * becomes "/{class}/{id}".
+     */
+    private static String normalize(String path) {
+        path = path.replaceAll("\\{\\s*(\\w[\\w.-]*)\\s*:[^}]*\\}", "{$1}");
+        path = ("/" + path).replaceAll("/+", "/");
+        if (path.length() > 1 && path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    private static class MetricsFilter implements ResourceFilter, ContainerRequestFilter, ContainerResponseFilter {
+
+        private final Metrics.RouteMetrics route;
+
+        public MetricsFilter(Metrics.RouteMetrics route) {
+            this.route = route;
+        }
+
+        public ContainerRequestFilter getRequestFilter() {
+            return this;
+        }
+
+        public ContainerResponseFilter getResponseFilter() {
+            return this;
+        }
+
+        public ContainerRequest filter(ContainerRequest request) {
+            request.getProperties().put(START_PROPERTY, System.nanoTime());
+            return request;
+        }
+
+        public ContainerResponse filter(ContainerRequest request, final ContainerResponse response) {
+            final Long start = (Long) request.getProperties().get(START_PROPERTY);
+            if (start == null) {
+                return response;
+            }
+            // the entity hasn't been written yet, so wait for it
+            final ContainerResponseWriter writer = response.getContainerResponseWriter();
+            response.setContainerResponseWriter(new ContainerResponseWriter() {
+                public OutputStream writeStatusAndHeaders(long contentLength, ContainerResponse response) throws IOException {
+                    return writer.writeStatusAndHeaders(contentLength, response);
+                }
+
+                public void finish() throws IOException {
+                    writer.finish();
+                    route.record(response.getStatus(), System.nanoTime() - start);
+                }
+            });
+            return response;
+        }
+
+    }
+
+}
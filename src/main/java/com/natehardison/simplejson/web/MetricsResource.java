@@ -0,0 +1,274 @@
+package com.natehardison.simplejson.web;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+
+import net.sf.ehcache.Statistics;
+
+import com.natehardison.simplejson.util.ConnectionPoolStatistics;
+import com.natehardison.simplejson.util.DatabaseLimiter;
+import com.natehardison.simplejson.util.HibernateManager;
+import com.natehardison.simplejson.util.LatencyHistogram;
+import com.natehardison.simplejson.util.Metrics;
+import com.natehardison.simplejson.util.Metrics.RouteMetrics;
+import com.natehardison.simplejson.util.ResponseCache;
+import com.natehardison.simplejson.util.WriteBehindBuffer;
+
+/**
+ * Exposes the service's metrics in the Prometheus text format:
+ * - GET /metrics => per-route latency histograms and error counts, Hibernate
+ *   statistics, second-level cache regions, the connection pools (primary
+ *   replicas and shards), the DatabaseLimiter, the WriteBehindBuffer and the ResponseCache
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+@Path("/metrics")
+public class MetricsResource {
+
+    /**
+     * Content type of version 0.0.4 of the Prometheus text format.
+     */
+    public static final String PROMETHEUS_TEXT = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @GET
+    @Produces(PROMETHEUS_TEXT)
+    public String getMetrics() throws SQLException {
+        StringBuilder out = new StringBuilder();
+        writeRoutes(out);
+        writeHibernate(out);
+        writeCaches(out);
+        writePool(out);
+        writeLimiter(out);
+        writeWriteBehind(out);
+        writeResponseCache(out);
+        return out.toString();
+    }
+
+    private void writeRoutes(StringBuilder out) {
+        Map<String, RouteMetrics> routes = Metrics.getMetrics().getRoutes();
+        double[] bounds = LatencyHistogram.getBounds();
+
+        header(out, "simplejson_request_duration_seconds", "histogram",
+                "Time from receiving a request to writing the last byte of the response.");
+        for (Map.Entry<String, RouteMetrics> entry : routes.entrySet()) {
+            String route = "route=\"" + escape(entry.getKey()) + "\"";
+            LatencyHistogram latency = entry.getValue().getLatency();
+            long[] counts = latency.getCumulativeCounts();
+            for (int i = 0; i < bounds.length; i++) {
+                sample(out, "simplejson_request_duration_seconds_bucket", route + ",le=\"" + bounds[i] + "\"", counts[i]);
+            }
+            long count = counts[counts.length - 1];
+            sample(out, "simplejson_request_duration_seconds_bucket", route + ",le=\"+Inf\"", count);
+            sample(out, "simplejson_request_duration_seconds_sum", route, latency.getSumSeconds());
+            sample(out, "simplejson_request_duration_seconds_count", route, count);
+        }
+
+        header(out, "simplejson_request_errors_total", "counter", "Requests answered with a 4xx or 5xx status.");
+        for (Map.Entry<String, RouteMetrics> entry : routes.entrySet()) {
+            String route = "route=\"" + escape(entry.getKey()) + "\"";
+            sample(out, "simplejson_request_errors_total", route + ",status=\"4xx\"", entry.getValue().getClientErrors());
+            sample(out, "simplejson_request_errors_total", route + ",status=\"5xx\"", entry.getValue().getServerErrors());
+        }
+    }
+
+    private void writeHibernate(StringBuilder out) {
+        org.hibernate.stat.Statistics statistics = HibernateManager.getManager().getSessionFactory().getStatistics();
+        if (!statistics.isStatisticsEnabled()) {
+            return;
+        }
+        counter(out, "hibernate_sessions_opened_total", "Sessions opened.", statistics.getSessionOpenCount());
+        counter(out, "hibernate_transactions_total", "Transactions completed.", statistics.getTransactionCount());
+        counter(out, "hibernate_optimistic_failures_total", "Optimistic locking (version) failures.",
+                statistics.getOptimisticFailureCount());
+        counter(out, "hibernate_flushes_total", "Session flushes.", statistics.getFlushCount());
+        counter(out, "hibernate_connections_obtained_total", "JDBC connections obtained.", statistics.getConnectCount());
+        counter(out, "hibernate_statements_prepared_total", "JDBC statements prepared.", statistics.getPrepareStatementCount());
+        counter(out, "hibernate_queries_executed_total", "HQL and Criteria queries executed.", statistics.getQueryExecutionCount());
+        counter(out, "hibernate_entities_loaded_total", "Entities loaded from the database.", statistics.getEntityLoadCount());
+        counter(out, "hibernate_entities_fetched_total", "Lazy entities fetched.", statistics.getEntityFetchCount());
+        counter(out, "hibernate_entities_inserted_total", "Entities inserted.", statistics.getEntityInsertCount());
+        counter(out, "hibernate_entities_updated_total", "Entities updated.", statistics.getEntityUpdateCount());
+        counter(out, "hibernate_entities_deleted_total", "Entities deleted.", statistics.getEntityDeleteCount());
+        counter(out, "hibernate_collections_loaded_total", "Collections loaded.", statistics.getCollectionLoadCount());
+        counter(out, "hibernate_collections_fetched_total", "Lazy collections fetched.", statistics.getCollectionFetchCount());
+        counter(out, "hibernate_second_level_cache_hits_total", "Second-level cache hits.",
+                statistics.getSecondLevelCacheHitCount());
+        counter(out, "hibernate_second_level_cache_misses_total", "Second-level cache misses.",
+                statistics.getSecondLevelCacheMissCount());
+        counter(out, "hibernate_second_level_cache_puts_total", "Second-level cache puts.",
+                statistics.getSecondLevelCachePutCount());
+    }
+
+    private void writeCaches(StringBuilder out) {
+        Iterable<Statistics> regions = HibernateManager.getManager().getCacheStatistics();
+        header(out, "ehcache_hits_total", "counter", "Hits, by cache region.");
+        for (Statistics region : regions) {
+            sample(out, "ehcache_hits_total", region(region), region.getCacheHits());
+        }
+        header(out, "ehcache_misses_total", "counter", "Misses, by cache region.");
+        for (Statistics region : regions) {
+            sample(out, "ehcache_misses_total", region(region), region.getCacheMisses());
+        }
+        header(out, "ehcache_evictions_total", "counter", "Evictions, by cache region.");
+        for (Statistics region : regions) {
+            sample(out, "ehcache_evictions_total", region(region), region.getEvictionCount());
+        }
+        header(out, "ehcache_size", "gauge", "Entries, by cache region.");
+        for (Statistics region : regions) {
+            sample(out, "ehcache_size", region(region), region.getObjectCount());
+        }
+    }
+
+    private void writePool(StringBuilder out) throws SQLException {
+        ConnectionPoolStatistics pool = HibernateManager.getManager().getPoolStatistics();
+        if (pool == null) {
+            return;
+        }
+        gauge(out, "c3p0_connections_active", "Connections checked out.", pool.getActiveConnections());
+        gauge(out, "c3p0_connections_idle", "Connections idle in the pool.", pool.getIdleConnections());
+        gauge(out, "c3p0_threads_awaiting_connection", "Threads waiting for a connection.",
+                pool.getThreadsAwaitingConnection());
+        gauge(out, "c3p0_statements_cached", "Prepared statements cached.", pool.getCachedStatements());
+        counter(out, "c3p0_checkouts_failed_total", "Connection checkouts that failed or timed out.",
+                pool.getFailedCheckouts());
+        counter(out, "c3p0_acquisitions_total", "Connections handed to Hibernate.", pool.getAcquisitions());
+        counter(out, "c3p0_wait_seconds_total", "Time spent waiting for connections.",
+                pool.getTotalWaitNanos() / NANOS_PER_SECOND);
+        gauge(out, "c3p0_wait_seconds_max", "Longest wait for a connection.", pool.getMaxWaitNanos() / NANOS_PER_SECOND);
+
+        writeShardPools(out);
+        List<ConnectionPoolStatistics> replicas = HibernateManager.getManager().getReplicaPoolStatistics();
+        if (replicas.isEmpty()) {
+            return;
+        }
+        header(out, "c3p0_replica_connections_active", "gauge", "Connections checked out, by read replica.");
+        for (int i = 0; i < replicas.size(); i++) {
+            sample(out, "c3p0_replica_connections_active", replica(i), replicas.get(i).getActiveConnections());
+        }
+        header(out, "c3p0_replica_acquisitions_total", "counter", "Connections handed to Hibernate, by read replica.");
+        for (int i = 0; i < replicas.size(); i++) {
+            sample(out, "c3p0_replica_acquisitions_total", replica(i), replicas.get(i).getAcquisitions());
+        }
+        header(out, "c3p0_replica_wait_seconds_total", "counter", "Time spent waiting for connections, by read replica.");
+        for (int i = 0; i < replicas.size(); i++) {
+            sample(out, "c3p0_replica_wait_seconds_total", replica(i), replicas.get(i).getTotalWaitNanos() / NANOS_PER_SECOND);
+        }
+    }
+
+    private void writeShardPools(StringBuilder out) throws SQLException {
+        List<ConnectionPoolStatistics> shards = HibernateManager.getManager().getShardPoolStatistics();
+        if (shards.isEmpty() || shards.contains(null)) {
+            return;
+        }
+        header(out, "c3p0_shard_connections_active", "gauge", "Connections checked out, by shard.");
+        for (int i = 0; i < shards.size(); i++) {
+            sample(out, "c3p0_shard_connections_active", shard(i), shards.get(i).getActiveConnections());
+        }
+        header(out, "c3p0_shard_acquisitions_total", "counter", "Connections handed to Hibernate, by shard.");
+        for (int i = 0; i < shards.size(); i++) {
+            sample(out, "c3p0_shard_acquisitions_total", shard(i), shards.get(i).getAcquisitions());
+        }
+        header(out, "c3p0_shard_wait_seconds_total", "counter", "Time spent waiting for connections, by shard.");
+        for (int i = 0; i < shards.size(); i++) {
+            sample(out, "c3p0_shard_wait_seconds_total", shard(i), shards.get(i).getTotalWaitNanos() / NANOS_PER_SECOND);
+        }
+    }
+
+    private void writeLimiter(StringBuilder out) {
+        DatabaseLimiter limiter = DatabaseLimiter.getLimiter();
+        gauge(out, "simplejson_db_requests_active", "Requests doing database work.", limiter.getActive());
+        gauge(out, "simplejson_db_requests_waiting", "Requests queued for a turn at the database.", limiter.getWaiting());
+        counter(out, "simplejson_db_requests_rejected_total", "Requests turned away (503) because the queue was full.",
+                limiter.getRejected());
+        counter(out, "simplejson_db_requests_timed_out_total", "Requests turned away (503) after waiting too long.",
+                limiter.getTimedOut());
+        HibernateManager manager = HibernateManager.getManager();
+        counter(out, "simplejson_loads_coalesced_total", "By-ID reads that shared a concurrent load of the same resource.",
+                manager.getCoalescedLoads());
+        counter(out, "simplejson_loads_timed_out_total",
+                "By-ID reads turned away (503) after waiting too long for a concurrent load.",
+                manager.getTimedOutLoads());
+    }
+
+    private void writeWriteBehind(StringBuilder out) {
+        WriteBehindBuffer buffer = WriteBehindBuffer.getBuffer();
+        gauge(out, "simplejson_write_behind_pending", "Resources with a buffered update waiting.", buffer.getPendingCount());
+        counter(out, "simplejson_write_behind_buffered_total", "Updates buffered.", buffer.getBuffered());
+        counter(out, "simplejson_write_behind_coalesced_total", "Buffered updates replaced before being written.",
+                buffer.getCoalesced());
+        counter(out, "simplejson_write_behind_written_total", "Buffered updates written.", buffer.getWritten());
+        counter(out, "simplejson_write_behind_dropped_total", "Buffered updates that couldn't be written.",
+                buffer.getDropped());
+        counter(out, "simplejson_write_behind_flushes_total", "Writes of the buffer.", buffer.getFlushes());
+    }
+
+    private void writeResponseCache(StringBuilder out) {
+        ResponseCache cache = ResponseCache.getCache();
+        counter(out, "simplejson_response_cache_hits_total", "Collection pages served from the response cache.",
+                cache.getHits());
+        counter(out, "simplejson_response_cache_misses_total", "Collection pages that had to (re)build their response.",
+                cache.getMisses());
+        counter(out, "simplejson_response_cache_coalesced_total", "Misses that waited for another request's rebuild.",
+                cache.getCoalesced());
+        counter(out, "simplejson_response_cache_evictions_total", "Responses evicted to stay within max_bytes.",
+                cache.getEvictions());
+        gauge(out, "simplejson_response_cache_bytes", "Size of the cached responses, bodies plus a nominal overhead each.", cache.getBytes());
+    }
+
+    private static String replica(int index) {
+        return "replica=\"" + index + "\"";
+    }
+
+    private static String shard(int index) {
+        return "shard=\"" + index + "\"";
+    }
+
+    private static String region(Statistics region) {
+        return "region=\"" + escape(region.getAssociatedCacheName()) + "\"";
+    }
+
+    private static void counter(StringBuilder out, String name, String help, double value) {
+        header(out, name, "counter", help);
+        sample(out, name, null, value);
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, double value) {
+        header(out, name, "gauge", help);
+        sample(out, name, null, value);
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        // keep integral values (i.e., counts) free of a trailing ".0"
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    /**
+     * Escapes a label value as the text format requires.
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+}
@@ -0,0 +1,25 @@
+package com.natehardison.simplejson.web;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * The outcome of a POST /{class}/_mget request: the resources found, and
+ * the IDs that weren't, each in request order.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class MultiGetResult {
+
+    private List<Object> resources;
+
+    private List<Serializable> missing;
+
+    public MultiGetResult(List<Object> resources, List<Serializable> missing) {
+        this.resources = resources;
+        this.missing = missing;
+    }
+
+    public List<Object> getResources() { return this.resources; }
+    public List<Serializable> getMissing() { return this.missing; }
+
+}
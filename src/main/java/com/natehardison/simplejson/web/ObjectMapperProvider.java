@@ -0,0 +1,23 @@
+package com.natehardison.simplejson.web;
+
+import javax.ws.rs.ext.ContextResolver;
+import javax.ws.rs.ext.Provider;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.natehardison.simplejson.util.JsonCodec;
+
+/**
+ * Hands the shared ObjectMapper from the JsonCodec to the Jackson JAX-RS
+ * provider so that response serialization uses the same (already warmed-up)
+ * mapper as request parsing.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+@Provider
+public class ObjectMapperProvider implements ContextResolver<ObjectMapper> {
+
+    public ObjectMapper getContext(Class<?> type) {
+        return JsonCodec.getCodec().getMapper();
+    }
+
+}
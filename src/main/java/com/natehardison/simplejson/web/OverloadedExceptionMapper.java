@@ -0,0 +1,21 @@
+package com.natehardison.simplejson.web;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+import com.natehardison.simplejson.util.OverloadedException;
+
+/**
+ * Turns an OverloadedException into an HTTP 503 (Service Unavailable) with a
+ * Retry-After header.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+@Provider
+public class OverloadedExceptionMapper implements ExceptionMapper<OverloadedException> {
+
+    public Response toResponse(OverloadedException e) {
+        return Response.status(503).header("Retry-After", e.getRetryAfter()).build();
+    }
+
+}
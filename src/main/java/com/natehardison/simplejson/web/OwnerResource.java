@@ -1,7 +1,12 @@
 package com.natehardison.simplejson.web;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.ws.rs.Consumes;
@@ -13,65 +18,164 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.core.Variant;
 
 import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.map.JsonMappingException;
-import org.codehaus.jackson.map.ObjectMapper;
 import org.hibernate.HibernateException;
-import org.hibernate.ObjectNotFoundException;
 import org.hibernate.Session;
+import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
 
 import com.natehardison.simplejson.domain.Owner;
 import com.natehardison.simplejson.domain.Vehicle;
 import com.natehardison.simplejson.util.HibernateManager;
-import com.natehardison.simplejson.util.SimpleJsonUtil;
+import com.natehardison.simplejson.util.JsonCodec;
+import com.natehardison.simplejson.util.ModelRegistry;
+import com.natehardison.simplejson.util.ModelRegistry.Model;
+import com.natehardison.simplejson.util.ResourceQuery;
+import com.natehardison.simplejson.util.ResponseCache;
 
 /**
  * Resource class for dealing with an Owner's vehicles. Supported operations:
  * - GET  /owner/{id}/vehicles                  => get owner's vehicles
+ *   (?after={vin}&limit={n} => get one page of them, by VIN)
  * - POST /owner/{id}/vehicles?type=[car,truck] => add vehicle to owner
  * @author Nate Hardison <natehardison@gmail.com>
  */
 @Path("/owner/{id}/vehicles")
+@UsesDatabase
 public class OwnerResource {
 
     @Context UriInfo uriInfo;
+    @Context Request request;
+    @Context HttpHeaders headers;
 
     /**
-     * Retrieve the vehicles belonging to the Owner with ID id.
+     * Retrieve the vehicles belonging to the Owner with ID id. As with
+     * GET /{class}, they're all streamed back unless the client pages
+     * through them with after and/or limit, in which case a single page is
+     * returned, ordered by VIN, with a Link header pointing at the next.
+     * Either way, the owner's vehicle collection itself is never loaded.
+     * Both are served from the ResponseCache when they can be, so
+     * concurrent requests for a popular owner's vehicles share one read;
+     * all of them are only cached if they're few enough, though, and
+     * otherwise streamed.
      * @param id The id of the Owner.
-     * @return A Set of vehicles.
+     * @param after The VIN to start after (the cursor), if paging.
+     * @param limit The maximum number of vehicles to return, if paging.
+     * @return The owner's vehicles.
      */
     @GET
-    @Produces(MediaType.APPLICATION_JSON)
-    public Set<Vehicle> getVehicles(@PathParam("id") long id) {
-        Set<Vehicle> vehicles;
-        // we'll do this "manually" since it's a somewhat complex query
-        Session session = HibernateManager.getManager().getSessionFactory().getCurrentSession();
-        Transaction tx = null;
+    @Produces({MediaType.APPLICATION_JSON, SmileProvider.SMILE})
+    @Compressible
+    public Response getVehicles(@PathParam("id") long id,
+                                @QueryParam("after") String after,
+                                @QueryParam("limit") Integer limit) {
+        HibernateManager manager = HibernateManager.getManager();
         try {
-            tx = session.beginTransaction();
-            Owner owner = (Owner) session.load(Owner.class, id);
-            vehicles = owner.getVehicles();
-            tx.commit();
-        } catch (ObjectNotFoundException e) {
-            // in case the owner isn't found, return a 404
-            if (tx != null) {
-                tx.rollback();
+            // a plain Person (from the cache) is no owner
+            if (!(manager.getResource(Owner.class, id) instanceof Owner)) {
+                throw new WebApplicationException(404);
             }
-            throw new WebApplicationException(404);
         } catch (HibernateException e) {
-            if (tx != null) {
-                tx.rollback();
+            throw new WebApplicationException(400);
+        }
+
+        // a query on VEHICLE.OWNER_ID, which is indexed
+        final ResourceQuery query = new ResourceQuery();
+        query.addCondition("owner.id", ResourceQuery.Operator.EQ, id);
+        final Set<String> associations = Collections.emptySet();
+
+        if (after != null || limit != null) {
+            if (limit == null) {
+                limit = SimpleJsonResource.DEFAULT_PAGE_SIZE;
+            } else if (limit <= 0 || limit > SimpleJsonResource.MAX_PAGE_SIZE) {
+                throw new WebApplicationException(400);
             }
+        }
+
+        final Variant variant = request.selectVariant(SimpleJsonResource.VARIANTS);
+        final JsonCodec codec = SmileProvider.getCodec(variant == null ? null : variant.getMediaType());
+        Set<Class<?>> dependencies = manager.getDependencies(Owner.class, Collections.singleton("vehicles"));
+        Response cached;
+        if (limit == null) {
+            // an owner has few enough vehicles to buffer, as a rule; those
+            // with too many are streamed in flat memory instead
+            try {
+                cached = SimpleJsonResource.getCachedResponse(uriInfo, request, variant, dependencies,
+                        new ResponseCache.Builder() {
+                            public void build(OutputStream body, Map<String, String> headers) throws IOException {
+                                new ResourceStream(Vehicle.class, query, associations, codec).writeResources(body);
+                            }
+                        });
+            } catch (HibernateException e) {
+                throw new WebApplicationException(400);
+            }
+            if (cached != null) {
+                return cached;
+            }
+            return Response.ok(new ResourceStream(Vehicle.class, query, associations, codec), variant).build();
+        }
+        final String cursor = after;
+        final int pageSize = limit;
+
+        try {
+            cached = SimpleJsonResource.getCachedResponse(uriInfo, request, variant, dependencies,
+                    new ResponseCache.Builder() {
+                        public void build(OutputStream body, Map<String, String> headers) throws IOException {
+                            List<Vehicle> vehicles = HibernateManager.getManager().getResources(Vehicle.class,
+                                    query, cursor, pageSize, associations);
+                            codec.getMapper().writeValue(body, vehicles);
+                            String next = getNextLink(vehicles, pageSize);
+                            if (next != null) {
+                                headers.put("Link", next);
+                            }
+                        }
+                    });
+        } catch (HibernateException e) {
+            throw new WebApplicationException(400);
+        }
+        if (cached != null) {
+            return cached;
+        }
+
+        List<Vehicle> vehicles;
+        try {
+            vehicles = manager.getResources(Vehicle.class, query, after, limit, associations);
+        } catch (HibernateException e) {
             throw new WebApplicationException(400);
         }
-        return vehicles;
+
+        ResponseBuilder response = Response.ok(vehicles);
+        String next = getNextLink(vehicles, limit);
+        if (next != null) {
+            response.header("Link", next);
+        }
+        return response.build();
+    }
+
+    /**
+     * @return The Link header pointing at the page after vehicles, or null
+     *         if there's no need for one.
+     */
+    private String getNextLink(List<Vehicle> vehicles, int limit) {
+        // a full page means there may be more; a short one means we're done
+        if (vehicles.size() < limit) {
+            return null;
+        }
+        URI next = uriInfo.getRequestUriBuilder()
+                .replaceQueryParam("after", vehicles.get(vehicles.size() - 1).getVin())
+                .replaceQueryParam("limit", limit)
+                .build();
+        return "<" + next + ">; rel=\"next\"";
     }
 
     /**
@@ -79,26 +183,26 @@ public class OwnerResource {
      * in Hibernate, then an instance is created.
      * @param id The id of the Owner.
      * @param vehicleClassName The type of vehicle (e.g., car, truck).
-     * @param vehicleJson The vehicle data in a JSON string.
+     * @param vehicleStream The vehicle data as a JSON stream.
      * @return HTTP 201 if a vehicle was created, 204 otherwise.
      */
     @POST
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, SmileProvider.SMILE})
     @Produces(MediaType.APPLICATION_JSON)
     public Response createVehicle(@PathParam("id") long id,
                                   @QueryParam("type") String vehicleClassName,
-                                  String vehicleJson) {
-        Class<?> vehicleClass;
-        try {
-            vehicleClass = SimpleJsonUtil.getModelClassForName(vehicleClassName);
-        } catch (ClassNotFoundException e) {
+                                  InputStream vehicleStream) {
+        Model model = vehicleClassName == null ? null
+                : ModelRegistry.getRegistry().getModel(vehicleClassName.toLowerCase());
+        // the type must name a concrete kind of vehicle
+        if (model == null || model.getModelClass() == Vehicle.class
+                || !Vehicle.class.isAssignableFrom(model.getModelClass())) {
             throw new WebApplicationException(400);
         }
 
         Vehicle vehicle;
-        ObjectMapper om = new ObjectMapper();
         try {
-            vehicle = (Vehicle) om.readValue(vehicleJson, vehicleClass);
+            vehicle = (Vehicle) model.read(vehicleStream, SmileProvider.getCodec(headers.getMediaType()));
         } catch (JsonParseException e) {
             return Response.status(400).build();
         } catch (JsonMappingException e) {
@@ -107,25 +211,45 @@ public class OwnerResource {
             return Response.status(500).build();
         }
 
-        Session session = HibernateManager.getManager().getSessionFactory().getCurrentSession();
+        // vehicles have assigned IDs, and a sharded one is routed by its VIN
+        if (vehicle.getVin() == null) {
+            return Response.status(400).build();
+        }
+
+        HibernateManager manager = HibernateManager.getManager();
+        SessionFactory vehicles = manager.getSessionFactory(Vehicle.class, vehicle.getVin());
+        // a vehicle on a shard refers to its owner in the primary by ID alone
+        boolean sharded = vehicles != manager.getSessionFactory();
+        try {
+            if (sharded && !(manager.getResource(Owner.class, id) instanceof Owner)) {
+                return Response.status(404).build();
+            }
+        } catch (HibernateException e) {
+            return Response.status(400).build();
+        }
+
+        Session session = vehicles.getCurrentSession();
         Transaction tx = null;
         boolean created = false;
         try {
             tx = session.beginTransaction();
-            Owner owner = (Owner) session.load(Owner.class, id);
+            Object owner = sharded ? session.load(Owner.class, id) : session.get(Owner.class, id);
+            if (!(owner instanceof Owner)) {
+                tx.rollback();
+                return Response.status(404).build();
+            }
+            // the vehicle holds the foreign key, so attaching it is a single
+            // INSERT or UPDATE; the owner's other vehicles are never loaded
             // use Session#get to avoid exception if vehicle doesn't exist
             Vehicle existingVehicle = (Vehicle) session.get(Vehicle.class, vehicle.getVin());
             if (existingVehicle == null) {
+                vehicle.setOwner((Owner) owner);
                 session.save(vehicle);
                 created = true;
+            } else {
+                existingVehicle.setOwner((Owner) owner);
             }
-            owner.getVehicles().add(vehicle);
             tx.commit();
-        } catch (ObjectNotFoundException e) {
-            if (tx != null) {
-                tx.rollback();
-            }
-            return Response.status(404).build();
         } catch (HibernateException e) {
             if (tx != null) {
                 tx.rollback();
@@ -135,7 +259,7 @@ public class OwnerResource {
 
         if (created) {
             UriBuilder uriBuilder = uriInfo.getBaseUriBuilder().path("{class}/{id}");
-            URI location = uriBuilder.build(vehicleClassName.toLowerCase(), vehicle.getVin());
+            URI location = uriBuilder.build(model.getName(), vehicle.getVin());
             return Response.created(location).build();
         }
         return Response.noContent().build();
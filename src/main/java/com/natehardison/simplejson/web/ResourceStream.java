@@ -0,0 +1,123 @@
+package com.natehardison.simplejson.web;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.natehardison.simplejson.util.DatabaseLimiter;
+import com.natehardison.simplejson.util.HibernateManager;
+import com.natehardison.simplejson.util.JsonCodec;
+import com.natehardison.simplejson.util.ResourceQuery;
+
+/**
+ * Writes every resource of a given type that matches a query out as a JSON
+ * (or Smile) array, one element at a time as the rows come back from the
+ * database. Nothing but the current row is ever held in memory.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class ResourceStream implements StreamingOutput {
+
+    private final Class<?> klass;
+    private final ResourceQuery query;
+    private final Collection<String> associations;
+    private final JsonCodec codec;
+    private final Long readAfter;
+
+    /**
+     * @param klass The type of resources to stream.
+     * @param query The conditions to filter by and properties to sort by.
+     * @param associations The lazy associations to include with each resource.
+     * @param codec The codec for the negotiated format (JSON or Smile).
+     */
+    public ResourceStream(Class<?> klass, ResourceQuery query, Collection<String> associations, JsonCodec codec) {
+        this.klass = klass;
+        this.query = query;
+        this.associations = associations;
+        this.codec = codec;
+        // the stream is written after the resource method has returned, so
+        // hang on to the request's consistency requirement until then
+        this.readAfter = HibernateManager.getManager().getReadAfter();
+    }
+
+    public void write(OutputStream output) throws IOException, WebApplicationException {
+        // the scroll happens here, after the resource method has returned, so
+        // it needs a turn of its own; nothing has been written yet, so if
+        // that fails the client still gets a clean 503
+        DatabaseLimiter limiter = DatabaseLimiter.getLimiter();
+        HibernateManager manager = HibernateManager.getManager();
+        limiter.acquire();
+        try {
+            manager.setReadAfter(readAfter);
+            writeResources(output);
+        } finally {
+            manager.setReadAfter(null);
+            limiter.release();
+        }
+    }
+
+    /**
+     * Writes the resources without taking a turn at the database, for
+     * callers that already have one (see SimpleJsonResource).
+     */
+    void writeResources(OutputStream output) throws IOException {
+        final ObjectMapper mapper = codec.getMapper();
+        final JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator(
+                new UnflushedOutputStream(output), JsonEncoding.UTF8);
+        generator.writeStartArray();
+        // by the time we get here the 200 has already gone out, so if the
+        // database fails mid-stream all we can do is cut the array short
+        HibernateManager.getManager().scrollResources(klass, query, associations, new HibernateManager.ResourceHandler() {
+            public void handle(Object resource) throws IOException {
+                // serialize using the runtime type so that, e.g., an Owner in
+                // a list of Persons keeps its vehicles
+                mapper.writeValue(generator, resource);
+            }
+        });
+        generator.writeEndArray();
+        generator.close();
+    }
+
+    /**
+     * The mapper flushes after every value it writes, which here would mean
+     * one HTTP chunk per row. This keeps those flushes from reaching the
+     * container so that the response is sent in buffer-sized chunks instead.
+     */
+    private static class UnflushedOutputStream extends OutputStream {
+
+        private final OutputStream output;
+
+        public UnflushedOutputStream(OutputStream output) {
+            this.output = output;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            output.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            output.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            // deliberately a no-op; see above
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the container owns (and will close) the underlying stream
+            output.flush();
+        }
+
+    }
+
+}
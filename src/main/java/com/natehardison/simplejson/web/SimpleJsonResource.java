@@ -1,107 +1,347 @@
 package com.natehardison.simplejson.web;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.core.Variant;
 
+import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
 import org.codehaus.jackson.map.JsonMappingException;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.node.ObjectNode;
 import org.hibernate.HibernateException;
+import org.hibernate.ObjectNotFoundException;
 import org.hibernate.StaleStateException;
 
-import com.natehardison.simplejson.domain.Owner;
-import com.natehardison.simplejson.domain.Person;
 import com.natehardison.simplejson.util.HibernateManager;
-import com.natehardison.simplejson.util.SimpleJsonUtil;
+import com.natehardison.simplejson.util.JsonCodec;
+import com.natehardison.simplejson.util.ModelRegistry;
+import com.natehardison.simplejson.util.ModelRegistry.Model;
+import com.natehardison.simplejson.util.ResourceQuery;
+import com.natehardison.simplejson.util.ResourceStatistics;
+import com.natehardison.simplejson.util.ResponseCache;
+import com.natehardison.simplejson.util.WriteBehindBuffer;
 
 /**
  * Base RESTful resource class. Supported operations:
  * - GET  /{class}      => get all resources of type class
+ *   (?after={id}&limit={n} => get one page of them, by ID)
+ *   (?expand={association,...} => include lazy associations, e.g. vehicles)
+ *   (?{property}[.{op}]={value} => only those matching, e.g. horsepower.gt=400)
+ *   (?sort=[-]{property},... => sorted by properties, e.g. -speed,horsepower)
  * - GET  /{class}/{id} => get resource of type class with ID id
+ * - POST /{class}/_mget => get many resources of type class by ID
+ * - GET  /{class}/_stats => statistics of numeric properties of type class
  * - POST /{class}      => create new resource of type class
+ * - POST /{class}/_bulk => create many resources of type class
  * - POST /{class}/{id} => update car with specified VIN
  * - PUT  /{class}/{id} => create or update car with specified VIN
+ * - PATCH /{class}/{id} => change some properties of car with specified VIN
+ * Single resources carry their version as an ETag: GETs honour
+ * If-None-Match (304) and updates honour If-Match (412). Updates without
+ * If-Match of the types in the WriteBehindBuffer are accepted (202) and
+ * written in the background.
  * @author Nate Hardison <natehardison@gmail.com>
  */
 @Path("/{class: car|owner|person|truck}")
+@UsesDatabase
 public class SimpleJsonResource {
 
+    /**
+     * Page size used when the client pages with after but gives no limit.
+     */
+    static final int DEFAULT_PAGE_SIZE = 100;
+
+    /**
+     * Upper bound on limit, so a single page can't be the whole table.
+     */
+    static final int MAX_PAGE_SIZE = 1000;
+
+    /**
+     * Media type for JSON Merge Patch (RFC 7386), accepted by PATCH.
+     */
+    public static final String MERGE_PATCH = "application/merge-patch+json";
+
+    /**
+     * Media type for newline-delimited JSON, accepted by POST /{class}/_bulk.
+     */
+    public static final String NDJSON = "application/x-ndjson";
+
+    /**
+     * Number of resources POST /{class}/_bulk inserts per transaction.
+     */
+    private static final int BULK_CHUNK_SIZE = 1000;
+
+    /**
+     * Query parameters of GET /{class} that aren't property filters.
+     */
+    private static final Set<String> RESERVED_PARAMETERS = new HashSet<String>(
+            Arrays.asList("after", "limit", "expand", "sort"));
+
+    /**
+     * Query parameters of GET /{class}/_stats that aren't property filters.
+     */
+    private static final Set<String> STATS_PARAMETERS = new HashSet<String>(
+            Arrays.asList("properties", "group"));
+
+    /**
+     * The formats resources can be retrieved in, in order of preference.
+     */
+    static final List<Variant> VARIANTS = Variant.mediaTypes(
+            MediaType.APPLICATION_JSON_TYPE, SmileProvider.SMILE_TYPE).add().build();
+
     @Context UriInfo uriInfo;
+    @Context Request request;
+    @Context HttpHeaders headers;
 
     /**
-     * Retrieves all resources of type className.
+     * Retrieves the resources of type className. With no query parameters,
+     * every resource is streamed back as it is read from the database. With
+     * after and/or limit, a single page is returned, ordered by ID, along
+     * with a Link header pointing at the next page if there might be one.
+     * Any other query parameter filters on a property (see parseQuery).
      * @param className The type of resource to retrieve.
-     * @return A list of all resources of type className
+     * @param after The ID to start after (the cursor), if paging.
+     * @param limit The maximum number of resources to return, if paging.
+     * @param expand Comma-separated lazy associations to include (e.g.,
+     *        "vehicles"); by default they're left out.
+     * @param sort Comma-separated properties to sort by, each prefixed with
+     *        "-" for descending order; by default resources are in ID order.
+     * @return The resources of type className.
      */
-    @SuppressWarnings("unchecked")
     @GET
-    @Produces(MediaType.APPLICATION_JSON)
-    public List<Object> getResources(@PathParam("class") String className) {
-        // get the class object matching the path
-        Class<?> klass;
+    @Produces({MediaType.APPLICATION_JSON, SmileProvider.SMILE})
+    @Compressible
+    public Response getResources(@PathParam("class") String className,
+                                 @QueryParam("after") String after,
+                                 @QueryParam("limit") Integer limit,
+                                 @QueryParam("expand") String expand,
+                                 @QueryParam("sort") String sort) {
+        // get the model matching the path
+        Model model = getModel(className);
+        Class<?> klass = model.getModelClass();
+
+        Set<String> associations = parseExpand(klass, expand);
+        ResourceQuery query = parseQuery(klass, sort, RESERVED_PARAMETERS);
+
+        Serializable cursor = null;
+        if (after != null || limit != null) {
+            if (limit == null) {
+                limit = DEFAULT_PAGE_SIZE;
+            } else if (limit <= 0 || limit > MAX_PAGE_SIZE) {
+                throw new WebApplicationException(400);
+            }
+            try {
+                cursor = after == null ? null : model.parseId(after);
+            } catch (NumberFormatException e) {
+                throw new WebApplicationException(400);
+            }
+        }
+
+        // streams write the entity themselves, and cache entries are already
+        // encoded, so both have to be told which format was negotiated
+        Variant variant = request.selectVariant(VARIANTS);
+        JsonCodec codec = SmileProvider.getCodec(variant == null ? null : variant.getMediaType());
+
+        // whole collections are streamed in flat memory, never buffered
+        // for the cache
+        if (limit == null) {
+            return Response.ok(new ResourceStream(klass, query, associations, codec), variant).build();
+        }
+
+        Response cached;
         try {
-            klass = SimpleJsonUtil.getModelClassForName(className);
-        } catch (ClassNotFoundException e) {
-            throw new WebApplicationException(500);
+            cached = getCachedResources(klass, query, cursor, limit, associations, codec, variant);
+        } catch (HibernateException e) {
+            throw new WebApplicationException(400);
+        }
+        if (cached != null) {
+            return cached;
         }
 
-        List<Object> resources;
+        List<?> resources;
         try {
-            resources = (List<Object>) HibernateManager.getManager().getResources(klass);
+            resources = HibernateManager.getManager().getResources(klass, query, cursor, limit, associations);
         } catch (HibernateException e) {
             // from GETs, this is the only way to return a 400
             // assume the request was botched client-side ;-)
             throw new WebApplicationException(400);
         }
 
-        return resources;
+        ResponseBuilder response = Response.ok(resources);
+        String next = getNextLink(resources, limit);
+        if (next != null) {
+            response.header("Link", next);
+        }
+        return response.build();
+    }
+
+    /**
+     * @return The Link header pointing at the page after resources, or null
+     *         if there's no need for one.
+     */
+    private String getNextLink(List<?> resources, int limit) {
+        // a full page means there may be more; a short one means we're done
+        if (resources.size() < limit) {
+            return null;
+        }
+        Object last = resources.get(resources.size() - 1);
+        URI next = uriInfo.getRequestUriBuilder()
+                .replaceQueryParam("after", HibernateManager.getManager().getIdentifier(last))
+                .replaceQueryParam("limit", limit)
+                .build();
+        return "<" + next + ">; rel=\"next\"";
+    }
+
+    /**
+     * Serves a page of GET /{class} from the ResponseCache (see
+     * getCachedResponse). The arguments are as parsed by getResources.
+     */
+    private Response getCachedResources(final Class<?> klass, final ResourceQuery query, final Serializable cursor,
+                                        final int limit, final Set<String> associations, final JsonCodec codec,
+                                        Variant variant) {
+        Set<Class<?>> dependencies = HibernateManager.getManager().getDependencies(klass, associations);
+        return getCachedResponse(uriInfo, request, variant, dependencies, new ResponseCache.Builder() {
+            public void build(OutputStream body, Map<String, String> headers) throws IOException {
+                List<?> resources = HibernateManager.getManager().getResources(klass, query, cursor, limit,
+                        associations);
+                codec.getMapper().writeValue(body, resources);
+                String next = getNextLink(resources, limit);
+                if (next != null) {
+                    headers.put("Link", next);
+                }
+            }
+        });
+    }
+
+    /**
+     * Serves a GET from the ResponseCache, keyed by its URI and format,
+     * encoding the response and caching it first if it isn't there already
+     * (or is out of date). Concurrent requests for it share that one build,
+     * which reads from the primary, since an entry built from a lagging
+     * replica would stay out of date until the next write.
+     * @param uriInfo The request's URI.
+     * @param request The request, for its preconditions.
+     * @param variant The format negotiated.
+     * @param dependencies The classes of resources the response is read
+     *        from (see HibernateManager#getDependencies).
+     * @param builder Writes the response body (and any headers).
+     * @return The response, tagged with a hash of its body, or HTTP 304 (Not
+     *         Modified) if the client's If-None-Match already has it; or null
+     *         if it can't be cached: the cache is off, updates of one of the
+     *         classes are buffered (see WriteBehindBuffer), or it's too large.
+     * @throws HibernateException If the builder's reads fail.
+     */
+    static Response getCachedResponse(UriInfo uriInfo, Request request, Variant variant,
+                                      Set<Class<?>> dependencies, final ResponseCache.Builder builder) {
+        ResponseCache cache = ResponseCache.getCache();
+        if (!cache.isEnabled() || variant == null) {
+            return null;
+        }
+        WriteBehindBuffer buffer = WriteBehindBuffer.getBuffer();
+        if (!buffer.isEmpty()) {
+            for (Class<?> dependency : dependencies) {
+                if (buffer.isBuffered(dependency)) {
+                    return null;
+                }
+            }
+        }
+
+        String key = variant.getMediaType() + " " + uriInfo.getRequestUri();
+        ResponseCache.Entry entry;
+        try {
+            entry = cache.get(key, dependencies, new ResponseCache.Builder() {
+                public void build(OutputStream body, Map<String, String> headers) throws IOException {
+                    HibernateManager manager = HibernateManager.getManager();
+                    Long readAfter = manager.getReadAfter();
+                    manager.setReadAfter(System.currentTimeMillis());
+                    try {
+                        builder.build(body, headers);
+                    } finally {
+                        manager.setReadAfter(readAfter);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            throw new WebApplicationException(e, 500);
+        }
+        if (entry == null) {
+            return null;
+        }
+
+        EntityTag tag = new EntityTag(entry.getETag());
+        ResponseBuilder notModified = request.evaluatePreconditions(tag);
+        if (notModified != null) {
+            return notModified.build();
+        }
+        ResponseBuilder response = Response.ok(entry.getBody(), variant).tag(tag);
+        for (Map.Entry<String, String> header : entry.getHeaders().entrySet()) {
+            response.header(header.getKey(), header.getValue());
+        }
+        return response.build();
     }
 
     /**
      * Retrieves the resource of type className specified by id.
      * @param className The type of the resource.
      * @param id The unique id of the resource.
-     * @return The record of the matching resource.
+     * @param expand Comma-separated lazy associations to include (e.g.,
+     *        "vehicles"); by default they're left out.
+     * @return The record of the matching resource, tagged with its version,
+     *         or HTTP 304 (Not Modified) if the client's If-None-Match
+     *         already has that version.
      */
     @GET
     @Path("{id}")
-    @Produces(MediaType.APPLICATION_JSON)
-    public Object getResource(@PathParam("class") String className, @PathParam("id") String id) {
-        Class<?> klass;
-        try {
-            klass = SimpleJsonUtil.getModelClassForName(className);
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
-            throw new WebApplicationException(500);
-        }
+    @Produces({MediaType.APPLICATION_JSON, SmileProvider.SMILE})
+    public Response getResource(@PathParam("class") String className, @PathParam("id") String id,
+                              @QueryParam("expand") String expand) {
+        Model model = getModel(className);
+        Class<?> klass = model.getModelClass();
 
+        Set<String> associations = parseExpand(klass, expand);
+
+        Serializable resourceId;
         Object resource;
         try {
-            // this is our ugly hack because it turns out that the Person IDs
-            // are longs, but Vehicle VINs are Strings. The way to fix would
-            // be to have nearly-identical methods for Persons and Vehicles
-            // differing only in their signature. This way seems better.
-            if (klass == Owner.class || klass == Person.class) {
-                resource = HibernateManager.getManager().getResource(klass, Long.decode(id));
-            } else {
-                resource = HibernateManager.getManager().getResource(klass, id);
-            }
+            resourceId = model.parseId(id);
+            resource = HibernateManager.getManager().getResource(klass, resourceId, associations);
         } catch (NumberFormatException e) {
             throw new WebApplicationException(400);
         } catch (HibernateException e) {
@@ -113,8 +353,313 @@ public class SimpleJsonResource {
             throw new WebApplicationException(404);
         }
 
+        // the version only covers the resource itself, not any associations
+        // expanded into it, so expanded representations go out untagged; nor
+        // does it cover a buffered update that hasn't been written yet
+        if (!associations.isEmpty() || WriteBehindBuffer.getBuffer().getPending(klass, resourceId) != null) {
+            return Response.ok(resource).build();
+        }
+        EntityTag tag = getEntityTag(resource);
+        ResponseBuilder notModified = request.evaluatePreconditions(tag);
+        if (notModified != null) {
+            return notModified.build();
+        }
         // this will return HTTP 200
-        return resource;
+        return Response.ok(resource).tag(tag).build();
+    }
+
+    /**
+     * Retrieves many resources of type className by ID at once, in a single
+     * transaction with one IN query per few hundred IDs, instead of one
+     * GET /{class}/{id} each. The entity is a JSON (or Smile) array of up to
+     * MAX_PAGE_SIZE IDs, e.g. ["vin1", "vin2"] or [1, 2]; duplicates are
+     * merged.
+     * @param className The type of the resources.
+     * @param expand Comma-separated lazy associations to include (e.g.,
+     *        "vehicles"); by default they're left out.
+     * @param idsStream The IDs of the resources.
+     * @return The resources found and the IDs that weren't, each in request
+     *         order, or HTTP 400 if the entity isn't an array of IDs.
+     */
+    @POST
+    @Path("_mget")
+    @Consumes({MediaType.APPLICATION_JSON, SmileProvider.SMILE})
+    @Produces({MediaType.APPLICATION_JSON, SmileProvider.SMILE})
+    public MultiGetResult getResources(@PathParam("class") String className, @QueryParam("expand") String expand,
+                                       InputStream idsStream) {
+        Model model = getModel(className);
+        Class<?> klass = model.getModelClass();
+        Set<String> associations = parseExpand(klass, expand);
+
+        JsonNode idNodes;
+        try {
+            idNodes = SmileProvider.getCodec(headers.getMediaType()).getMapper().readTree(idsStream);
+        } catch (JsonParseException e) {
+            throw new WebApplicationException(400);
+        } catch (EOFException e) {
+            // no entity at all
+            throw new WebApplicationException(400);
+        } catch (IOException e) {
+            throw new WebApplicationException(500);
+        }
+        if (idNodes == null || !idNodes.isArray() || idNodes.size() > MAX_PAGE_SIZE) {
+            throw new WebApplicationException(400);
+        }
+        Set<Serializable> ids = new LinkedHashSet<Serializable>();
+        for (JsonNode idNode : idNodes) {
+            if (!idNode.isTextual() && !idNode.isIntegralNumber()) {
+                throw new WebApplicationException(400);
+            }
+            try {
+                ids.add(model.parseId(idNode.asText()));
+            } catch (NumberFormatException e) {
+                throw new WebApplicationException(400);
+            }
+        }
+
+        HibernateManager manager = HibernateManager.getManager();
+        Map<Serializable, Object> found = new HashMap<Serializable, Object>();
+        try {
+            for (Object resource : manager.getResources(klass, ids, associations)) {
+                found.put(manager.getIdentifier(resource), resource);
+            }
+        } catch (HibernateException e) {
+            throw new WebApplicationException(400);
+        }
+
+        List<Object> resources = new ArrayList<Object>(found.size());
+        List<Serializable> missing = new ArrayList<Serializable>();
+        for (Serializable id : ids) {
+            Object resource = found.get(id);
+            if (resource != null) {
+                resources.add(resource);
+            } else {
+                missing.add(id);
+            }
+        }
+        return new MultiGetResult(resources, missing);
+    }
+
+    /**
+     * Computes statistics of numeric properties of the resources of type
+     * className in the database (see HibernateManager#getStatistics): the
+     * count, min, max, average, percentiles and a histogram of each. Any
+     * other query parameter filters on a property, as for GET /{class}.
+     * Statistics may be up to simplejson.stats.ttl milliseconds old.
+     * @param className The type of the resources.
+     * @param properties Comma-separated numeric properties to compute
+     *        statistics of; by default, all of them.
+     * @param group A property to compute them for each value of as well,
+     *        either filterable or a reference to another resource (e.g.,
+     *        "owner", by owner ID), if any.
+     * @return The statistics, or HTTP 400 if a property can't be used.
+     */
+    @GET
+    @Path("_stats")
+    @Produces({MediaType.APPLICATION_JSON, SmileProvider.SMILE})
+    public ResourceStatistics getStatistics(@PathParam("class") String className,
+                                            @QueryParam("properties") String properties,
+                                            @QueryParam("group") String group) {
+        Class<?> klass = getModel(className).getModelClass();
+        ResourceQuery query = parseQuery(klass, null, STATS_PARAMETERS);
+        HibernateManager manager = HibernateManager.getManager();
+
+        List<String> names = new ArrayList<String>();
+        if (properties == null) {
+            for (String name : manager.getSessionFactory().getClassMetadata(klass).getPropertyNames()) {
+                if (isNumeric(manager.getFilterableType(klass, name))) {
+                    names.add(name);
+                }
+            }
+        } else {
+            for (String name : properties.split(",")) {
+                name = name.trim();
+                if (name.length() == 0 || names.contains(name)) {
+                    continue;
+                }
+                if (!isNumeric(getFilterableType(klass, name))) {
+                    throw new WebApplicationException(400);
+                }
+                names.add(name);
+            }
+        }
+        if (names.isEmpty()) {
+            throw new WebApplicationException(400);
+        }
+        if (group != null && !manager.isReference(klass, group)) {
+            getFilterableType(klass, group);
+        }
+
+        try {
+            return manager.getStatistics(klass, query, names, group);
+        } catch (HibernateException e) {
+            throw new WebApplicationException(400);
+        }
+    }
+
+    private static boolean isNumeric(Class<?> type) {
+        return type == Integer.class || type == Long.class;
+    }
+
+    /**
+     * @param resource A resource fresh from Hibernate.
+     * @return The resource's version, as an ETag.
+     */
+    private EntityTag getEntityTag(Object resource) {
+        return new EntityTag(HibernateManager.getManager().getVersion(resource).toString());
+    }
+
+    /**
+     * Parses an If-Match header into the version the client expects to be
+     * updating. Since our ETags are versions, only a single strong tag can
+     * ever match; anything else is a precondition that must fail.
+     * @param ifMatch The If-Match header, possibly null.
+     * @return The expected version, or null if there's no precondition.
+     * @throws WebApplicationException (412) if ifMatch can't match anything.
+     */
+    private Long parseIfMatch(String ifMatch) {
+        if (ifMatch == null || ifMatch.trim().equals("*")) {
+            return null;
+        }
+        // EntityTag.valueOf would read a list as just its first tag
+        if (ifMatch.indexOf(',') >= 0) {
+            throw new WebApplicationException(412);
+        }
+        try {
+            EntityTag tag = EntityTag.valueOf(ifMatch.trim());
+            if (tag.isWeak()) {
+                // If-Match compares strongly
+                throw new WebApplicationException(412);
+            }
+            return Long.valueOf(tag.getValue());
+        } catch (IllegalArgumentException e) {
+            // includes NumberFormatException
+            throw new WebApplicationException(412);
+        }
+    }
+
+    /**
+     * Looks up the model matching the class path segment.
+     * @param className The model name from the URI (e.g., "car").
+     * @return The model.
+     * @throws WebApplicationException (404) if there's no such model.
+     */
+    private Model getModel(String className) {
+        Model model = ModelRegistry.getRegistry().getModel(className);
+        if (model == null) {
+            throw new WebApplicationException(404);
+        }
+        return model;
+    }
+
+    /**
+     * Turns the comma-separated expand query parameter into the set of
+     * associations to fetch, making sure each one exists for klass.
+     * @param klass The type of resource being retrieved.
+     * @param expand The expand query parameter, possibly null.
+     * @return The associations to fetch (empty if none).
+     * @throws WebApplicationException (400) if an association doesn't exist.
+     */
+    private Set<String> parseExpand(Class<?> klass, String expand) {
+        Set<String> associations = new HashSet<String>();
+        if (expand == null) {
+            return associations;
+        }
+        for (String association : expand.split(",")) {
+            association = association.trim();
+            if (association.length() == 0) {
+                continue;
+            }
+            if (!HibernateManager.getManager().isAssociation(klass, association)) {
+                throw new WebApplicationException(400);
+            }
+            associations.add(association);
+        }
+        return associations;
+    }
+
+    /**
+     * Turns the query parameters of a collection GET into a ResourceQuery.
+     * Filters look like {property}={value} or {property}.{op}={value}, where
+     * op is one of eq, ne, gt, gte, lt or lte; sort is a comma-separated
+     * list of properties, each prefixed with "-" for descending order.
+     * @param klass The type of resource being retrieved.
+     * @param sort The sort query parameter, possibly null.
+     * @param reserved The endpoint's own query parameters, which aren't
+     *        filters; any other parameter must name a property.
+     * @return The query.
+     * @throws WebApplicationException (400) if a property can't be filtered
+     *         or sorted by, an operator is unknown, or a value is malformed.
+     */
+    private ResourceQuery parseQuery(Class<?> klass, String sort, Set<String> reserved) {
+        ResourceQuery query = new ResourceQuery();
+        for (Map.Entry<String, List<String>> parameter : uriInfo.getQueryParameters().entrySet()) {
+            if (reserved.contains(parameter.getKey())) {
+                continue;
+            }
+            String property = parameter.getKey();
+            ResourceQuery.Operator operator = ResourceQuery.Operator.EQ;
+            int dot = property.lastIndexOf('.');
+            if (dot >= 0) {
+                try {
+                    operator = ResourceQuery.Operator.valueOf(property.substring(dot + 1).toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    throw new WebApplicationException(400);
+                }
+                property = property.substring(0, dot);
+            }
+            Class<?> type = getFilterableType(klass, property);
+            for (String value : parameter.getValue()) {
+                query.addCondition(property, operator, parseValue(type, value));
+            }
+        }
+        if (sort != null) {
+            for (String property : sort.split(",")) {
+                property = property.trim();
+                boolean ascending = !property.startsWith("-");
+                if (!ascending) {
+                    property = property.substring(1);
+                }
+                if (property.length() == 0) {
+                    continue;
+                }
+                getFilterableType(klass, property);
+                query.addSort(property, ascending);
+            }
+        }
+        return query;
+    }
+
+    /**
+     * @throws WebApplicationException (400) if klass can't be filtered or
+     *         sorted by property.
+     */
+    private Class<?> getFilterableType(Class<?> klass, String property) {
+        Class<?> type = HibernateManager.getManager().getFilterableType(klass, property);
+        if (type == null) {
+            throw new WebApplicationException(400);
+        }
+        return type;
+    }
+
+    /**
+     * Converts a filter value from the query string to the property's type.
+     * @throws WebApplicationException (400) if it isn't of that type.
+     */
+    private static Object parseValue(Class<?> type, String value) {
+        try {
+            if (type == Integer.class) {
+                return Integer.valueOf(value);
+            } else if (type == Long.class) {
+                return Long.valueOf(value);
+            } else if (type == String.class) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            throw new WebApplicationException(400);
+        }
+        // nothing else is mapped (yet)
+        throw new WebApplicationException(400);
     }
 
     /**
@@ -122,25 +667,20 @@ public class SimpleJsonResource {
      * entity. If a resource of that type already exists with the same id, an
      * HTTP 400 is returned.
      * @param className The type of the resource.
-     * @param resourceJson The new resource to create.
+     * @param resourceStream The new resource to create, as a JSON stream.
      * @return HTTP 201 (Created) along with the URI of the new resource if all goes well.
      */
     @POST
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, SmileProvider.SMILE})
     @Produces(MediaType.APPLICATION_JSON)
-    public Response createResource(@PathParam("class") String className, String resourceJson) {
-        Class<?> klass;
-        try {
-            klass = SimpleJsonUtil.getModelClassForName(className);
-        } catch (ClassNotFoundException e) {
-            return Response.status(500).build();
-        }
+    public Response createResource(@PathParam("class") String className, InputStream resourceStream) {
+        Model model = getModel(className);
+        Class<?> klass = model.getModelClass();
 
-        // parse the resourceJson into its corresponding object
+        // parse the resourceStream into its corresponding object
         Object resource;
-        ObjectMapper om = new ObjectMapper();
         try {
-            resource = om.readValue(resourceJson, klass);
+            resource = model.read(resourceStream, SmileProvider.getCodec(headers.getMediaType()));
         } catch (JsonParseException e) {
             return Response.status(400).build();
         } catch (JsonMappingException e) {
@@ -158,7 +698,107 @@ public class SimpleJsonResource {
 
         // tack on the new resource's ID to the request URI to get its location
         URI location = UriBuilder.fromUri(uriInfo.getRequestUri()).path(id.toString()).build();
-        return Response.created(location).build();
+        return Response.created(location).tag(getEntityTag(resource)).build();
+    }
+
+    /**
+     * Creates many resources of type className at once. The entity is either
+     * a JSON array of resources or newline-delimited JSON (one resource per
+     * line). Resources are inserted in chunks, one transaction per chunk; if
+     * a chunk fails, its resources are retried one at a time so that the bad
+     * ones can be singled out.
+     * @param className The type of the resources.
+     * @param resourcesStream The new resources to create.
+     * @return HTTP 200 with the status (and ID, if created) of each resource,
+     *         in request order. If the entity turns out to be malformed part
+     *         of the way through, HTTP 400 with the statuses of the resources
+     *         before that point (which have been created).
+     */
+    @POST
+    @Path("_bulk")
+    @Consumes({MediaType.APPLICATION_JSON, NDJSON, SmileProvider.SMILE})
+    @Produces({MediaType.APPLICATION_JSON, SmileProvider.SMILE})
+    public Response createResources(@PathParam("class") String className, InputStream resourcesStream) {
+        Model model = getModel(className);
+        Class<?> klass = model.getModelClass();
+
+        JsonCodec codec = SmileProvider.getCodec(headers.getMediaType());
+        ObjectMapper mapper = codec.getMapper();
+        ObjectReader reader = codec.getReader(klass);
+        // one slot per item, in request order; chunked items are filled in
+        // once their chunk has been written
+        List<BulkResult> results = new ArrayList<BulkResult>();
+        List<Object> chunk = new ArrayList<Object>(BULK_CHUNK_SIZE);
+        List<Integer> chunkIndexes = new ArrayList<Integer>(BULK_CHUNK_SIZE);
+        try {
+            JsonParser parser = mapper.getJsonFactory().createJsonParser(resourcesStream);
+            JsonToken token = parser.nextToken();
+            // NDJSON is just a sequence of root-level values, which Jackson
+            // reads happily; an array (JSON or Smile) only needs its brackets
+            // skipped
+            if (token == JsonToken.START_ARRAY) {
+                token = parser.nextToken();
+            }
+            while (token != null && token != JsonToken.END_ARRAY) {
+                int index = results.size();
+                // parse to a tree first so that a resource that doesn't map
+                // onto klass fails alone, without derailing the parser
+                JsonNode node = mapper.readTree(parser);
+                try {
+                    chunk.add(reader.readValue(node));
+                    chunkIndexes.add(index);
+                    results.add(null);
+                } catch (JsonMappingException e) {
+                    results.add(new BulkResult(index, 400, null));
+                }
+                if (chunk.size() == BULK_CHUNK_SIZE) {
+                    createChunk(chunk, chunkIndexes, results);
+                }
+                token = parser.nextToken();
+            }
+        } catch (JsonParseException e) {
+            createChunk(chunk, chunkIndexes, results);
+            return Response.status(400).entity(results).build();
+        } catch (IOException e) {
+            return Response.status(500).build();
+        }
+        createChunk(chunk, chunkIndexes, results);
+
+        return Response.ok(results).build();
+    }
+
+    /**
+     * Creates the resources in chunk in one batched transaction, records
+     * their results, and empties the chunk.
+     * @param chunk The resources to create.
+     * @param chunkIndexes The request position of each resource in chunk.
+     * @param results The results to fill in, by request position.
+     */
+    private void createChunk(List<Object> chunk, List<Integer> chunkIndexes, List<BulkResult> results) {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        try {
+            List<Serializable> ids = HibernateManager.getManager().createResources(chunk);
+            for (int i = 0; i < chunk.size(); i++) {
+                int index = chunkIndexes.get(i);
+                results.set(index, new BulkResult(index, 201, ids.get(i)));
+            }
+        } catch (HibernateException e) {
+            // the whole chunk was rolled back; go one by one to find the
+            // resource(s) responsible, and save the rest
+            for (int i = 0; i < chunk.size(); i++) {
+                int index = chunkIndexes.get(i);
+                try {
+                    Serializable id = HibernateManager.getManager().createResource(chunk.get(i));
+                    results.set(index, new BulkResult(index, 201, id));
+                } catch (HibernateException e1) {
+                    results.set(index, new BulkResult(index, 400, null));
+                }
+            }
+        }
+        chunk.clear();
+        chunkIndexes.clear();
     }
 
     /**
@@ -167,25 +807,27 @@ public class SimpleJsonResource {
      * 404 (Not Found) is returned.
      * @param className The type of the resource.
      * @param id The id of the resource.
-     * @param resourceJson The resource data to update.
-     * @return HTTP 204 (No Content) if all goes well.
+     * @param ifMatch The version (ETag) the client expects to be updating, if
+     *        any; if the resource has moved on, HTTP 412 is returned.
+     * @param resourceStream The resource data to update, as a JSON stream.
+     * @return HTTP 204 (No Content) with the new ETag if all goes well, or
+     *         HTTP 202 (Accepted), with no ETag, if the update was buffered
+     *         to be written later (see WriteBehindBuffer). A 202 isn't
+     *         durable: the update is lost if the process dies before it's
+     *         written, and dropped if the write fails.
      */
     @POST
     @Path("{id}")
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, SmileProvider.SMILE})
     @Produces(MediaType.APPLICATION_JSON)
-    public Response updateResource(@PathParam("class") String className, @PathParam("id") String id, String resourceJson) {
-        Class<?> klass;
-        try {
-            klass = SimpleJsonUtil.getModelClassForName(className);
-        } catch (ClassNotFoundException e) {
-            return Response.status(500).build();
-        }
+    public Response updateResource(@PathParam("class") String className, @PathParam("id") String id,
+                                   @HeaderParam("If-Match") String ifMatch, InputStream resourceStream) {
+        Model model = getModel(className);
+        Class<?> klass = model.getModelClass();
 
         Object resource;
-        ObjectMapper om = new ObjectMapper();
         try {
-            resource = om.readValue(resourceJson, klass);
+            resource = model.read(resourceStream, SmileProvider.getCodec(headers.getMediaType()));
         } catch (JsonParseException e) {
             return Response.status(400).build();
         } catch (JsonMappingException e) {
@@ -194,24 +836,27 @@ public class SimpleJsonResource {
             return Response.status(500).build();
         }
 
+        Long expectedVersion = parseIfMatch(ifMatch);
         try {
-            if (klass == Owner.class || klass == Person.class) {
-                // hack hack hack...because Session#update needs the resource
-                // to have its ID already set
-                ((Person) resource).setId(Long.decode(id));
-                HibernateManager.getManager().updateResource(resource, klass, Long.decode(id));
-            } else {
-                HibernateManager.getManager().updateResource(resource, klass, id);
+            // the URI, not the entity, says which resource is being updated
+            Serializable resourceId = model.parseId(id);
+            model.setIdentifier(resource, resourceId);
+            // a buffered update has no version to check against, or to return
+            if (expectedVersion == null && WriteBehindBuffer.getBuffer().isBuffered(klass)) {
+                WriteBehindBuffer.getBuffer().update(resource, klass, resourceId);
+                return Response.status(Response.Status.ACCEPTED).build();
             }
+            HibernateManager.getManager().updateResource(resource, klass, resourceId, expectedVersion);
         } catch (NumberFormatException e) {
             return Response.status(400).build();
-        } catch (StaleStateException e) {
-            // this means that update couldn't find a match for the ID
+        } catch (ObjectNotFoundException e) {
             return Response.status(404).build();
+        } catch (StaleStateException e) {
+            return conflict(expectedVersion);
         } catch (HibernateException e) {
             return Response.status(400).build();
         }
-        return Response.noContent().build();
+        return Response.noContent().tag(getEntityTag(resource)).build();
     }
 
     /**
@@ -219,25 +864,25 @@ public class SimpleJsonResource {
      * match the provided JSON entity.
      * @param className The type of the resource.
      * @param id The id of the resource.
-     * @param resourceJson The resource data to create or update.
-     * @return HTTP 201 (Created) if a new resource is created, 204 otherwise.
+     * @param ifMatch The version (ETag) the client expects to be updating, if
+     *        any; if the resource has moved on (or doesn't exist), HTTP 412
+     *        is returned.
+     * @param resourceStream The resource data to create or update, as a JSON stream.
+     * @return HTTP 201 (Created) if a new resource is created, 204 otherwise,
+     *         either way with the new ETag.
      */
     @PUT
     @Path("{id}")
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, SmileProvider.SMILE})
     @Produces(MediaType.APPLICATION_JSON)
-    public Response createOrUpdateResource(@PathParam("class") String className, @PathParam("id") String id, String resourceJson) {
-        Class<?> klass;
-        try {
-            klass = SimpleJsonUtil.getModelClassForName(className);
-        } catch (ClassNotFoundException e) {
-            return Response.status(500).build();
-        }
+    public Response createOrUpdateResource(@PathParam("class") String className, @PathParam("id") String id,
+                                           @HeaderParam("If-Match") String ifMatch, InputStream resourceStream) {
+        Model model = getModel(className);
+        Class<?> klass = model.getModelClass();
 
         Object resource;
-        ObjectMapper om = new ObjectMapper();
         try {
-            resource = om.readValue(resourceJson, klass);
+            resource = model.read(resourceStream, SmileProvider.getCodec(headers.getMediaType()));
         } catch (JsonParseException e) {
             return Response.status(400).build();
         } catch (JsonMappingException e) {
@@ -246,27 +891,112 @@ public class SimpleJsonResource {
             return Response.status(500).build();
         }
 
+        Long expectedVersion = parseIfMatch(ifMatch);
         // bit of a hack to distinguish between create and update, as per RFC 2616
         boolean created;
         try {
-            if (klass == Owner.class || klass == Person.class) {
-                // TODO: remove this ugly hack
-                ((Person) resource).setId(Long.decode(id));
-                created = HibernateManager.getManager().createOrUpdateResource(resource, klass, Long.decode(id));
-            } else {
-                created = HibernateManager.getManager().createOrUpdateResource(resource, klass, id);
-            }
+            Serializable resourceId = model.parseId(id);
+            model.setIdentifier(resource, resourceId);
+            created = HibernateManager.getManager().createOrUpdateResource(resource, klass, resourceId, expectedVersion);
         } catch (NumberFormatException e) {
             return Response.status(400).build();
+        } catch (StaleStateException e) {
+            return conflict(expectedVersion);
         } catch (HibernateException e) {
             return Response.status(400).build();
         }
 
+        EntityTag tag = getEntityTag(resource);
         if (created) {
             URI location = UriBuilder.fromUri(uriInfo.getRequestUri()).path(id).build();
-            return Response.created(location).build();
+            return Response.created(location).tag(tag).build();
         }
-        return Response.noContent().build();
+        return Response.noContent().tag(tag).build();
+    }
+
+    /**
+     * Applies a JSON Merge Patch (RFC 7386) to the resource of type className
+     * specified by id: each property in the patch is set to the value given
+     * (null included, except for properties that can't be null, which get
+     * an HTTP 400), and the rest are left alone. Unlike POST and PUT, only
+     * the columns that change are written. The identifier, if present, is
+     * ignored, as for updates; the version and associations can't be
+     * patched. If no resource exists with the same id, an HTTP 404 (Not
+     * Found) is returned.
+     * @param className The type of the resource.
+     * @param id The id of the resource.
+     * @param ifMatch The version (ETag) the client expects to be patching, if
+     *        any; if the resource has moved on, HTTP 412 is returned.
+     * @param patchStream The merge patch, as a JSON stream.
+     * @return HTTP 204 (No Content) with the new ETag if all goes well.
+     */
+    @PATCH
+    @Path("{id}")
+    @Consumes({MERGE_PATCH, MediaType.APPLICATION_JSON})
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response patchResource(@PathParam("class") String className, @PathParam("id") String id,
+                                  @HeaderParam("If-Match") String ifMatch, InputStream patchStream) {
+        Model model = getModel(className);
+        Class<?> klass = model.getModelClass();
+
+        JsonNode patch;
+        try {
+            patch = JsonCodec.getCodec().getMapper().readTree(patchStream);
+        } catch (JsonParseException e) {
+            return Response.status(400).build();
+        } catch (IOException e) {
+            return Response.status(500).build();
+        }
+        // a patch that isn't an object would replace the whole resource
+        if (patch == null || !patch.isObject()) {
+            return Response.status(400).build();
+        }
+        ((ObjectNode) patch).remove(model.getIdentifierName());
+        Iterator<String> properties = patch.getFieldNames();
+        while (properties.hasNext()) {
+            String property = properties.next();
+            getFilterableType(klass, property);
+            // Jackson would quietly set a primitive to 0 (or false) instead
+            if (patch.get(property).isNull() && model.isPrimitive(property)) {
+                return Response.status(400).build();
+            }
+        }
+
+        final ObjectReader reader = model.getReader();
+        final JsonNode changes = patch;
+        Long expectedVersion = parseIfMatch(ifMatch);
+        Object version;
+        try {
+            version = HibernateManager.getManager().patchResource(klass, model.parseId(id),
+                    new HibernateManager.ResourcePatch() {
+                        public void apply(Object resource) throws IOException {
+                            reader.withValueToUpdate(resource).readValue(changes);
+                        }
+                    }, expectedVersion);
+        } catch (NumberFormatException e) {
+            return Response.status(400).build();
+        } catch (ObjectNotFoundException e) {
+            return Response.status(404).build();
+        } catch (StaleStateException e) {
+            return conflict(expectedVersion);
+        } catch (HibernateException e) {
+            return Response.status(400).build();
+        } catch (JsonMappingException e) {
+            return Response.status(400).build();
+        } catch (IOException e) {
+            return Response.status(500).build();
+        }
+        return Response.noContent().tag(new EntityTag(version.toString())).build();
+    }
+
+    /**
+     * The response to an update that lost an optimistic-locking race: HTTP
+     * 412 (Precondition Failed) if the client named the version it expected
+     * with If-Match, otherwise HTTP 409 (Conflict), since another writer got
+     * in between our read and our write and the client may simply retry.
+     */
+    private Response conflict(Long expectedVersion) {
+        return Response.status(expectedVersion != null ? 412 : 409).build();
     }
 
 }
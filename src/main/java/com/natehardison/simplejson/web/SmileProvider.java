@@ -0,0 +1,109 @@
+package com.natehardison.simplejson.web;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.natehardison.simplejson.util.JsonCodec;
+
+/**
+ * Reads and writes entities as Smile, Jackson's binary JSON, for clients
+ * that ask for it (Accept or Content-Type: application/x-jackson-smile).
+ * This is the Smile counterpart of the Jackson JSON provider; both use the
+ * service's JsonCodecs.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+@Provider
+@Consumes(SmileProvider.SMILE)
+@Produces(SmileProvider.SMILE)
+public class SmileProvider implements MessageBodyReader<Object>, MessageBodyWriter<Object> {
+
+    /**
+     * Media type for Smile-encoded entities.
+     */
+    public static final String SMILE = "application/x-jackson-smile";
+    public static final MediaType SMILE_TYPE = MediaType.valueOf(SMILE);
+
+    /**
+     * Types that other providers already know how to read and write as-is.
+     */
+    private static final Set<Class<?>> UNTOUCHABLES = new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+            InputStream.class, Reader.class, OutputStream.class, Writer.class,
+            byte[].class, char[].class, String.class, StreamingOutput.class, Response.class));
+
+    /**
+     * Picks the codec for an entity's media type.
+     * @param mediaType The Content-Type of a request, or the negotiated type
+     *        of a response; possibly null.
+     * @return The Smile codec for Smile, otherwise the JSON codec.
+     */
+    public static JsonCodec getCodec(MediaType mediaType) {
+        if (mediaType != null && SMILE_TYPE.isCompatible(mediaType) && !mediaType.isWildcardType()) {
+            return JsonCodec.getSmileCodec();
+        }
+        return JsonCodec.getCodec();
+    }
+
+    private static boolean handles(Class<?> type) {
+        for (Class<?> untouchable : UNTOUCHABLES) {
+            if (untouchable.isAssignableFrom(type)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return handles(type);
+    }
+
+    public Object readFrom(Class<Object> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                           MultivaluedMap<String, String> httpHeaders, InputStream entityStream)
+            throws IOException, WebApplicationException {
+        JsonCodec codec = JsonCodec.getSmileCodec();
+        return codec.getMapper().readValue(entityStream, codec.getMapper().constructType(genericType));
+    }
+
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return handles(type);
+    }
+
+    public long getSize(Object value, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return -1;
+    }
+
+    public void writeTo(Object value, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                        MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream)
+            throws IOException, WebApplicationException {
+        ObjectMapper mapper = JsonCodec.getSmileCodec().getMapper();
+        JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator(entityStream);
+        // the container owns (and will close) the entity stream
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        // use the runtime type, as the JSON provider does, so that subclass
+        // properties (e.g., an Owner's vehicles) aren't lost
+        mapper.writeValue(generator, value);
+        generator.close();
+    }
+
+}
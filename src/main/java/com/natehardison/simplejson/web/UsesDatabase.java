@@ -0,0 +1,16 @@
+package com.natehardison.simplejson.web;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a resource class (or a single resource method) whose requests do
+ * database work, so that they're only let through while the
+ * DatabaseLimiter has room for them (see DatabaseDispatchAdapter).
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD})
+public @interface UsesDatabase {}
@@ -0,0 +1,183 @@
+package com.natehardison.simplejson.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.natehardison.simplejson.domain.Car;
+import com.natehardison.simplejson.domain.Owner;
+
+/**
+ * Checks the statistics of GET /{class}/_stats against cars whose values
+ * are known: counts, extremes, averages, histograms (overall and per owner,
+ * cars without one included) and the percentiles estimated from them. Each
+ * test works on cars of its own horsepower, so that they don't see each
+ * other's.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class ResourceStatisticsTest {
+
+    private static final double DELTA = 1e-9;
+
+    private final HibernateManager manager = HibernateManager.getManager();
+
+    @Test
+    public void aggregatesAndBucketsValues() {
+        // speeds 1 to 20, so the buckets are one value wide and exact
+        createCars(901, 20, null);
+        ResourceStatistics statistics = manager.getStatistics(Car.class, horsepower(901),
+                Arrays.asList("speed", "doors"), null);
+        assertEquals(20, statistics.getCount());
+        assertNull(statistics.getGroups());
+
+        PropertyStatistics speed = statistics.getProperties().get("speed");
+        assertEquals(20, speed.getCount());
+        assertEquals(Long.valueOf(1), speed.getMin());
+        assertEquals(Long.valueOf(20), speed.getMax());
+        assertEquals(10.5, speed.getAverage(), DELTA);
+        assertEquals(PropertyStatistics.BUCKETS, speed.getBuckets().size());
+        for (PropertyStatistics.Bucket bucket : speed.getBuckets()) {
+            assertEquals(bucket.getFrom(), bucket.getTo());
+            assertEquals(1, bucket.getCount());
+        }
+        Map<String, Double> percentiles = speed.getPercentiles();
+        assertEquals(10, percentiles.get("p50"), DELTA);
+        assertEquals(18, percentiles.get("p90"), DELTA);
+        assertEquals(19, percentiles.get("p95"), DELTA);
+        assertEquals(20, percentiles.get("p99"), DELTA);
+
+        // one value, one bucket
+        PropertyStatistics doors = statistics.getProperties().get("doors");
+        assertEquals(Long.valueOf(4), doors.getMin());
+        assertEquals(Long.valueOf(4), doors.getMax());
+        assertEquals(1, doors.getBuckets().size());
+        assertEquals(20, doors.getBuckets().get(0).getCount());
+    }
+
+    @Test
+    public void spreadsWideRangesOverBuckets() {
+        createCars(902, 100, null);
+        PropertyStatistics speed = manager.getStatistics(Car.class, horsepower(902),
+                Arrays.asList("speed"), null).getProperties().get("speed");
+        assertEquals(50.5, speed.getAverage(), DELTA);
+        // 1 to 100 in buckets five wide
+        assertEquals(PropertyStatistics.BUCKETS, speed.getBuckets().size());
+        assertEquals(1, speed.getBuckets().get(0).getFrom());
+        assertEquals(5, speed.getBuckets().get(0).getTo());
+        assertEquals(100, sumBuckets(speed));
+        assertEquals(50, speed.getPercentiles().get("p50"), DELTA);
+    }
+
+    @Test
+    public void groupsByOwner() {
+        Owner first = createOwner();
+        Owner second = createOwner();
+        createCars(903, 10, first);
+        createCars(903, 6, second);
+        createCars(903, 4, null);
+        ResourceStatistics statistics = manager.getStatistics(Car.class, horsepower(903),
+                Arrays.asList("speed"), "owner");
+        assertEquals(20, statistics.getCount());
+        assertEquals(20, sumBuckets(statistics.getProperties().get("speed")));
+
+        List<ResourceStatistics> groups = statistics.getGroups();
+        assertEquals(3, groups.size());
+        long[] counts = new long[3];
+        for (ResourceStatistics group : groups) {
+            int index;
+            if (group.getGroup() == null) {
+                index = 2;
+            } else if (((Number) group.getGroup()).longValue() == first.getId()) {
+                index = 0;
+            } else {
+                assertEquals(second.getId(), ((Number) group.getGroup()).longValue());
+                index = 1;
+            }
+            PropertyStatistics speed = group.getProperties().get("speed");
+            assertEquals(group.getCount(), speed.getCount());
+            assertEquals(group.getCount(), sumBuckets(speed));
+            // each group's speeds start at 1
+            assertEquals(Long.valueOf(1), speed.getMin());
+            assertEquals(Long.valueOf(group.getCount()), speed.getMax());
+            counts[index] = group.getCount();
+        }
+        assertEquals(10, counts[0]);
+        assertEquals(6, counts[1]);
+        assertEquals(4, counts[2]);
+    }
+
+    @Test
+    public void interpolatesPercentilesWithinBuckets() {
+        // ten buckets of ten values, ten resources in each
+        PropertyStatistics statistics = new PropertyStatistics();
+        statistics.add(100, 0, 99, 4950);
+        statistics.setBuckets(0, 10, 10);
+        for (int i = 0; i < 10; i++) {
+            statistics.addToBucket(i, 10);
+        }
+        Map<String, Double> percentiles = statistics.getPercentiles();
+        assertEquals(49, percentiles.get("p50"), DELTA);
+        assertEquals(89, percentiles.get("p90"), DELTA);
+        assertEquals(94.5, percentiles.get("p95"), DELTA);
+        assertEquals(98.1, percentiles.get("p99"), DELTA);
+
+        // kept within the values actually seen
+        statistics = new PropertyStatistics();
+        statistics.add(3, 5, 7, 18);
+        statistics.setBuckets(0, 10, 1);
+        statistics.addToBucket(0, 3);
+        percentiles = statistics.getPercentiles();
+        assertEquals(5, percentiles.get("p50"), DELTA);
+        assertEquals(7, percentiles.get("p99"), DELTA);
+
+        assertNull(new PropertyStatistics().getPercentiles());
+    }
+
+    private Owner createOwner() {
+        Owner owner = new Owner();
+        owner.setName("statistics");
+        owner.setAge(30);
+        manager.createResource(owner);
+        return owner;
+    }
+
+    /**
+     * Creates count cars of the given horsepower and owner, with speeds 1 to
+     * count and four doors each.
+     */
+    private void createCars(int horsepower, int count, Owner owner) {
+        List<Car> cars = new ArrayList<Car>(count);
+        for (int i = 1; i <= count; i++) {
+            Car car = new Car();
+            car.setVin(horsepower + "-" + (owner == null ? "none" : owner.getId()) + "-" + i);
+            car.setDoors(4);
+            car.setFuelConsumption(25);
+            car.setHorsepower(horsepower);
+            car.setSpeed(i);
+            car.setOwner(owner);
+            cars.add(car);
+        }
+        manager.createResources(cars);
+    }
+
+    private static ResourceQuery horsepower(int horsepower) {
+        ResourceQuery query = new ResourceQuery();
+        query.addCondition("horsepower", ResourceQuery.Operator.EQ, horsepower);
+        return query;
+    }
+
+    private static long sumBuckets(PropertyStatistics statistics) {
+        long sum = 0;
+        for (PropertyStatistics.Bucket bucket : statistics.getBuckets()) {
+            sum += bucket.getCount();
+        }
+        return sum;
+    }
+
+}
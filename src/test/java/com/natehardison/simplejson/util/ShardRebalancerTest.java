@@ -0,0 +1,101 @@
+package com.natehardison.simplejson.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hibernate.Criteria;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import org.junit.Test;
+
+import com.natehardison.simplejson.domain.Car;
+import com.natehardison.simplejson.domain.Vehicle;
+
+/**
+ * Rebalances vehicles left on the wrong shards (see
+ * hibernate-sharded-test.cfg.xml): the one being drained, and shards that
+ * their VINs no longer hash to. Each must end up on its own shard, once.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class ShardRebalancerTest {
+
+    static {
+        System.setProperty(HibernateManager.CONFIG_RESOURCE, "hibernate-sharded-test.cfg.xml");
+    }
+
+    private final HibernateManager manager = HibernateManager.getManager();
+    private final ShardRouter router = manager.getShardRouter();
+
+    @Test
+    public void movesMisplacedVehicles() {
+        List<SessionFactory> shards = router.getShards();
+        // the last shard is being drained, so everything on it is misplaced
+        int drained = shards.size() - 1;
+        List<String> vins = new ArrayList<String>();
+        for (int i = 0; i < 60; i++) {
+            String vin = "rebalance-" + i;
+            int home = router.getShardIndex(vin);
+            // a third on the drained shard, a third on the next shard round
+            // the ring from their own, and a third where they belong
+            int shard = i % 3 == 0 ? drained : i % 3 == 1 ? (home + 1) % drained : home;
+            save(shards.get(shard), vin);
+            vins.add(vin);
+        }
+
+        new ShardRebalancer(manager).run();
+        for (String vin : vins) {
+            int home = router.getShardIndex(vin);
+            for (int i = 0; i < shards.size(); i++) {
+                assertEquals(vin + " on shard " + i, i == home ? 1 : 0, count(shards.get(i), vin));
+            }
+        }
+        assertEquals(0, count(shards.get(drained), null));
+
+        // nothing left to move
+        new ShardRebalancer(manager).run();
+        for (String vin : vins) {
+            assertEquals(1, count(shards.get(router.getShardIndex(vin)), vin));
+        }
+    }
+
+    private static void save(SessionFactory shard, String vin) {
+        Car car = new Car();
+        car.setVin(vin);
+        car.setDoors(4);
+        car.setFuelConsumption(25);
+        car.setHorsepower(120);
+        car.setSpeed(180);
+        Session session = shard.openSession();
+        try {
+            Transaction tx = session.beginTransaction();
+            session.save(car);
+            tx.commit();
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * @return The number of vehicles on shard with the VIN, or of all of
+     *         them if it's null; counted by query, since the second-level
+     *         cache is shared.
+     */
+    private static long count(SessionFactory shard, String vin) {
+        Session session = shard.openSession();
+        try {
+            Criteria criteria = session.createCriteria(Vehicle.class).setProjection(Projections.rowCount());
+            if (vin != null) {
+                criteria.add(Restrictions.idEq(vin));
+            }
+            return (Long) criteria.uniqueResult();
+        } finally {
+            session.close();
+        }
+    }
+
+}
@@ -0,0 +1,191 @@
+package com.natehardison.simplejson.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.hibernate.Session;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.stat.Statistics;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.natehardison.simplejson.domain.Car;
+
+/**
+ * Buffers updates of cars (see hibernate-write-behind-test.cfg.xml) and
+ * checks when and how they reach the database: coalesced, visible to reads
+ * straight away, written early once max_pending are waiting, and always
+ * before any other write to the same car. Each test works on cars of its
+ * own VINs, and starts with nothing waiting.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class WriteBehindBufferTest {
+
+    static {
+        System.setProperty(HibernateManager.CONFIG_RESOURCE, "hibernate-write-behind-test.cfg.xml");
+    }
+
+    // max_pending in the configuration
+    private static final int MAX_PENDING = 5;
+
+    private final HibernateManager manager = HibernateManager.getManager();
+    private final WriteBehindBuffer buffer = WriteBehindBuffer.getBuffer();
+
+    @Before
+    public void flush() {
+        buffer.flush();
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void coalescesUpdates() {
+        createCars("coalesce", 1);
+        Statistics statistics = manager.getSessionFactory().getStatistics();
+        long coalesced = buffer.getCoalesced();
+        long written = buffer.getWritten();
+        for (int speed = 10; speed <= 30; speed += 10) {
+            buffer.update(car("coalesce-0", speed), Car.class, "coalesce-0");
+        }
+        assertEquals(coalesced + 2, buffer.getCoalesced());
+        assertEquals(1, buffer.getPendingCount());
+        // nothing is written until the buffer is
+        assertEquals(100, readSpeed("coalesce-0"));
+
+        statistics.clear();
+        buffer.flush();
+        assertEquals(written + 1, buffer.getWritten());
+        assertEquals(1, statistics.getEntityUpdateCount());
+        assertEquals(30, readSpeed("coalesce-0"));
+    }
+
+    @Test
+    public void readsSeePendingUpdates() {
+        createCars("read", 1);
+        buffer.update(car("read-0", 42), Car.class, "read-0");
+        assertEquals(42, ((Car) buffer.getPending(Car.class, "read-0")).getSpeed());
+        assertEquals(42, ((Car) manager.getResource(Car.class, "read-0")).getSpeed());
+        ResourceQuery query = new ResourceQuery();
+        query.addCondition("vin", ResourceQuery.Operator.EQ, "read-0");
+        List<Car> page = manager.getResources(Car.class, query, null, 10, Collections.<String>emptySet());
+        assertEquals(42, page.get(0).getSpeed());
+        // the read didn't write it
+        assertEquals(100, readSpeed("read-0"));
+
+        buffer.flush();
+        assertNull(buffer.getPending(Car.class, "read-0"));
+        assertEquals(42, ((Car) manager.getResource(Car.class, "read-0")).getSpeed());
+    }
+
+    @Test
+    public void writesOnceMaxPendingAreWaiting() throws InterruptedException {
+        createCars("max", MAX_PENDING);
+        long flushes = buffer.getFlushes();
+        for (int i = 0; i < MAX_PENDING - 1; i++) {
+            buffer.update(car("max-" + i, 50), Car.class, "max-" + i);
+        }
+        Thread.sleep(200);
+        assertEquals(MAX_PENDING - 1, buffer.getPendingCount());
+        assertEquals(flushes, buffer.getFlushes());
+
+        // the interval is ten minutes, so only max_pending can trigger this
+        buffer.update(car("max-" + (MAX_PENDING - 1), 50), Car.class, "max-" + (MAX_PENDING - 1));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!buffer.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(buffer.isEmpty());
+        assertEquals(flushes + 1, buffer.getFlushes());
+        for (int i = 0; i < MAX_PENDING; i++) {
+            assertEquals(50, readSpeed("max-" + i));
+        }
+    }
+
+    @Test
+    public void directWritesComeAfterPendingUpdates() {
+        createCars("direct", 1);
+        long written = buffer.getWritten();
+        buffer.update(car("direct-0", 60), Car.class, "direct-0");
+
+        // the buffered update is written first, then this one over it
+        Car direct = car("direct-0", 70);
+        direct.setHorsepower(200);
+        manager.createOrUpdateResource(direct, Car.class, "direct-0", null);
+        assertEquals(written + 1, buffer.getWritten());
+        assertTrue(buffer.isEmpty());
+        assertEquals(70, readSpeed("direct-0"));
+        // one version for each write
+        assertEquals(2, direct.getVersion());
+
+        buffer.flush();
+        assertEquals(70, readSpeed("direct-0"));
+    }
+
+    @Test
+    public void updatesWaitForDirectWrites() throws InterruptedException {
+        createCars("wait", 1);
+        buffer.lock(Car.class, "wait-0");
+        Thread update;
+        try {
+            update = new Thread(new Runnable() {
+                public void run() {
+                    buffer.update(car("wait-0", 80), Car.class, "wait-0");
+                }
+            });
+            update.start();
+            update.join(200);
+            // not buffered while the direct write holds the car
+            assertTrue(update.isAlive());
+            assertTrue(buffer.isEmpty());
+        } finally {
+            buffer.unlock(Car.class, "wait-0");
+        }
+        update.join(5000);
+        assertFalse(update.isAlive());
+        assertEquals(80, ((Car) buffer.getPending(Car.class, "wait-0")).getSpeed());
+    }
+
+    /**
+     * Creates count cars with VINs prefix-0, prefix-1, etc., at speed 100.
+     */
+    private void createCars(String prefix, int count) {
+        List<Car> cars = new ArrayList<Car>(count);
+        for (int i = 0; i < count; i++) {
+            cars.add(car(prefix + "-" + i, 100));
+        }
+        manager.createResources(cars);
+    }
+
+    private static Car car(String vin, int speed) {
+        Car car = new Car();
+        car.setVin(vin);
+        car.setDoors(4);
+        car.setFuelConsumption(25);
+        car.setHorsepower(120);
+        car.setSpeed(speed);
+        return car;
+    }
+
+    /**
+     * @return The car's speed in the database, past the buffer and the
+     *         second-level cache.
+     */
+    private int readSpeed(String vin) {
+        Session session = manager.getSessionFactory().openSession();
+        try {
+            return (Integer) session.createCriteria(Car.class)
+                    .add(Restrictions.idEq(vin))
+                    .setProjection(Projections.property("speed"))
+                    .uniqueResult();
+        } finally {
+            session.close();
+        }
+    }
+
+}
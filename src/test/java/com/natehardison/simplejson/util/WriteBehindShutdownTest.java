@@ -0,0 +1,82 @@
+package com.natehardison.simplejson.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hibernate.Session;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import org.junit.Test;
+
+import com.natehardison.simplejson.domain.Car;
+
+/**
+ * Shuts the WriteBehindBuffer down (see hibernate-write-behind-test.cfg.xml)
+ * with updates waiting: they must all be written, and later updates written
+ * straight away. A class of its own, since there's no starting the buffer
+ * up again.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class WriteBehindShutdownTest {
+
+    static {
+        System.setProperty(HibernateManager.CONFIG_RESOURCE, "hibernate-write-behind-test.cfg.xml");
+    }
+
+    private final HibernateManager manager = HibernateManager.getManager();
+    private final WriteBehindBuffer buffer = WriteBehindBuffer.getBuffer();
+
+    @Test
+    public void drainsOnShutdown() {
+        List<Car> cars = new ArrayList<Car>();
+        for (int i = 0; i < 3; i++) {
+            cars.add(car("shutdown-" + i, 100));
+        }
+        manager.createResources(cars);
+        long written = buffer.getWritten();
+        for (int i = 0; i < 3; i++) {
+            buffer.update(car("shutdown-" + i, 30), Car.class, "shutdown-" + i);
+        }
+        assertEquals(3, buffer.getPendingCount());
+
+        buffer.shutdown();
+        assertTrue(buffer.isEmpty());
+        assertEquals(written + 3, buffer.getWritten());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(30, readSpeed("shutdown-" + i));
+        }
+
+        buffer.update(car("shutdown-0", 40), Car.class, "shutdown-0");
+        assertTrue(buffer.isEmpty());
+        assertEquals(40, readSpeed("shutdown-0"));
+    }
+
+    private static Car car(String vin, int speed) {
+        Car car = new Car();
+        car.setVin(vin);
+        car.setDoors(4);
+        car.setFuelConsumption(25);
+        car.setHorsepower(120);
+        car.setSpeed(speed);
+        return car;
+    }
+
+    /**
+     * @return The car's speed in the database, past the second-level cache.
+     */
+    private int readSpeed(String vin) {
+        Session session = manager.getSessionFactory().openSession();
+        try {
+            return (Integer) session.createCriteria(Car.class)
+                    .add(Restrictions.idEq(vin))
+                    .setProjection(Projections.property("speed"))
+                    .uniqueResult();
+        } finally {
+            session.close();
+        }
+    }
+
+}
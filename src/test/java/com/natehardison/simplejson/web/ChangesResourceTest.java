@@ -0,0 +1,163 @@
+package com.natehardison.simplejson.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.JsonNode;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.natehardison.simplejson.util.HibernateManager;
+
+/**
+ * Follows GET /{class}/_changes while writing resources: the changes come
+ * back in order and only for the class asked about, long polls return as
+ * soon as there's a change, and a client that has fallen further behind
+ * than the feed keeps (16 changes, see hibernate-changes-test.cfg.xml) is
+ * told to start over. The feed is shared by the whole class, so each test
+ * follows it from wherever the tests before it left it.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class ChangesResourceTest {
+
+    static {
+        System.setProperty(HibernateManager.CONFIG_RESOURCE, "hibernate-changes-test.cfg.xml");
+    }
+
+    // simplejson.changes.capacity in the configuration
+    private static final int CAPACITY = 16;
+
+    private static TestServer server;
+    private static ExecutorService executor;
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        server = new TestServer();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        executor.shutdownNow();
+        server.stop();
+    }
+
+    @Test
+    public void followsChanges() throws IOException {
+        long since = getLast();
+        String path = createPerson("follow", 30);
+        long id = Long.parseLong(path.substring(path.lastIndexOf('/') + 1));
+        server.send("POST", "/car", "{\"vin\": \"follow-0\", \"doors\": 4, \"fuelConsumption\": 25, "
+                + "\"horsepower\": 120, \"speed\": 100}");
+        assertEquals(204, server.send("PATCH", path, "{\"age\": 31}").getStatus());
+
+        JsonNode page = server.get("/person/_changes?since=" + since).getJson();
+        JsonNode changes = page.get("changes");
+        assertEquals(2, changes.size());
+        JsonNode created = changes.get(0);
+        assertEquals("CREATE", created.get("operation").getTextValue());
+        assertEquals("person", created.get("type").getTextValue());
+        assertEquals(id, created.get("id").getLongValue());
+        assertEquals(0, created.get("version").getLongValue());
+        assertEquals("follow", created.get("resource").get("name").getTextValue());
+        JsonNode updated = changes.get(1);
+        assertEquals("UPDATE", updated.get("operation").getTextValue());
+        assertEquals(1, updated.get("version").getLongValue());
+        assertEquals(31, updated.get("resource").get("age").getIntValue());
+        assertTrue(created.get("sequence").getLongValue() < updated.get("sequence").getLongValue());
+        // the car's change is stepped over, not returned
+        assertEquals(updated.get("sequence").getLongValue(), page.get("last").getLongValue());
+        assertEquals(1, server.get("/car/_changes?since=" + since).getJson().get("changes").size());
+
+        // a page at a time
+        page = server.get("/person/_changes?since=" + since + "&limit=1").getJson();
+        assertEquals(1, page.get("changes").size());
+        assertEquals(created.get("sequence"), page.get("last"));
+        page = server.get("/person/_changes?since=" + page.get("last") + "&limit=1").getJson();
+        assertEquals(updated.get("sequence"), page.get("changes").get(0).get("sequence"));
+    }
+
+    @Test
+    public void longPollsReturnOnChange() throws Exception {
+        final long since = getLast();
+        long start = System.currentTimeMillis();
+        Future<TestServer.Response> poll = executor.submit(new Callable<TestServer.Response>() {
+            public TestServer.Response call() throws IOException {
+                return server.get("/person/_changes?since=" + since + "&wait=" + ChangesResource.MAX_WAIT);
+            }
+        });
+        Thread.sleep(200);
+        assertFalse(poll.isDone());
+
+        createPerson("poll", 30);
+        TestServer.Response response = poll.get(10, TimeUnit.SECONDS);
+        assertTrue(System.currentTimeMillis() - start < TimeUnit.SECONDS.toMillis(10));
+        assertEquals(200, response.getStatus());
+        JsonNode changes = response.getJson().get("changes");
+        assertTrue(changes.size() >= 1);
+        assertEquals("CREATE", changes.get(0).get("operation").getTextValue());
+    }
+
+    @Test
+    public void longPollsTimeOut() throws IOException {
+        // nobody writes trucks here
+        long since = getLast();
+        long start = System.currentTimeMillis();
+        JsonNode page = server.get("/truck/_changes?since=" + since + "&wait=1").getJson();
+        assertTrue(System.currentTimeMillis() - start >= 1000);
+        assertEquals(0, page.get("changes").size());
+        assertTrue(page.get("last").getLongValue() >= since);
+    }
+
+    @Test
+    public void staleCursorsAreGone() throws IOException {
+        long since = getLast();
+        for (int i = 0; i <= CAPACITY; i++) {
+            createPerson("stale-" + i, 30);
+        }
+        assertEquals(410, server.get("/person/_changes?since=" + since).getStatus());
+        // numbers from before a restart, say
+        assertEquals(410, server.get("/person/_changes?since=" + (getLast() + 1000)).getStatus());
+        // a client that keeps up is still fine
+        assertEquals(200, server.get("/person/_changes?since=" + getLast()).getStatus());
+    }
+
+    @Test
+    public void refusesBadParameters() throws IOException {
+        assertEquals(400, server.get("/person/_changes?since=0&limit=0").getStatus());
+        assertEquals(400, server.get("/person/_changes?since=0&wait=-1").getStatus());
+        assertEquals(400, server.get("/person/_changes?since=0&wait=" + (ChangesResource.MAX_WAIT + 1)).getStatus());
+        // Jersey's answer to a query parameter it can't convert
+        assertEquals(404, server.get("/person/_changes?since=x").getStatus());
+    }
+
+    /**
+     * @return The sequence number to follow the feed from.
+     */
+    private static long getLast() throws IOException {
+        JsonNode page = server.get("/person/_changes").getJson();
+        assertEquals(0, page.get("changes").size());
+        return page.get("last").getLongValue();
+    }
+
+    /**
+     * @return The new person's path, e.g. "/person/1".
+     */
+    private static String createPerson(String name, int age) throws IOException {
+        TestServer.Response created = server.send("POST", "/person",
+                "{\"name\": \"" + name + "\", \"age\": " + age + "}");
+        assertEquals(201, created.getStatus());
+        return new URL(created.getHeader("Location")).getPath();
+    }
+
+}
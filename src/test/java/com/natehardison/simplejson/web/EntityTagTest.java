@@ -0,0 +1,137 @@
+package com.natehardison.simplejson.web;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.hibernate.cfg.Environment;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.natehardison.simplejson.util.HibernateManager;
+
+/**
+ * Checks the versions that single resources carry as ETags: GETs answer a
+ * matching If-None-Match with 304, and updates fail with 412 when their
+ * If-Match is out of date, but with 409 when they lose a race they didn't
+ * ask to be protected from. Each test works on a person of its own.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class EntityTagTest {
+
+    private static TestServer server;
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        server = new TestServer();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    public void getsHonourIfNoneMatch() throws IOException {
+        TestServer.Response created = server.send("POST", "/person", person("none-match", 30));
+        assertEquals(201, created.getStatus());
+        assertEquals("\"0\"", created.getHeader("ETag"));
+        String path = new URL(created.getHeader("Location")).getPath();
+
+        TestServer.Response read = server.get(path);
+        assertEquals(200, read.getStatus());
+        assertEquals("\"0\"", read.getHeader("ETag"));
+        TestServer.Response notModified = server.get(path, "If-None-Match", "\"0\"");
+        assertEquals(304, notModified.getStatus());
+        assertEquals("", notModified.getBody());
+
+        assertEquals(204, server.send("PUT", path, person("none-match", 31)).getStatus());
+        read = server.get(path, "If-None-Match", "\"0\"");
+        assertEquals(200, read.getStatus());
+        assertEquals("\"1\"", read.getHeader("ETag"));
+        // expanded representations aren't covered by the version
+        assertEquals(null, server.get(path + "?expand=vehicles").getHeader("ETag"));
+    }
+
+    @Test
+    public void updatesHonourIfMatch() throws IOException {
+        String path = createPerson("match");
+        TestServer.Response updated = server.send("PUT", path, person("match", 31), "If-Match", "\"0\"");
+        assertEquals(204, updated.getStatus());
+        assertEquals("\"1\"", updated.getHeader("ETag"));
+        updated = server.send("POST", path, person("match", 32), "If-Match", "\"1\"");
+        assertEquals(204, updated.getStatus());
+        assertEquals("\"2\"", updated.getHeader("ETag"));
+
+        // out of date, unparseable, weak, or several tags
+        assertEquals(412, server.send("PUT", path, person("match", 33), "If-Match", "\"1\"").getStatus());
+        assertEquals(412, server.send("POST", path, person("match", 33), "If-Match", "\"1\"").getStatus());
+        assertEquals(412, server.send("PATCH", path, "{\"age\": 33}", "If-Match", "\"1\"").getStatus());
+        assertEquals(412, server.send("PUT", path, person("match", 33), "If-Match", "\"x\"").getStatus());
+        assertEquals(412, server.send("PUT", path, person("match", 33), "If-Match", "W/\"2\"").getStatus());
+        assertEquals(412, server.send("PUT", path, person("match", 33), "If-Match", "\"2\", \"3\"").getStatus());
+        // nothing to update
+        assertEquals(412, server.send("PUT", "/person/999999", person("match", 33), "If-Match", "\"0\"").getStatus());
+
+        assertEquals(204, server.send("PUT", path, person("match", 33), "If-Match", "*").getStatus());
+        assertEquals("\"3\"", server.get(path).getHeader("ETag"));
+        // writing what's already there changes nothing, the version included
+        updated = server.send("PUT", path, person("match", 33), "If-Match", "\"3\"");
+        assertEquals(204, updated.getStatus());
+        assertEquals("\"3\"", updated.getHeader("ETag"));
+    }
+
+    @Test
+    public void lostRacesConflict() throws IOException, SQLException {
+        String path = createPerson("race");
+        long id = Long.parseLong(path.substring(path.lastIndexOf('/') + 1));
+        // cached at version 0, as the service last saw it
+        assertEquals("\"0\"", server.get(path).getHeader("ETag"));
+
+        // another writer moves the row on behind the service's back, so the
+        // next UPDATE ... WHERE VERSION = 0 matches nothing
+        bumpVersion(id);
+        assertEquals(409, server.send("PUT", path, person("race", 31)).getStatus());
+        bumpVersion(id);
+        assertEquals(412, server.send("PUT", path, person("race", 32), "If-Match", "\"0\"").getStatus());
+
+        // once the service has seen the new version, updates go through
+        HibernateManager.getManager().getSessionFactory().getCache().evictEntity(
+                com.natehardison.simplejson.domain.Person.class, id);
+        assertEquals("\"2\"", server.get(path).getHeader("ETag"));
+        assertEquals(204, server.send("PUT", path, person("race", 33), "If-Match", "\"2\"").getStatus());
+    }
+
+    private static String person(String name, int age) {
+        return "{\"name\": \"" + name + "\", \"age\": " + age + "}";
+    }
+
+    /**
+     * @return The new person's path, e.g. "/person/1".
+     */
+    private static String createPerson(String name) throws IOException {
+        TestServer.Response created = server.send("POST", "/person", person(name, 30));
+        assertEquals(201, created.getStatus());
+        return new URL(created.getHeader("Location")).getPath();
+    }
+
+    private static void bumpVersion(long id) throws SQLException {
+        String url = HibernateManager.getManager().getProperty(Environment.URL);
+        Connection connection = DriverManager.getConnection(url, "sa", "");
+        try {
+            PreparedStatement statement = connection.prepareStatement(
+                    "UPDATE PERSON SET VERSION = VERSION + 1 WHERE ID = ?");
+            statement.setLong(1, id);
+            assertEquals(1, statement.executeUpdate());
+        } finally {
+            connection.close();
+        }
+    }
+
+}
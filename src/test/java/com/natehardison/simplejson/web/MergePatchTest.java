@@ -0,0 +1,152 @@
+package com.natehardison.simplejson.web;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.codehaus.jackson.JsonNode;
+import org.hibernate.cfg.Environment;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.natehardison.simplejson.util.HibernateManager;
+
+/**
+ * Checks PATCH against RFC 7386: the properties in a patch are set and the
+ * rest left alone, while nulls that can't be stored and patches that
+ * aren't objects are refused. To show that only the changed columns are
+ * written, the tests change other columns straight in the database, behind
+ * the service's cached copy, and check that the PATCH leaves them be.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class MergePatchTest {
+
+    private static TestServer server;
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        server = new TestServer();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    public void setsOnlyWhatsInThePatch() throws IOException {
+        String path = create("/person", "{\"name\": \"merge\", \"age\": 30}");
+        TestServer.Response patched = server.send("PATCH", path, "{\"age\": 31, \"id\": 12345}",
+                "Content-Type", SimpleJsonResource.MERGE_PATCH);
+        assertEquals(204, patched.getStatus());
+        assertEquals("\"1\"", patched.getHeader("ETag"));
+        JsonNode person = server.get(path).getJson();
+        assertEquals("merge", person.get("name").getTextValue());
+        assertEquals(31, person.get("age").getIntValue());
+        // the identifier is ignored, as for updates
+        assertEquals(path, "/person/" + person.get("id").getLongValue());
+
+        // plain JSON is taken as a merge patch too; an empty one changes nothing
+        assertEquals(204, server.send("PATCH", path, "{\"name\": \"merged\"}").getStatus());
+        patched = server.send("PATCH", path, "{}");
+        assertEquals(204, patched.getStatus());
+        assertEquals("\"2\"", patched.getHeader("ETag"));
+        person = server.get(path).getJson();
+        assertEquals("merged", person.get("name").getTextValue());
+        assertEquals(31, person.get("age").getIntValue());
+    }
+
+    @Test
+    public void refusesWhatCantBeMerged() throws IOException {
+        String path = create("/person", "{\"name\": \"refuse\", \"age\": 30}");
+        // null on a primitive, which Jackson would quietly make 0
+        assertEquals(400, server.send("PATCH", path, "{\"age\": null}").getStatus());
+        assertEquals(400, server.send("PATCH", path, "{\"name\": \"refused\", \"age\": null}").getStatus());
+        // a patch that isn't an object would replace the whole resource
+        assertEquals(400, server.send("PATCH", path, "[{\"age\": 31}]").getStatus());
+        assertEquals(400, server.send("PATCH", path, "31").getStatus());
+        assertEquals(400, server.send("PATCH", path, "{\"age\": ").getStatus());
+        assertEquals(400, server.send("PATCH", path, "{\"height\": 180}").getStatus());
+        assertEquals(404, server.send("PATCH", "/person/999999", "{\"age\": 31}").getStatus());
+
+        // none of which changed anything
+        TestServer.Response read = server.get(path);
+        assertEquals("\"0\"", read.getHeader("ETag"));
+        assertEquals(30, read.getJson().get("age").getIntValue());
+        assertEquals("refuse", read.getJson().get("name").getTextValue());
+    }
+
+    @Test
+    public void writesOnlyChangedColumns() throws IOException, SQLException {
+        String path = create("/person", "{\"name\": \"columns\", \"age\": 30}");
+        long id = Long.parseLong(path.substring(path.lastIndexOf('/') + 1));
+        // cached as the service last saw it
+        server.get(path);
+        execute("UPDATE PERSON SET NAME = 'elsewhere' WHERE ID = " + id);
+
+        assertEquals(204, server.send("PATCH", path, "{\"age\": 31}").getStatus());
+        // a full UPDATE would have put the cached name back
+        assertEquals("elsewhere", query("SELECT NAME FROM PERSON WHERE ID = " + id));
+        assertEquals("31", query("SELECT AGE FROM PERSON WHERE ID = " + id));
+        assertEquals("1", query("SELECT VERSION FROM PERSON WHERE ID = " + id));
+    }
+
+    @Test
+    public void writesOnlyChangedTables() throws IOException, SQLException {
+        create("/car", "{\"vin\": \"patch-0\", \"doors\": 4, \"fuelConsumption\": 25, "
+                + "\"horsepower\": 120, \"speed\": 100}");
+        server.get("/car/patch-0");
+        execute("UPDATE CAR SET DOORS = 5 WHERE VIN = 'patch-0'");
+        execute("UPDATE VEHICLE SET HORSEPOWER = 130 WHERE VIN = 'patch-0'");
+
+        assertEquals(204, server.send("PATCH", "/car/patch-0", "{\"speed\": 110}").getStatus());
+        assertEquals("110", query("SELECT SPEED FROM VEHICLE WHERE VIN = 'patch-0'"));
+        assertEquals("130", query("SELECT HORSEPOWER FROM VEHICLE WHERE VIN = 'patch-0'"));
+        assertEquals("5", query("SELECT DOORS FROM CAR WHERE VIN = 'patch-0'"));
+    }
+
+    /**
+     * @return The new resource's path, e.g. "/person/1".
+     */
+    private static String create(String path, String body) throws IOException {
+        TestServer.Response created = server.send("POST", path, body);
+        assertEquals(201, created.getStatus());
+        return new URL(created.getHeader("Location")).getPath();
+    }
+
+    private static Connection connect() throws SQLException {
+        return DriverManager.getConnection(HibernateManager.getManager().getProperty(Environment.URL), "sa", "");
+    }
+
+    private static void execute(String sql) throws SQLException {
+        Connection connection = connect();
+        try {
+            PreparedStatement statement = connection.prepareStatement(sql);
+            assertEquals(1, statement.executeUpdate());
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * @return The single value sql selects, as a string.
+     */
+    private static String query(String sql) throws SQLException {
+        Connection connection = connect();
+        try {
+            ResultSet result = connection.prepareStatement(sql).executeQuery();
+            result.next();
+            return result.getString(1);
+        } finally {
+            connection.close();
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+package com.natehardison.simplejson.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.hibernate.stat.Statistics;
+import org.junit.Test;
+
+import com.natehardison.simplejson.domain.Car;
+import com.natehardison.simplejson.domain.Owner;
+import com.natehardison.simplejson.util.HibernateManager;
+import com.natehardison.simplejson.util.JsonCodec;
+import com.natehardison.simplejson.util.ResourceQuery;
+
+/**
+ * Counts the statements GET /owner runs for N owners: the owners' vehicles
+ * must only be read when asked for (?expand=vehicles), and then batched,
+ * rather than with one query per owner. Each test works on owners of its
+ * own name, so that they don't see each other's.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class OwnerQueryCountTest {
+
+    // no more than the vehicles' batch-size (see Person.hbm.xml), so that
+    // the expanded vehicles take a single batch either way
+    private static final int FEW_OWNERS = 10;
+    private static final int MANY_OWNERS = 100;
+
+    private static final Set<String> VEHICLES = Collections.singleton("vehicles");
+    private static final Set<String> NOTHING = Collections.emptySet();
+
+    private final HibernateManager manager = HibernateManager.getManager();
+
+    @Test
+    public void streamReadsNoVehicles() throws IOException {
+        createOwners("stream-few", FEW_OWNERS);
+        createOwners("stream-many", MANY_OWNERS);
+        // the scroll of the owners, and nothing per owner
+        assertEquals(1, countStream("stream-few", NOTHING, false));
+        assertEquals(1, countStream("stream-many", NOTHING, false));
+    }
+
+    @Test
+    public void streamBatchesExpandedVehicles() throws IOException {
+        createOwners("expand-few", FEW_OWNERS);
+        createOwners("expand-many", MANY_OWNERS);
+        // the scroll, plus one query for all of the owners' vehicles
+        assertEquals(2, countStream("expand-few", VEHICLES, true));
+        assertEquals(2, countStream("expand-many", VEHICLES, true));
+    }
+
+    @Test
+    public void pageReadsNoVehicles() throws IOException {
+        createOwners("page-few", FEW_OWNERS);
+        createOwners("page-many", MANY_OWNERS);
+        assertEquals(1, countPage("page-few", NOTHING, false));
+        assertEquals(1, countPage("page-many", NOTHING, false));
+    }
+
+    @Test
+    public void pageBatchesExpandedVehicles() throws IOException {
+        createOwners("page-expand-few", FEW_OWNERS);
+        createOwners("page-expand-many", MANY_OWNERS);
+        assertEquals(2, countPage("page-expand-few", VEHICLES, true));
+        assertEquals(2, countPage("page-expand-many", VEHICLES, true));
+    }
+
+    /**
+     * Creates count owners named name, with two cars each.
+     */
+    private void createOwners(String name, int count) {
+        List<Owner> owners = new ArrayList<Owner>(count);
+        for (int i = 0; i < count; i++) {
+            Owner owner = new Owner();
+            owner.setName(name);
+            owner.setAge(30);
+            owners.add(owner);
+        }
+        manager.createResources(owners);
+        List<Car> cars = new ArrayList<Car>(2 * count);
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < 2; j++) {
+                Car car = new Car();
+                car.setVin(name + "-" + i + "-" + j);
+                car.setDoors(4);
+                car.setFuelConsumption(25);
+                car.setHorsepower(120);
+                car.setSpeed(180);
+                car.setOwner(owners.get(i));
+                cars.add(car);
+            }
+        }
+        manager.createResources(cars);
+    }
+
+    private static ResourceQuery named(String name) {
+        ResourceQuery query = new ResourceQuery();
+        query.addCondition("name", ResourceQuery.Operator.EQ, name);
+        return query;
+    }
+
+    /**
+     * Streams the owners named name as GET /owner does.
+     * @return The number of statements prepared.
+     */
+    private long countStream(String name, Set<String> associations, boolean expectVehicles) throws IOException {
+        Statistics statistics = manager.getSessionFactory().getStatistics();
+        statistics.clear();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        new ResourceStream(Owner.class, named(name), associations, JsonCodec.getCodec()).writeResources(body);
+        long count = statistics.getPrepareStatementCount();
+        assertVehicles(body.toString("UTF-8"), expectVehicles);
+        return count;
+    }
+
+    /**
+     * Reads and writes out a page of the owners named name as
+     * GET /owner?limit=... does.
+     * @return The number of statements prepared.
+     */
+    private long countPage(String name, Set<String> associations, boolean expectVehicles) throws IOException {
+        Statistics statistics = manager.getSessionFactory().getStatistics();
+        statistics.clear();
+        List<Owner> owners = manager.getResources(Owner.class, named(name), null,
+                SimpleJsonResource.MAX_PAGE_SIZE, associations);
+        String body = JsonCodec.getCodec().getMapper().writeValueAsString(owners);
+        long count = statistics.getPrepareStatementCount();
+        assertVehicles(body, expectVehicles);
+        return count;
+    }
+
+    private static void assertVehicles(String body, boolean expected) {
+        assertTrue(body.startsWith("[{"));
+        if (expected) {
+            assertTrue(body.contains("\"vehicles\":[{"));
+        } else {
+            assertFalse(body.contains("\"vehicles\""));
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+package com.natehardison.simplejson.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.codehaus.jackson.JsonNode;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.service.ServiceRegistryBuilder;
+import org.hibernate.stat.Statistics;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.natehardison.simplejson.util.HibernateManager;
+import com.natehardison.simplejson.util.ReplicaRoutingConnectionProvider;
+
+/**
+ * Checks where reads go when there's a replica (see
+ * hibernate-replica-test.cfg.xml). Nothing replicates to it here, so each
+ * test writes its rows to the primary and the replica directly, with a
+ * different name in each, and tells from the name which one a GET read.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class ReplicaRoutingTest {
+
+    private static final String CONFIG = "hibernate-replica-test.cfg.xml";
+
+    static {
+        System.setProperty(HibernateManager.CONFIG_RESOURCE, CONFIG);
+    }
+
+    private static TestServer server;
+    private static String primaryUrl;
+    private static String replicaUrl;
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        HibernateManager manager = HibernateManager.getManager();
+        primaryUrl = manager.getProperty(Environment.URL);
+        replicaUrl = manager.getProperty(ReplicaRoutingConnectionProvider.REPLICA_URLS);
+        // the service only creates the primary's schema
+        Configuration configuration = new Configuration().configure(CONFIG);
+        configuration.setProperty(Environment.URL, replicaUrl);
+        configuration.setProperty(ReplicaRoutingConnectionProvider.REPLICA_URLS, "");
+        configuration.setProperty(Environment.USE_SECOND_LEVEL_CACHE, "false");
+        ServiceRegistryBuilder serviceRegistryBuilder = new ServiceRegistryBuilder();
+        serviceRegistryBuilder.applySettings(configuration.getProperties());
+        configuration.buildSessionFactory(serviceRegistryBuilder.buildServiceRegistry()).close();
+
+        server = new TestServer();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    public void readsFromReplicaOutsideTheCache() throws IOException, SQLException {
+        insertPerson(primaryUrl, 1000001, "primary");
+        insertPerson(replicaUrl, 1000001, "replica");
+        Statistics statistics = HibernateManager.getManager().getSessionFactory().getStatistics();
+
+        long puts = statistics.getSecondLevelCachePutCount();
+        assertEquals("replica", getName("/person/1000001"));
+        JsonNode streamed = server.get("/person?name=replica").getJson();
+        assertEquals(1, streamed.size());
+        assertEquals(1000001, streamed.get(0).get("id").getLongValue());
+        // had the replica's row been cached, the primary read below would
+        // get it from there
+        assertEquals(puts, statistics.getSecondLevelCachePutCount());
+
+        String now = Long.toString(System.currentTimeMillis());
+        assertEquals("primary", getName("/person/1000001", DatabaseDispatchAdapter.READ_AFTER, now));
+        assertTrue(statistics.getSecondLevelCachePutCount() > puts);
+    }
+
+    @Test
+    public void readsYourWritesFromPrimary() throws IOException, SQLException {
+        insertPerson(primaryUrl, 1000002, "before");
+        insertPerson(replicaUrl, 1000002, "before");
+
+        TestServer.Response written = server.send("PUT", "/person/1000002", "{\"name\": \"after\", \"age\": 30}");
+        assertEquals(204, written.getStatus());
+        String lastWrite = written.getHeader(DatabaseDispatchAdapter.LAST_WRITE);
+        assertNotNull(lastWrite);
+
+        // out of the cache, so that the reads have to go to a database
+        HibernateManager.getManager().getSessionFactory().getCache().evictEntityRegions();
+        assertEquals("after", getName("/person/1000002", DatabaseDispatchAdapter.READ_AFTER, lastWrite));
+        HibernateManager.getManager().getSessionFactory().getCache().evictEntityRegions();
+        // a bad token plays it safe
+        assertEquals("after", getName("/person/1000002", DatabaseDispatchAdapter.READ_AFTER, "soon"));
+        HibernateManager.getManager().getSessionFactory().getCache().evictEntityRegions();
+        // the replica hasn't caught up, and never will here
+        assertEquals("before", getName("/person/1000002"));
+        assertEquals("before", getName("/person/1000002", DatabaseDispatchAdapter.READ_AFTER,
+                Long.toString(Long.parseLong(lastWrite) - 60000)));
+    }
+
+    private static String getName(String path, String... headers) throws IOException {
+        TestServer.Response response = server.get(path, headers);
+        assertEquals(200, response.getStatus());
+        return response.getJson().get("name").getTextValue();
+    }
+
+    private static void insertPerson(String url, long id, String name) throws SQLException {
+        Connection connection = DriverManager.getConnection(url, "sa", "");
+        try {
+            PreparedStatement statement = connection.prepareStatement(
+                    "INSERT INTO PERSON (ID, DISCR_COL, VERSION, NAME, AGE) VALUES (?, 'Person', 0, ?, 30)");
+            statement.setLong(1, id);
+            statement.setString(2, name);
+            statement.executeUpdate();
+        } finally {
+            connection.close();
+        }
+    }
+
+}
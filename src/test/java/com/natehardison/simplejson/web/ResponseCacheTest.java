@@ -0,0 +1,167 @@
+package com.natehardison.simplejson.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URL;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.natehardison.simplejson.util.HibernateManager;
+import com.natehardison.simplejson.util.ResponseCache;
+
+/**
+ * Reads pages of people through the ResponseCache (16KB, see
+ * hibernate-response-cache-test.cfg.xml) and checks that repeats are
+ * served from it, that writes invalidate exactly the pages they affect,
+ * and that it keeps within max_bytes. The counters are shared by the
+ * whole class, so the tests only check how they move. Each test reads
+ * people of an age of its own.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class ResponseCacheTest {
+
+    static {
+        System.setProperty(HibernateManager.CONFIG_RESOURCE, "hibernate-response-cache-test.cfg.xml");
+    }
+
+    // simplejson.response_cache.max_bytes in the configuration
+    private static final long MAX_BYTES = 16384;
+
+    private static TestServer server;
+    private static ResponseCache cache;
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        server = new TestServer();
+        cache = ResponseCache.getCache();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    public void servesRepeatsFromCache() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            createPerson("repeat-" + i, 41);
+        }
+        long hits = cache.getHits();
+        long misses = cache.getMisses();
+        TestServer.Response first = server.get("/person?age=41&limit=2");
+        assertEquals(200, first.getStatus());
+        assertNotNull(first.getHeader("ETag"));
+        assertNotNull(first.getHeader("Link"));
+        assertEquals(misses + 1, cache.getMisses());
+
+        TestServer.Response second = server.get("/person?age=41&limit=2");
+        assertEquals(hits + 1, cache.getHits());
+        assertEquals(first.getBody(), second.getBody());
+        assertEquals(first.getHeader("ETag"), second.getHeader("ETag"));
+        assertEquals(first.getHeader("Link"), second.getHeader("Link"));
+        assertEquals(304, server.get("/person?age=41&limit=2", "If-None-Match", first.getHeader("ETag")).getStatus());
+
+        // whole collections are streamed, never cached
+        TestServer.Response streamed = server.get("/person?age=41");
+        assertEquals(3, streamed.getJson().size());
+        assertNull(streamed.getHeader("ETag"));
+        assertEquals(misses + 1, cache.getMisses());
+        assertEquals(hits + 2, cache.getHits());
+    }
+
+    @Test
+    public void writesInvalidate() throws IOException {
+        String path = createPerson("invalidate", 42);
+        TestServer.Response before = server.get("/person?age=42&limit=10");
+        assertEquals(1, before.getJson().size());
+
+        // other classes' writes don't affect pages of people
+        long hits = cache.getHits();
+        server.send("POST", "/car", "{\"vin\": \"invalidate-0\", \"doors\": 4, \"fuelConsumption\": 25, "
+                + "\"horsepower\": 120, \"speed\": 100}");
+        assertEquals(before.getHeader("ETag"), server.get("/person?age=42&limit=10").getHeader("ETag"));
+        assertEquals(hits + 1, cache.getHits());
+
+        // writes to people do, whether they match the page's filter or not
+        long misses = cache.getMisses();
+        assertEquals(204, server.send("PATCH", path, "{\"name\": \"invalidated\"}").getStatus());
+        TestServer.Response after = server.get("/person?age=42&limit=10", "If-None-Match", before.getHeader("ETag"));
+        assertEquals(200, after.getStatus());
+        assertEquals(misses + 1, cache.getMisses());
+        assertEquals("invalidated", after.getJson().get(0).get("name").getTextValue());
+        assertFalse(before.getHeader("ETag").equals(after.getHeader("ETag")));
+
+        createPerson("elsewhere", 99);
+        TestServer.Response rebuilt = server.get("/person?age=42&limit=10");
+        assertEquals(misses + 2, cache.getMisses());
+        // the same body, so the same tag
+        assertEquals(after.getHeader("ETag"), rebuilt.getHeader("ETag"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws IOException {
+        createPerson("evict", 43);
+        long evictions = cache.getEvictions();
+        // each entry takes at least ENTRY_OVERHEAD (512) bytes, so these
+        // don't all fit
+        int pages = (int) (MAX_BYTES / 512) + 8;
+        for (int limit = 1; limit <= pages; limit++) {
+            assertEquals(200, server.get("/person?age=43&limit=" + limit).getStatus());
+            // the first page is kept in use throughout
+            server.get("/person?age=43&limit=1");
+        }
+        assertTrue(cache.getEvictions() > evictions);
+        assertTrue(cache.getBytes() <= MAX_BYTES);
+
+        long hits = cache.getHits();
+        long misses = cache.getMisses();
+        server.get("/person?age=43&limit=1");
+        server.get("/person?age=43&limit=" + pages);
+        assertEquals(hits + 2, cache.getHits());
+        server.get("/person?age=43&limit=2");
+        assertEquals(misses + 1, cache.getMisses());
+    }
+
+    @Test
+    public void servesLargePagesUncached() throws IOException {
+        // a quarter of the cache, in a page of 20
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < MAX_BYTES / 4 / 20; i++) {
+            name.append('x');
+        }
+        for (int i = 0; i < 20; i++) {
+            createPerson(name.toString(), 44);
+        }
+        long bytes = cache.getBytes();
+        TestServer.Response large = server.get("/person?age=44&limit=20");
+        assertEquals(200, large.getStatus());
+        assertEquals(20, large.getJson().size());
+        assertNull(large.getHeader("ETag"));
+        assertNotNull(large.getHeader("Link"));
+        // remembered as too large, at the cost of the overhead only
+        assertTrue(cache.getBytes() <= bytes + 512);
+
+        long hits = cache.getHits();
+        TestServer.Response again = server.get("/person?age=44&limit=20");
+        assertEquals(hits + 1, cache.getHits());
+        assertEquals(large.getBody(), again.getBody());
+    }
+
+    /**
+     * @return The new person's path, e.g. "/person/1".
+     */
+    private static String createPerson(String name, int age) throws IOException {
+        TestServer.Response created = server.send("POST", "/person",
+                "{\"name\": \"" + name + "\", \"age\": " + age + "}");
+        assertEquals(201, created.getStatus());
+        return new URL(created.getHeader("Location")).getPath();
+    }
+
+}
@@ -0,0 +1,244 @@
+package com.natehardison.simplejson.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.codehaus.jackson.JsonNode;
+import org.hibernate.Session;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.natehardison.simplejson.domain.Vehicle;
+import com.natehardison.simplejson.util.HibernateManager;
+import com.natehardison.simplejson.util.ShardRouter;
+
+/**
+ * Runs the vehicle endpoints against vehicles sharded over three in-memory
+ * databases (see hibernate-sharded-test.cfg.xml): each vehicle must be
+ * written to and read from the shard its VIN hashes to, and only that one,
+ * and collection reads must merge every shard's part in order. Each test
+ * works on vehicles of its own, told apart by VIN or horsepower.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+public class ShardingTest {
+
+    static {
+        System.setProperty(HibernateManager.CONFIG_RESOURCE, "hibernate-sharded-test.cfg.xml");
+    }
+
+    private static TestServer server;
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        server = new TestServer();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    public void routesWritesAndReadsByVin() throws IOException, SQLException {
+        String owner = createOwner("route");
+        List<String> vins = new ArrayList<String>();
+        for (int i = 0; i < 30; i++) {
+            String vin = "route-" + i;
+            String car = car(vin, 100, 10 + i);
+            // create, create-or-update and attach to an owner
+            if (i % 3 == 0) {
+                assertEquals(201, server.send("POST", "/car", car).getStatus());
+            } else if (i % 3 == 1) {
+                assertEquals(201, server.send("PUT", "/car/" + vin, car).getStatus());
+            } else {
+                assertEquals(201, server.send("POST", owner + "/vehicles?type=car", car).getStatus());
+            }
+            vins.add(vin);
+        }
+
+        Set<Integer> shards = new HashSet<Integer>();
+        for (String vin : vins) {
+            shards.add(assertPlaced(vin));
+            assertEquals(vin, server.get("/car/" + vin).getJson().get("vin").getTextValue());
+            // update and create-or-update find it where it is
+            assertEquals(204, server.send("POST", "/car/" + vin, car(vin, 100, 7)).getStatus());
+            assertEquals(7, server.get("/car/" + vin).getJson().get("speed").getIntValue());
+            assertEquals(204, server.send("PUT", "/car/" + vin, car(vin, 100, 8)).getStatus());
+            assertEquals(8, server.get("/car/" + vin).getJson().get("speed").getIntValue());
+            assertPlaced(vin);
+        }
+        // thirty VINs don't all hash to one shard
+        assertTrue(shards.size() > 1);
+
+        assertEquals(404, server.get("/car/route-none").getStatus());
+        // a vehicle must bring its VIN to be routed
+        assertEquals(400, server.send("POST", owner + "/vehicles?type=car",
+                "{\"doors\": 4, \"fuelConsumption\": 25, \"horsepower\": 100, \"speed\": 10}").getStatus());
+    }
+
+    @Test
+    public void pagesMergeAcrossShards() throws IOException {
+        List<String> vins = new ArrayList<String>();
+        for (int i = 0; i < 25; i++) {
+            String vin = "page-" + i;
+            assertEquals(201, server.send("PUT", "/car/" + vin, car(vin, 777, 10 + i)).getStatus());
+            vins.add(vin);
+        }
+        Collections.sort(vins);
+        assertEquals(vins, getPages("/car?horsepower=777&limit=7"));
+
+        // sorted by speed, with no VIN missing or repeated at the page breaks
+        List<String> bySpeed = new ArrayList<String>(vins.size());
+        for (int i = 24; i >= 0; i--) {
+            bySpeed.add("page-" + i);
+        }
+        assertEquals(bySpeed, getPages("/car?horsepower=777&sort=-speed&limit=4"));
+    }
+
+    @Test
+    public void pagesOwnersVehiclesAcrossShards() throws IOException {
+        String owner = createOwner("vehicles");
+        List<String> vins = new ArrayList<String>();
+        for (int i = 0; i < 12; i++) {
+            String vin = "vehicles-" + i;
+            assertEquals(201, server.send("POST", owner + "/vehicles?type=car", car(vin, 100, 10)).getStatus());
+            vins.add(vin);
+        }
+        Collections.sort(vins);
+        assertEquals(vins, getPages(owner + "/vehicles?limit=5"));
+
+        List<String> all = getVins(server.get(owner + "/vehicles").getJson());
+        Collections.sort(all);
+        assertEquals(vins, all);
+    }
+
+    @Test
+    public void sumsStatisticsAcrossShards() throws IOException, SQLException {
+        Set<Integer> shards = new HashSet<Integer>();
+        for (int speed = 1; speed <= 20; speed++) {
+            String vin = "stats-" + speed;
+            assertEquals(201, server.send("PUT", "/car/" + vin, car(vin, 555, speed)).getStatus());
+            shards.add(assertPlaced(vin));
+        }
+        assertTrue(shards.size() > 1);
+
+        JsonNode statistics = server.get("/car/_stats?horsepower=555&properties=speed").getJson();
+        assertEquals(20, statistics.get("count").getLongValue());
+        JsonNode speed = statistics.get("properties").get("speed");
+        assertEquals(20, speed.get("count").getLongValue());
+        assertEquals(1, speed.get("min").getLongValue());
+        assertEquals(20, speed.get("max").getLongValue());
+        assertEquals(10.5, speed.get("average").getDoubleValue(), 0);
+        long bucketed = 0;
+        for (JsonNode bucket : speed.get("buckets")) {
+            bucketed += bucket.get("count").getLongValue();
+        }
+        assertEquals(20, bucketed);
+    }
+
+    /**
+     * Creates an owner.
+     * @return Its path, e.g. "/owner/1".
+     */
+    private static String createOwner(String name) throws IOException {
+        TestServer.Response created = server.send("POST", "/owner", "{\"name\": \"" + name + "\", \"age\": 30}");
+        assertEquals(201, created.getStatus());
+        return new URL(created.getHeader("Location")).getPath();
+    }
+
+    private static String car(String vin, int horsepower, int speed) {
+        return "{\"vin\": \"" + vin + "\", \"doors\": 4, \"fuelConsumption\": 25, \"horsepower\": "
+                + horsepower + ", \"speed\": " + speed + "}";
+    }
+
+    /**
+     * Follows the Link headers from path to the last page.
+     * @return The VINs on each page, in order.
+     */
+    private static List<String> getPages(String path) throws IOException {
+        List<String> vins = new ArrayList<String>();
+        while (path != null) {
+            TestServer.Response page = server.get(path);
+            assertEquals(200, page.getStatus());
+            vins.addAll(getVins(page.getJson()));
+            String link = page.getHeader("Link");
+            path = link == null ? null : new URL(link.substring(1, link.indexOf('>'))).getFile();
+        }
+        return vins;
+    }
+
+    private static List<String> getVins(JsonNode vehicles) {
+        List<String> vins = new ArrayList<String>();
+        for (JsonNode vehicle : vehicles) {
+            vins.add(vehicle.get("vin").getTextValue());
+        }
+        return vins;
+    }
+
+    /**
+     * Checks that the vehicle with the VIN is in exactly one of the
+     * databases, the one it's routed to.
+     * @return The index of that database among the shards' URLs.
+     */
+    private static int assertPlaced(String vin) throws SQLException {
+        HibernateManager manager = HibernateManager.getManager();
+        List<String> urls = new ArrayList<String>();
+        for (String names : new String[] { ShardRouter.URLS, ShardRouter.DRAIN_URLS }) {
+            for (String url : manager.getProperty(names).split(",")) {
+                urls.add(url.trim());
+            }
+        }
+        Integer found = null;
+        for (int i = 0; i < urls.size(); i++) {
+            if (count(urls.get(i), vin) > 0) {
+                assertNull(vin + " is on two shards", found);
+                found = i;
+            }
+        }
+        assertNotNull(vin + " is on no shard", found);
+
+        // counted by query, since the second-level cache is shared
+        Session session = manager.getSessionFactory(Vehicle.class, vin).openSession();
+        try {
+            assertEquals(1L, session.createCriteria(Vehicle.class)
+                    .add(Restrictions.idEq(vin))
+                    .setProjection(Projections.rowCount())
+                    .uniqueResult());
+        } finally {
+            session.close();
+        }
+        return found;
+    }
+
+    private static int count(String url, String vin) throws SQLException {
+        Connection connection = DriverManager.getConnection(url, "sa", "");
+        try {
+            PreparedStatement statement = connection.prepareStatement("SELECT COUNT(*) FROM VEHICLE WHERE VIN = ?");
+            statement.setString(1, vin);
+            ResultSet results = statement.executeQuery();
+            results.next();
+            return results.getInt(1);
+        } finally {
+            connection.close();
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+package com.natehardison.simplejson.web;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.codehaus.jackson.JsonNode;
+
+import com.natehardison.simplejson.util.JsonCodec;
+import com.sun.jersey.api.container.filter.PostReplaceFilter;
+import com.sun.jersey.api.container.httpserver.HttpServerFactory;
+import com.sun.jersey.api.core.PackagesResourceConfig;
+import com.sun.jersey.api.core.ResourceConfig;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the service over HTTP for the tests that need to see whole
+ * requests and responses (status codes, headers), set up as in web.xml but
+ * on the JDK's built-in server, on a free port. HttpURLConnection won't send
+ * PATCH, so it's sent as a POST with X-HTTP-Method-Override, which only this
+ * server honours.
+ * @author Nate Hardison <natehardison@gmail.com>
+ */
+class TestServer {
+
+    /**
+     * A response, read in full.
+     */
+    static class Response {
+
+        private final int status;
+        private final Map<String, List<String>> headers;
+        private final String body;
+
+        Response(int status, Map<String, List<String>> headers, String body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        int getStatus() { return this.status; }
+        String getBody() { return this.body; }
+
+        /**
+         * @return The header's (first) value, or null if it wasn't sent.
+         */
+        String getHeader(String name) {
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                if (name.equalsIgnoreCase(header.getKey())) {
+                    return header.getValue().get(0);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return The body, parsed as JSON.
+         */
+        JsonNode getJson() throws IOException {
+            return JsonCodec.getCodec().getMapper().readTree(body);
+        }
+
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final String base;
+
+    /**
+     * Starts the server.
+     */
+    TestServer() throws IOException {
+        ResourceConfig config = new PackagesResourceConfig("com.natehardison.simplejson.web",
+                "org.codehaus.jackson.jaxrs");
+        config.getProperties().put(ResourceConfig.PROPERTY_RESOURCE_FILTER_FACTORIES,
+                MetricsFilterFactory.class.getName() + "," + GzipFilterFactory.class.getName());
+        config.getProperties().put(ResourceConfig.PROPERTY_CONTAINER_REQUEST_FILTERS,
+                PostReplaceFilter.class.getName());
+        server = HttpServerFactory.create("http://localhost:0/", config);
+        // long polls and writes that wait on each other need threads of
+        // their own
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+        base = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Stops the server.
+     */
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Sends a request and reads its response.
+     * @param method The HTTP method.
+     * @param path The path and query, e.g. "/car?limit=10".
+     * @param body The JSON entity, or null for none.
+     * @param headers Names and values of headers to send, alternately.
+     * @return The response.
+     */
+    Response send(String method, String path, String body, String... headers) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(base + path).openConnection();
+        if (method.equals("PATCH")) {
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("X-HTTP-Method-Override", method);
+        } else {
+            connection.setRequestMethod(method);
+        }
+        connection.setRequestProperty("Accept", "application/json");
+        if (body != null) {
+            connection.setRequestProperty("Content-Type", "application/json");
+        }
+        for (int i = 0; i + 1 < headers.length; i += 2) {
+            connection.setRequestProperty(headers[i], headers[i + 1]);
+        }
+        if (body != null) {
+            connection.setDoOutput(true);
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(body.getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+        }
+
+        int status = connection.getResponseCode();
+        InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        ByteArrayOutputStream entity = new ByteArrayOutputStream();
+        if (in != null) {
+            try {
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    entity.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return new Response(status, connection.getHeaderFields(), entity.toString("UTF-8"));
+    }
+
+    Response get(String path, String... headers) throws IOException {
+        return send("GET", path, null, headers);
+    }
+
+}